@@ -2,15 +2,19 @@ package nl.wilcokas.luckystackworker;
 
 import ij.gui.Roi;
 import java.time.LocalDateTime;
+import java.util.List;
 import nl.wilcokas.luckystackworker.constants.Constants;
+import nl.wilcokas.luckystackworker.dto.StageStatusDTO;
 import nl.wilcokas.luckystackworker.dto.StatusUpdateDTO;
 import org.springframework.stereotype.Component;
 
 @Component
 public class LuckyStackWorkerContext {
-    private String status = Constants.STATUS_WORKING;
-    private int filesProcessedCount = 0;
-    private int totalFilesCount = 0;
+    private volatile String status = Constants.STATUS_WORKING;
+    private volatile int filesProcessedCount = 0;
+    private volatile int totalFilesCount = 0;
+    private volatile int deconvolutionIterationsRun = 0;
+    private volatile List<StageStatusDTO> stages = List.of();
 
     private boolean realTimeEnabled = false;
 
@@ -18,7 +22,7 @@ public class LuckyStackWorkerContext {
 
     private boolean profileBeingApplied = false;
 
-    private boolean workerStopped = false;
+    private volatile boolean workerStopped = false;
 
     private String selectedProfile;
 
@@ -32,6 +36,8 @@ public class LuckyStackWorkerContext {
                 .message(status)
                 .filesProcessedCount(filesProcessedCount)
                 .totalFilesCount(totalFilesCount)
+                .deconvolutionIterationsRun(deconvolutionIterationsRun)
+                .stages(stages)
                 .build();
     }
 
@@ -51,6 +57,14 @@ public class LuckyStackWorkerContext {
         this.filesProcessedCount = filesProcessedCount;
     }
 
+    public synchronized void increaseFilesProcessedCount() {
+        this.filesProcessedCount++;
+    }
+
+    public synchronized void increaseFilesProcessedCount(int count) {
+        this.filesProcessedCount += count;
+    }
+
     public int getTotalFilesCount() {
         return totalFilesCount;
     }
@@ -59,6 +73,22 @@ public class LuckyStackWorkerContext {
         this.totalFilesCount = totalFilesCount;
     }
 
+    public int getDeconvolutionIterationsRun() {
+        return deconvolutionIterationsRun;
+    }
+
+    public void setDeconvolutionIterationsRun(int deconvolutionIterationsRun) {
+        this.deconvolutionIterationsRun = deconvolutionIterationsRun;
+    }
+
+    public List<StageStatusDTO> getStages() {
+        return stages;
+    }
+
+    public void setStages(List<StageStatusDTO> stages) {
+        this.stages = stages;
+    }
+
     public boolean isRealTimeEnabled() {
         return realTimeEnabled;
     }
@@ -4,6 +4,7 @@ import ij.ImagePlus;
 import ij.io.Opener;
 import lombok.extern.slf4j.Slf4j;
 import nl.wilcokas.luckystackworker.filter.WienerDeconvolutionFilter;
+import nl.wilcokas.luckystackworker.filter.wpl.WPLPsfCache;
 import nl.wilcokas.luckystackworker.service.bean.OpenImageModeEnum;
 import nl.wilcokas.luckystackworker.util.LswFileUtil;
 import nl.wilcokas.luckystackworker.util.LswUtil;
@@ -36,7 +37,7 @@ public class Probeersels {
         image.updateAndDraw();
 
         log.info("Start Wiener deconvolution");
-        WienerDeconvolutionFilter filter = new WienerDeconvolutionFilter();
+        WienerDeconvolutionFilter filter = new WienerDeconvolutionFilter(new WPLPsfCache());
         // filter.apply(image,psf,15);
         log.info("Completed Wiener deconvolution");
 
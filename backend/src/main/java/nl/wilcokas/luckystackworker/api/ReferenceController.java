@@ -21,6 +21,7 @@ import nl.wilcokas.luckystackworker.model.Settings;
 import nl.wilcokas.luckystackworker.repository.ProfileRepository;
 import nl.wilcokas.luckystackworker.repository.SettingsRepository;
 import nl.wilcokas.luckystackworker.service.ReferenceImageService;
+import nl.wilcokas.luckystackworker.service.bean.StackModeEnum;
 import nl.wilcokas.luckystackworker.util.LswFileUtil;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -161,13 +162,19 @@ public class ReferenceController {
 
     @PutMapping("/derotate")
     public void deRotate(
-            @RequestBody DeRotationDTO deRotationDTO, @RequestParam double scale, @RequestParam String openImageMode) {
-        referenceImageService.derotate(new DeRotation(deRotationDTO), scale, openImageMode);
+            @RequestBody DeRotationDTO deRotationDTO,
+            @RequestParam double scale,
+            @RequestParam String openImageMode,
+            @RequestParam(defaultValue = "MEAN") StackModeEnum stackMode) {
+        referenceImageService.derotate(new DeRotation(deRotationDTO), scale, openImageMode, stackMode);
     }
 
     @PutMapping("/stack")
-    public void stack(@RequestParam double scale, @RequestParam String openImageMode) {
-        referenceImageService.stackImages(scale, openImageMode);
+    public void stack(
+            @RequestParam double scale,
+            @RequestParam String openImageMode,
+            @RequestParam(defaultValue = "MEAN") StackModeEnum stackMode) {
+        referenceImageService.stackImages(scale, openImageMode, stackMode);
     }
 
     private boolean asJpeg(File selectedFile) {
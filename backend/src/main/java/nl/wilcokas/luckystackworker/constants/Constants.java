@@ -40,6 +40,7 @@ public class Constants {
     public static final String DENOISE_ALGORITHM_SIGMA2 = "SIGMA2";
     public static final String DENOISE_ALGORITHM_SAVGOLAY = "SAVGOLAY";
     public static final String DENOISE_ALGORITHM_BILATERAL = "BILATERAL";
+    public static final String DENOISE_ALGORITHM_ROF = "ROF";
     public static final int SECONDS_AFTER_NEXT_EXECUTION = 3;
     public static final int MINIMUM_WINDOW_WIDTH = 624;
     public static final int ARTIFICIAL_PROGRESS_DELAY = 500;
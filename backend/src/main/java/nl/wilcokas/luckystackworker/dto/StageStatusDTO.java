@@ -0,0 +1,19 @@
+package nl.wilcokas.luckystackworker.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class StageStatusDTO {
+    private String name;
+    private int parallelism;
+    private int processedCount;
+    private int runningCount;
+    private int queuedCount;
+    private double itemsPerSecond;
+}
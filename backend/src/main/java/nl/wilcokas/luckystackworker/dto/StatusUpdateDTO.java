@@ -1,5 +1,6 @@
 package nl.wilcokas.luckystackworker.dto;
 
+import java.util.List;
 import lombok.Builder;
 import lombok.Data;
 
@@ -9,4 +10,6 @@ public class StatusUpdateDTO {
     private int filesProcessedCount;
     private int totalFilesCount;
     private String message;
+    private int deconvolutionIterationsRun;
+    private List<StageStatusDTO> stages;
 }
@@ -3,6 +3,9 @@ package nl.wilcokas.luckystackworker.filter;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.process.ShortProcessor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
@@ -20,13 +23,17 @@ import org.springframework.stereotype.Component;
 @Component
 public class BilateralDenoiseFilter implements LSWFilter {
 
+    /** The spatial sigma isn't configurable, the radius only limits how far the kernel reaches. */
+    private static final double SIGMA_SPACE = 1D;
+
+    /** Neighbors of which the spatial weight is below this don't noticeably contribute and are left out. */
+    private static final double MIN_SPATIAL_WEIGHT = 1E-9;
+
     @Override
     public boolean apply(ImagePlus image, Profile profile, boolean isMono, String... additionalArguments) {
         if (isApplied(profile, image)) {
             log.info("Applying bilateral denoise filter to image: {}", image.getTitle());
-            for (int i = 1; i <= profile.getBilateralIterations(); i++) {
-                doApply(image, profile);
-            }
+            doApply(image, profile);
             return true;
         }
         return false;
@@ -42,6 +49,21 @@ public class BilateralDenoiseFilter implements LSWFilter {
         return Constants.DENOISE_ALGORITHM_BILATERAL.equals(profile.getDenoiseAlgorithm1());
     }
 
+    @Override
+    public List<Object> getParameters(Profile profile) {
+        return Arrays.asList(
+                profile.getDenoiseAlgorithm1(),
+                profile.getBilateralIterations(),
+                profile.getBilateralIterationsGreen(),
+                profile.getBilateralIterationsBlue(),
+                profile.getBilateralRadius(),
+                profile.getBilateralRadiusGreen(),
+                profile.getBilateralRadiusBlue(),
+                profile.getBilateralSigmaColor(),
+                profile.getBilateralSigmaColorGreen(),
+                profile.getBilateralSigmaColorBlue());
+    }
+
     private void doApply(ImagePlus image, Profile profile) {
         ImageStack stack = image.getStack();
         try {
@@ -53,21 +75,21 @@ public class BilateralDenoiseFilter implements LSWFilter {
                                 (ShortProcessor) stack.getProcessor(1),
                                 profile.getBilateralRadius(),
                                 profile.getBilateralSigmaColor() * 10D,
-                                1),
+                                profile.getBilateralIterations()),
                         executor);
                 futures[1] = CompletableFuture.runAsync(
                         () -> applyToChannel(
                                 (ShortProcessor) stack.getProcessor(2),
                                 profile.getBilateralRadiusGreen(),
                                 profile.getBilateralSigmaColorGreen() * 10D,
-                                1),
+                                profile.getBilateralIterationsGreen()),
                         executor);
                 futures[2] = CompletableFuture.runAsync(
                         () -> applyToChannel(
                                 (ShortProcessor) stack.getProcessor(3),
                                 profile.getBilateralRadiusBlue(),
                                 profile.getBilateralSigmaColorBlue() * 10D,
-                                1),
+                                profile.getBilateralIterationsBlue()),
                         executor);
                 CompletableFuture.allOf(futures).get();
             }
@@ -76,49 +98,118 @@ public class BilateralDenoiseFilter implements LSWFilter {
         }
     }
 
-    private void applyToChannel(ShortProcessor ip, int radius, double sigmaColor, double sigmaSpace) {
-        short[] newPixels = new short[ip.getPixelCount()];
+    private void applyToChannel(ShortProcessor ip, int radius, double sigmaColor, int iterations) {
+        if (iterations <= 0) {
+            return;
+        }
         int width = ip.getWidth();
         int height = ip.getHeight();
-        for (int y = 0; y < height; y++) {
+        Kernel kernel = Kernel.of(radius, SIGMA_SPACE, width);
+        double[] rangeWeights = getRangeWeights(sigmaColor);
+        short[] pixels = (short[]) ip.getPixels();
+        short[] source = pixels.clone();
+        short[] target = new short[pixels.length];
+        for (int i = 0; i < iterations; i++) {
+            short[] input = source;
+            short[] output = target;
+            LswImageProcessingUtil.runInBands(
+                    height, (from, to) -> filterRows(input, output, width, height, from, to, kernel, rangeWeights));
+            target = source;
+            source = output;
+        }
+        System.arraycopy(source, 0, pixels, 0, pixels.length);
+    }
+
+    private void filterRows(
+            short[] input,
+            short[] output,
+            int width,
+            int height,
+            int fromRow,
+            int toRow,
+            Kernel kernel,
+            double[] rangeWeights) {
+        int radius = kernel.radius();
+        int[] offsets = kernel.offsets();
+        int[] dx = kernel.dx();
+        int[] dy = kernel.dy();
+        double[] spatialWeights = kernel.weights();
+        for (int y = fromRow; y < toRow; y++) {
+            boolean interiorRow = y >= radius && y < height - radius;
             for (int x = 0; x < width; x++) {
-                newPixels[width * y + x] = LswImageProcessingUtil.convertToShort(
-                        (long) applyBilateralFilter(ip, x, y, radius, sigmaColor, sigmaSpace));
+                int position = width * y + x;
+                int centerPixel = LswImageProcessingUtil.convertToUnsignedInt(input[position]);
+                double weightSum = 0;
+                double intensitySum = 0;
+                if (interiorRow && x >= radius && x < width - radius) {
+                    // No bounds checks needed, the offsets can be used as they are.
+                    for (int k = 0; k < offsets.length; k++) {
+                        int neighborPixel = LswImageProcessingUtil.convertToUnsignedInt(input[position + offsets[k]]);
+                        double weight = spatialWeights[k] * rangeWeights[Math.abs(centerPixel - neighborPixel)];
+                        intensitySum += weight * neighborPixel;
+                        weightSum += weight;
+                    }
+                } else {
+                    for (int k = 0; k < offsets.length; k++) {
+                        int nx = x + dx[k];
+                        int ny = y + dy[k];
+                        if (nx >= 0 && nx < width && ny >= 0 && ny < height) {
+                            int neighborPixel = LswImageProcessingUtil.convertToUnsignedInt(input[width * ny + nx]);
+                            double weight = spatialWeights[k] * rangeWeights[Math.abs(centerPixel - neighborPixel)];
+                            intensitySum += weight * neighborPixel;
+                            weightSum += weight;
+                        }
+                    }
+                }
+                output[position] = LswImageProcessingUtil.convertToShort((long) (intensitySum / weightSum));
             }
         }
-        System.arraycopy(newPixels, 0, ip.getPixels(), 0, newPixels.length);
     }
 
-    private double applyBilateralFilter(
-            ShortProcessor ip, int x, int y, int radius, double sigmaColor, double sigmaSpace) {
-        double weightSum = 0;
-        double intensitySum = 0;
-        int centerPixel = ip.getPixel(x, y);
-
-        for (int dy = -radius; dy <= radius; dy++) {
-            for (int dx = -radius; dx <= radius; dx++) {
-                int nx = x + dx;
-                int ny = y + dy;
-
-                // Ensure the neighbor pixel is within the image bounds
-                if (nx >= 0 && nx < ip.getWidth() && ny >= 0 && ny < ip.getHeight()) {
-                    int neighborPixel = ip.getPixel(nx, ny);
-
-                    // Calculate the Gaussian weights
-                    double spatialWeight = Math.exp(-(dx * dx + dy * dy) / (2 * sigmaSpace * sigmaSpace));
-                    double colorWeight =
-                            Math.exp(-(Math.pow(centerPixel - neighborPixel, 2)) / (2 * sigmaColor * sigmaColor));
-                    double weight = spatialWeight * colorWeight;
-
-                    // Accumulate the weighted intensity
-                    intensitySum += weight * neighborPixel;
-                    weightSum += weight;
+    /**
+     * Gaussian weights of all possible differences between two 16-bit values.
+     */
+    private double[] getRangeWeights(double sigmaColor) {
+        double[] rangeWeights = new double[Constants.MAX_INT_VALUE + 1];
+        for (int difference = 0; difference < rangeWeights.length; difference++) {
+            rangeWeights[difference] = Math.exp(-((double) difference * difference) / (2 * sigmaColor * sigmaColor));
+        }
+        return rangeWeights;
+    }
+
+    /**
+     * The neighbors within the radius that contribute, as offsets relative to the center pixel and their spatial
+     * weights.
+     */
+    private record Kernel(int radius, int[] dx, int[] dy, int[] offsets, double[] weights) {
+
+        static Kernel of(int radius, double sigmaSpace, int width) {
+            List<int[]> neighbors = new ArrayList<>();
+            List<Double> neighborWeights = new ArrayList<>();
+            int usedRadius = 0;
+            for (int dy = -radius; dy <= radius; dy++) {
+                for (int dx = -radius; dx <= radius; dx++) {
+                    double weight = Math.exp(-(dx * dx + dy * dy) / (2 * sigmaSpace * sigmaSpace));
+                    if (weight >= MIN_SPATIAL_WEIGHT) {
+                        neighbors.add(new int[] {dx, dy});
+                        neighborWeights.add(weight);
+                        usedRadius = Math.max(usedRadius, Math.max(Math.abs(dx), Math.abs(dy)));
+                    }
                 }
             }
+            int size = neighbors.size();
+            int[] dx = new int[size];
+            int[] dy = new int[size];
+            int[] offsets = new int[size];
+            double[] weights = new double[size];
+            for (int k = 0; k < size; k++) {
+                dx[k] = neighbors.get(k)[0];
+                dy[k] = neighbors.get(k)[1];
+                offsets[k] = dy[k] * width + dx[k];
+                weights[k] = neighborWeights.get(k);
+            }
+            return new Kernel(usedRadius, dx, dy, offsets, weights);
         }
-
-        // Return the normalized intensity
-        return intensitySum / weightSum;
     }
 
     public static void main(String[] args) throws Exception {
@@ -138,6 +229,8 @@ public class BilateralDenoiseFilter implements LSWFilter {
         Profile profile = new Profile();
         profile.setBilateralRadius(2);
         profile.setBilateralIterations(1);
+        profile.setBilateralIterationsGreen(1);
+        profile.setBilateralIterationsBlue(1);
         profile.setBilateralSigmaColor(25000);
         profile.setBilateralSigmaSpace(40000);
         filter.doApply(image, profile);
@@ -5,6 +5,8 @@ import static nl.wilcokas.luckystackworker.constants.Constants.MAX_INT_VALUE;
 
 import ij.ImagePlus;
 import ij.ImageStack;
+import java.util.Arrays;
+import java.util.List;
 import lombok.extern.slf4j.Slf4j;
 import nl.wilcokas.luckystackworker.constants.Constants;
 import nl.wilcokas.luckystackworker.model.Profile;
@@ -35,6 +37,11 @@ public class ClippingSuppressionFilter implements LSWFilter {
         return profile.getClippingSuppression() != 0.0;
     }
 
+    @Override
+    public List<Object> getParameters(Profile profile) {
+        return Arrays.asList(profile.getClippingSuppression());
+    }
+
     private void apply(ImagePlus image, double clippingSuppression) {
         int width = image.getWidth();
         int height = image.getHeight();
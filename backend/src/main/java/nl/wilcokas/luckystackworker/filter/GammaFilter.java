@@ -2,27 +2,47 @@ package nl.wilcokas.luckystackworker.filter;
 
 import ij.ImagePlus;
 import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
 import lombok.extern.slf4j.Slf4j;
 import nl.wilcokas.luckystackworker.model.Profile;
+import nl.wilcokas.luckystackworker.util.LswImageProcessingUtil;
 import org.springframework.stereotype.Component;
 
 @Slf4j
 @Component
-public class GammaFilter implements LSWFilter {
+public class GammaFilter implements PointOperationFilter {
     @Override
     public boolean apply(ImagePlus image, Profile profile, boolean isMono, String... additionalArguments) {
         if (isApplied(profile, image)) {
-            log.info("Applying gamma correction with value {} to image {}", profile.getGamma(), image.getID());
-            for (int slice = 1; slice <= image.getStack().getSize(); slice++) {
-                ImageProcessor ip = getImageStackProcessor(image, slice);
-                ip.gamma(2d - profile.getGamma().doubleValue());
+            if (LswImageProcessingUtil.validateRGBStack(image)) {
+                PointOperationPipeline pipeline = new PointOperationPipeline();
+                addTo(pipeline, image, profile);
+                pipeline.run(image);
+            } else {
+                log.info("Applying gamma correction with value {} to image {}", profile.getGamma(), image.getID());
+                for (int slice = 1; slice <= image.getStack().getSize(); slice++) {
+                    ImageProcessor ip = getImageStackProcessor(image, slice);
+                    ip.gamma(getGammaValue(profile));
+                }
             }
             return true;
         }
         return false;
     }
 
+    @Override
+    public void addTo(PointOperationPipeline pipeline, ImagePlus image, Profile profile) {
+        log.info("Applying gamma correction with value {} to image {}", profile.getGamma(), image.getID());
+        double value = getGammaValue(profile);
+        pipeline.addLookupTables(
+                createLookupTable(getImageStackProcessor(image, 1), value),
+                createLookupTable(getImageStackProcessor(image, 2), value),
+                createLookupTable(getImageStackProcessor(image, 3), value));
+    }
+
     @Override
     public boolean isSlow() {
         return false;
@@ -33,6 +53,34 @@ public class GammaFilter implements LSWFilter {
         return profile.getGamma() != null && (profile.getGamma().compareTo(BigDecimal.ONE) != 0);
     }
 
+    @Override
+    public List<Object> getParameters(Profile profile) {
+        return Arrays.asList(profile.getGamma());
+    }
+
+    /**
+     * Lets ImageJ apply the gamma correction to every possible pixel value, using the same display range as the given
+     * layer, so the outcome is identical to applying it to the layer itself.
+     */
+    private int[] createLookupTable(ImageProcessor ip, double value) {
+        ShortProcessor allValues = new ShortProcessor(256, PointOperationPipeline.LOOKUP_TABLE_SIZE / 256);
+        short[] pixels = (short[]) allValues.getPixels();
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = LswImageProcessingUtil.convertToShort(i);
+        }
+        allValues.setMinAndMax(ip.getMin(), ip.getMax());
+        allValues.gamma(value);
+        int[] table = new int[PointOperationPipeline.LOOKUP_TABLE_SIZE];
+        for (int i = 0; i < pixels.length; i++) {
+            table[i] = LswImageProcessingUtil.convertToUnsignedInt(pixels[i]);
+        }
+        return table;
+    }
+
+    private double getGammaValue(Profile profile) {
+        return 2d - profile.getGamma().doubleValue();
+    }
+
     private ImageProcessor getImageStackProcessor(final ImagePlus img, final int stackPosition) {
         return img.getStack().getProcessor(stackPosition);
     }
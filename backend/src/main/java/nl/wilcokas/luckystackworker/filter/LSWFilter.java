@@ -1,6 +1,7 @@
 package nl.wilcokas.luckystackworker.filter;
 
 import ij.ImagePlus;
+import java.util.List;
 import nl.wilcokas.luckystackworker.model.Profile;
 
 public interface LSWFilter {
@@ -12,4 +13,10 @@ public interface LSWFilter {
             Profile profile,
             ImagePlus image); // For testing purposes (e.g., to check if a filter is applied based on a specific
     // profile property, like a denoise algorithm setting or saturation value. Useful)
+
+    /**
+     * All profile values that have an influence on the outcome of this filter. A cached result of the filter is only
+     * reused as long as none of these values have changed.
+     */
+    List<Object> getParameters(Profile profile);
 }
@@ -2,12 +2,13 @@ package nl.wilcokas.luckystackworker.filter;
 
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.plugin.filter.GaussianBlur;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import java.awt.Rectangle;
 import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
@@ -18,6 +19,8 @@ import nl.wilcokas.luckystackworker.filter.settings.LSWSharpenMode;
 import nl.wilcokas.luckystackworker.filter.settings.LSWSharpenParameters;
 import nl.wilcokas.luckystackworker.filter.settings.UnsharpMaskParameters;
 import nl.wilcokas.luckystackworker.model.Profile;
+import nl.wilcokas.luckystackworker.util.LswGaussianBlur;
+import nl.wilcokas.luckystackworker.util.LswHslUtil;
 import nl.wilcokas.luckystackworker.util.LswImageProcessingUtil;
 import org.springframework.stereotype.Component;
 
@@ -146,6 +149,41 @@ public class LSWSharpenFilter implements LSWFilter {
                 && profile.getAmount() != null;
     }
 
+    @Override
+    public List<Object> getParameters(Profile profile) {
+        return Arrays.asList(
+                profile.getApplyUnsharpMask(),
+                profile.getSharpenMode(),
+                profile.getRadius(),
+                profile.getRadiusGreen(),
+                profile.getRadiusBlue(),
+                profile.getAmount(),
+                profile.getAmountGreen(),
+                profile.getAmountBlue(),
+                profile.getIterations(),
+                profile.getIterationsGreen(),
+                profile.getIterationsBlue(),
+                profile.getClippingStrength(),
+                profile.getClippingStrengthGreen(),
+                profile.getClippingStrengthBlue(),
+                profile.getClippingRange(),
+                profile.getClippingRangeGreen(),
+                profile.getClippingRangeBlue(),
+                profile.getDeringRadius(),
+                profile.getDeringRadiusGreen(),
+                profile.getDeringRadiusBlue(),
+                profile.getDeringStrength(),
+                profile.getDeringStrengthGreen(),
+                profile.getDeringStrengthBlue(),
+                profile.getBlendRaw(),
+                profile.getBlendRawGreen(),
+                profile.getBlendRawBlue(),
+                profile.getLuminanceIncludeRed(),
+                profile.getLuminanceIncludeGreen(),
+                profile.getLuminanceIncludeBlue(),
+                profile.getLuminanceIncludeColor());
+    }
+
     private boolean validateLuminanceInclusion(LSWSharpenParameters parameters) {
         return parameters.isIncludeRed() || parameters.isIncludeGreen() || parameters.isIncludeBlue();
     }
@@ -294,6 +332,11 @@ public class LSWSharpenFilter implements LSWFilter {
         UnsharpMaskParameters unsharpMaskParameters = parameters.getUnsharpMaskParameters();
 
         ImageStack finalStack = image.getStack();
+        // The HSL planes are reused by every iteration
+        int pixelCount = image.getWidth() * image.getHeight();
+        float[] pixelsHue = new float[pixelCount];
+        float[] pixelsSat = new float[pixelCount];
+        float[] pixelsLum = new float[pixelCount];
 
         for (int it = 0; it < unsharpMaskParameters.getIterationsLuminance(); it++) {
             ImageProcessor ipRed = finalStack.getProcessor(1);
@@ -310,23 +353,18 @@ public class LSWSharpenFilter implements LSWFilter {
             float[] pixelsGreen = (float[]) fpGreen.getPixels();
             float[] pixelsBlue = (float[]) fpBlue.getPixels();
 
-            float[] pixelsHue = new float[pixelsRed.length];
-            float[] pixelsSat = new float[pixelsRed.length];
-            float[] pixelsLum = new float[pixelsRed.length];
-            for (int i = 0; i < pixelsRed.length; i++) {
-                float[] hsl = LswImageProcessingUtil.rgbToHsl(
-                        pixelsRed[i],
-                        pixelsGreen[i],
-                        pixelsBlue[i],
-                        parameters.isIncludeRed(),
-                        parameters.isIncludeGreen(),
-                        parameters.isIncludeBlue(),
-                        parameters.isIncludeColor(),
-                        parameters.getMode());
-                pixelsHue[i] = hsl[0];
-                pixelsSat[i] = hsl[1];
-                pixelsLum[i] = hsl[2];
-            }
+            LswHslUtil.rgbToHsl(
+                    pixelsRed,
+                    pixelsGreen,
+                    pixelsBlue,
+                    pixelsHue,
+                    pixelsSat,
+                    pixelsLum,
+                    parameters.isIncludeRed(),
+                    parameters.isIncludeGreen(),
+                    parameters.isIncludeBlue(),
+                    parameters.isIncludeColor(),
+                    parameters.getMode());
             FloatProcessor fpLum = new FloatProcessor(image.getWidth(), image.getHeight(), pixelsLum);
             fpLum.snapshot();
 
@@ -352,12 +390,7 @@ public class LSWSharpenFilter implements LSWFilter {
                         fpLum);
             }
 
-            for (int i = 0; i < pixelsRed.length; i++) {
-                float[] rgb = LswImageProcessingUtil.hslToRgb(pixelsHue[i], pixelsSat[i], pixelsLum[i], 0f);
-                pixelsRed[i] = rgb[0];
-                pixelsGreen[i] = rgb[1];
-                pixelsBlue[i] = rgb[2];
-            }
+            LswHslUtil.hslToRgb(pixelsHue, pixelsSat, pixelsLum, pixelsRed, pixelsGreen, pixelsBlue, 0f);
 
             ipRed.setPixels(1, fpRed);
             ipGreen.setPixels(2, fpGreen);
@@ -375,6 +408,14 @@ public class LSWSharpenFilter implements LSWFilter {
         ImageStack finalStack = image.getStack();
         ImageStack intialStack = finalStack.duplicate();
 
+        // The HSL planes are reused by every iteration, pass 2 needs its own luminance plane as the one of pass 1 is
+        // still referred to by fpLumInitial.
+        int pixelCount = image.getWidth() * image.getHeight();
+        float[] pixelsHue = new float[pixelCount];
+        float[] pixelsSat = new float[pixelCount];
+        float[] pixelsLumInitial = new float[pixelCount];
+        float[] pixelsLum = new float[pixelCount];
+
         // Pass 1, first apply the filter normally to the intialStack.
         FloatProcessor fpLumInitial = null;
         for (int it = 0; it < unsharpMaskParameters.getIterationsLuminance(); it++) {
@@ -392,24 +433,19 @@ public class LSWSharpenFilter implements LSWFilter {
             float[] pixelsGreen = (float[]) fpGreen.getPixels();
             float[] pixelsBlue = (float[]) fpBlue.getPixels();
 
-            float[] pixelsHue = new float[pixelsRed.length];
-            float[] pixelsSat = new float[pixelsRed.length];
-            float[] pixelsLum = new float[pixelsRed.length];
-            for (int i = 0; i < pixelsRed.length; i++) {
-                float[] hsl = LswImageProcessingUtil.rgbToHsl(
-                        pixelsRed[i],
-                        pixelsGreen[i],
-                        pixelsBlue[i],
-                        parameters.isIncludeRed(),
-                        parameters.isIncludeGreen(),
-                        parameters.isIncludeBlue(),
-                        parameters.isIncludeColor(),
-                        parameters.getMode());
-                pixelsHue[i] = hsl[0];
-                pixelsSat[i] = hsl[1];
-                pixelsLum[i] = hsl[2];
-            }
-            fpLumInitial = new FloatProcessor(image.getWidth(), image.getHeight(), pixelsLum);
+            LswHslUtil.rgbToHsl(
+                    pixelsRed,
+                    pixelsGreen,
+                    pixelsBlue,
+                    pixelsHue,
+                    pixelsSat,
+                    pixelsLumInitial,
+                    parameters.isIncludeRed(),
+                    parameters.isIncludeGreen(),
+                    parameters.isIncludeBlue(),
+                    parameters.isIncludeColor(),
+                    parameters.getMode());
+            fpLumInitial = new FloatProcessor(image.getWidth(), image.getHeight(), pixelsLumInitial);
             fpLumInitial.snapshot();
             doUnsharpMask(
                     unsharpMaskParameters.getRadiusLuminance(),
@@ -417,12 +453,7 @@ public class LSWSharpenFilter implements LSWFilter {
                     unsharpMaskParameters.getBlendRawLuminance(),
                     fpLumInitial);
 
-            for (int i = 0; i < pixelsRed.length; i++) {
-                float[] rgb = LswImageProcessingUtil.hslToRgb(pixelsHue[i], pixelsSat[i], pixelsLum[i], 0f);
-                pixelsRed[i] = rgb[0];
-                pixelsGreen[i] = rgb[1];
-                pixelsBlue[i] = rgb[2];
-            }
+            LswHslUtil.hslToRgb(pixelsHue, pixelsSat, pixelsLumInitial, pixelsRed, pixelsGreen, pixelsBlue, 0f);
 
             ipRed.setPixels(1, fpRed);
             ipGreen.setPixels(2, fpGreen);
@@ -445,23 +476,18 @@ public class LSWSharpenFilter implements LSWFilter {
             float[] pixelsGreen = (float[]) fpGreen.getPixels();
             float[] pixelsBlue = (float[]) fpBlue.getPixels();
 
-            float[] pixelsHue = new float[pixelsRed.length];
-            float[] pixelsSat = new float[pixelsRed.length];
-            float[] pixelsLum = new float[pixelsRed.length];
-            for (int i = 0; i < pixelsRed.length; i++) {
-                float[] hsl = LswImageProcessingUtil.rgbToHsl(
-                        pixelsRed[i],
-                        pixelsGreen[i],
-                        pixelsBlue[i],
-                        parameters.isIncludeRed(),
-                        parameters.isIncludeGreen(),
-                        parameters.isIncludeBlue(),
-                        parameters.isIncludeColor(),
-                        parameters.getMode());
-                pixelsHue[i] = hsl[0];
-                pixelsSat[i] = hsl[1];
-                pixelsLum[i] = hsl[2];
-            }
+            LswHslUtil.rgbToHsl(
+                    pixelsRed,
+                    pixelsGreen,
+                    pixelsBlue,
+                    pixelsHue,
+                    pixelsSat,
+                    pixelsLum,
+                    parameters.isIncludeRed(),
+                    parameters.isIncludeGreen(),
+                    parameters.isIncludeBlue(),
+                    parameters.isIncludeColor(),
+                    parameters.getMode());
             FloatProcessor fpLum = new FloatProcessor(image.getWidth(), image.getHeight(), pixelsLum);
             fpLum.snapshot();
             doUnsharpMaskClippingPrevention(
@@ -473,12 +499,7 @@ public class LSWSharpenFilter implements LSWFilter {
                     fpLumInitial,
                     fpLum);
 
-            for (int i = 0; i < pixelsRed.length; i++) {
-                float[] rgb = LswImageProcessingUtil.hslToRgb(pixelsHue[i], pixelsSat[i], pixelsLum[i], 0f);
-                pixelsRed[i] = rgb[0];
-                pixelsGreen[i] = rgb[1];
-                pixelsBlue[i] = rgb[2];
-            }
+            LswHslUtil.hslToRgb(pixelsHue, pixelsSat, pixelsLum, pixelsRed, pixelsGreen, pixelsBlue, 0f);
 
             ipRed.setPixels(1, fpRed);
             ipGreen.setPixels(2, fpGreen);
@@ -490,8 +511,7 @@ public class LSWSharpenFilter implements LSWFilter {
      * Unsharp mask algorithm.
      * */
     public void doUnsharpMask(double radius, float amount, float blendRawFactor, FloatProcessor fp) {
-        GaussianBlur gb = new GaussianBlur();
-        gb.blurGaussian(fp, radius, radius, 0.01);
+        LswGaussianBlur.blurGaussian(fp, radius);
         float[] pixels = (float[]) fp.getPixels();
         float[] snapshotPixels = (float[]) fp.getSnapshotPixels();
         int width = fp.getWidth();
@@ -576,8 +596,7 @@ public class LSWSharpenFilter implements LSWFilter {
             float blendRawFactor,
             FloatProcessor fpInitial,
             FloatProcessor fpFinal) {
-        GaussianBlur gb = new GaussianBlur();
-        gb.blurGaussian(fpFinal, radius, radius, 0.01);
+        LswGaussianBlur.blurGaussian(fpFinal, radius);
         float[] initialPixels = (float[]) fpInitial.getPixels();
         float[] pixels = (float[]) fpFinal.getPixels();
         float[] snapshotPixels = (float[]) fpFinal.getSnapshotPixels();
@@ -605,8 +624,7 @@ public class LSWSharpenFilter implements LSWFilter {
             float blendRawFactor,
             FloatProcessor fp,
             ImageProcessor ipMask) {
-        GaussianBlur gb = new GaussianBlur();
-        gb.blurGaussian(fp, radius, radius, 0.01);
+        LswGaussianBlur.blurGaussian(fp, radius);
         float[] pixels = (float[]) fp.getPixels();
         short[] maskPixels = (short[]) ipMask.getPixels();
         float[] snapshotPixels = (float[]) fp.getSnapshotPixels();
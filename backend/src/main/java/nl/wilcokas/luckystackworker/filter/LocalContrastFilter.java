@@ -1,42 +1,74 @@
 package nl.wilcokas.luckystackworker.filter;
 
+import static nl.wilcokas.luckystackworker.util.LswImageProcessingUtil.convertToShort;
+import static nl.wilcokas.luckystackworker.util.LswImageProcessingUtil.convertToUnsignedInt;
+
 import ij.ImagePlus;
-import java.math.BigDecimal;
-import lombok.RequiredArgsConstructor;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import lombok.extern.slf4j.Slf4j;
 import nl.wilcokas.luckystackworker.constants.Constants;
+import nl.wilcokas.luckystackworker.exceptions.FilterException;
 import nl.wilcokas.luckystackworker.filter.settings.LSWSharpenMode;
-import nl.wilcokas.luckystackworker.filter.settings.LSWSharpenParameters;
-import nl.wilcokas.luckystackworker.filter.settings.UnsharpMaskParameters;
 import nl.wilcokas.luckystackworker.model.Profile;
+import nl.wilcokas.luckystackworker.util.LswGaussianBlur;
+import nl.wilcokas.luckystackworker.util.LswGaussianPyramid;
+import nl.wilcokas.luckystackworker.util.LswGaussianPyramid.Level;
+import nl.wilcokas.luckystackworker.util.LswImageProcessingUtil;
 import org.springframework.stereotype.Component;
 
-@RequiredArgsConstructor
+/**
+ * Enhances the fine, medium and large details in one go. Applying the three unsharp masks one after the other is close
+ * to splitting the image into the detail bands between the blur radii and amplifying every band by the gains of all
+ * masks with a radius at least as large as that band. So the image is blurred with the fine radius at full resolution
+ * only, the medium and large blurs are done on a gaussian pyramid at 1/4 and 1/16 resolution, and the bands are
+ * recombined with their gains in a single pass.
+ */
 @Slf4j
 @Component
 public class LocalContrastFilter implements LSWFilter {
 
-    private final LSWSharpenFilter sharpenFilter;
+    private static final int PYRAMID_FACTOR = 4;
 
     @Override
     public boolean apply(ImagePlus image, Profile profile, boolean isMono, String... additionalArguments) {
+        if (!isApplied(profile, image)) {
+            return false;
+        }
         LSWSharpenMode mode = (profile.getLocalContrastMode() == null)
                 ? LSWSharpenMode.LUMINANCE
                 : LSWSharpenMode.valueOf(profile.getLocalContrastMode());
-        boolean filterApplied = false;
-        if (profile.getLocalContrastFine() != 0) {
-            applyLocalContrast(image, profile.getLocalContrastFine(), Constants.LOCAL_CONTRAST_FINE_RADIUS, mode);
-            filterApplied = true;
-        }
-        if (profile.getLocalContrastMedium() != 0) {
-            applyLocalContrast(image, profile.getLocalContrastMedium(), Constants.LOCAL_CONTRAST_MEDIUM_RADIUS, mode);
-            filterApplied = true;
-        }
-        if (profile.getLocalContrastLarge() != 0) {
-            applyLocalContrast(image, profile.getLocalContrastLarge(), Constants.LOCAL_CONTRAST_LARGE_RADIUS, mode);
-            filterApplied = true;
+        log.info(
+                "Applying local contrast with mode {}, fine {}, medium {}, large {} to image {}",
+                mode,
+                profile.getLocalContrastFine(),
+                profile.getLocalContrastMedium(),
+                profile.getLocalContrastLarge(),
+                image.getID());
+        // An unsharp mask with amount a multiplies the details below its radius by 1 / (1 - a).
+        float largeGain = getGain(profile.getLocalContrastLarge());
+        float mediumGain = largeGain * getGain(profile.getLocalContrastMedium());
+        float fineGain = mediumGain * getGain(profile.getLocalContrastFine());
+        ImageStack stack = image.getStack();
+        try {
+            try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                CompletableFuture<?>[] futures = new CompletableFuture[stack.getSize()];
+                for (int slice = 1; slice <= stack.getSize(); slice++) {
+                    ImageProcessor ip = stack.getProcessor(slice);
+                    futures[slice - 1] = CompletableFuture.runAsync(
+                            () -> applyToChannel(ip, fineGain, mediumGain, largeGain), executor);
+                }
+                CompletableFuture.allOf(futures).get();
+            }
+        } catch (InterruptedException | ExecutionException e) { // NOSONAR
+            throw new FilterException(e.getMessage());
         }
-        return filterApplied;
+        return true;
     }
 
     @Override
@@ -51,35 +83,63 @@ public class LocalContrastFilter implements LSWFilter {
                 || profile.getLocalContrastLarge() != 0;
     }
 
-    private void applyLocalContrast(
-            final ImagePlus image, int amount, BigDecimal radius, LSWSharpenMode localContrastMode) {
-        log.info(
-                "Applying local contrast with mode {}, radius {} amount {} to image {}",
-                localContrastMode,
-                radius,
-                amount,
-                image.getID());
-        float famount = (amount) / 100f;
-        UnsharpMaskParameters usParams = UnsharpMaskParameters.builder()
-                .radiusRed(radius.doubleValue())
-                .amountRed(famount)
-                .iterationsRed(1)
-                .radiusGreen(radius.doubleValue())
-                .amountGreen(famount)
-                .iterationsGreen(1)
-                .radiusBlue(radius.doubleValue())
-                .amountBlue(famount)
-                .iterationsBlue(1)
-                .build();
-        LSWSharpenParameters parameters = LSWSharpenParameters.builder()
-                .includeBlue(true)
-                .includeGreen(true)
-                .includeRed(true)
-                .individual(false)
-                .saturation(1f)
-                .unsharpMaskParameters(usParams)
-                .mode(localContrastMode)
-                .build();
-        sharpenFilter.applyRGBMode(image, parameters.getUnsharpMaskParameters());
+    @Override
+    public List<Object> getParameters(Profile profile) {
+        return Arrays.asList(
+                profile.getLocalContrastMode(),
+                profile.getLocalContrastFine(),
+                profile.getLocalContrastMedium(),
+                profile.getLocalContrastLarge());
+    }
+
+    private void applyToChannel(ImageProcessor ip, float fineGain, float mediumGain, float largeGain) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        short[] pixels = (short[]) ip.getPixels();
+        float[] original = new float[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            original[i] = convertToUnsignedInt(pixels[i]);
+        }
+        double fineRadius = Constants.LOCAL_CONTRAST_FINE_RADIUS.doubleValue();
+        double mediumRadius = Constants.LOCAL_CONTRAST_MEDIUM_RADIUS.doubleValue();
+        double largeRadius = Constants.LOCAL_CONTRAST_LARGE_RADIUS.doubleValue();
+
+        float[] fine = original.clone();
+        LswGaussianBlur.blurGaussian(fine, width, height, fineRadius);
+        Level medium = LswGaussianPyramid.reduce(new Level(fine, width, height), PYRAMID_FACTOR);
+        blurLevel(medium, fineRadius, mediumRadius, PYRAMID_FACTOR);
+        Level large = LswGaussianPyramid.reduce(medium, PYRAMID_FACTOR);
+        blurLevel(large, mediumRadius, largeRadius, PYRAMID_FACTOR * PYRAMID_FACTOR);
+
+        // Recombine the bands from coarse to fine, every band being the difference between two successive blurs.
+        float[] largePixels = LswGaussianPyramid.expand(large, PYRAMID_FACTOR, medium.width(), medium.height())
+                .pixels();
+        float[] mediumPixels = medium.pixels();
+        float[] coarse = new float[mediumPixels.length];
+        for (int i = 0; i < coarse.length; i++) {
+            coarse[i] = (largeGain - mediumGain) * mediumPixels[i] + (1f - largeGain) * largePixels[i];
+        }
+        float[] coarsePixels = LswGaussianPyramid.expand(
+                        new Level(coarse, medium.width(), medium.height()), PYRAMID_FACTOR, width, height)
+                .pixels();
+        LswImageProcessingUtil.runInBands(pixels.length, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                float value = fineGain * original[i] + (mediumGain - fineGain) * fine[i] + coarsePixels[i];
+                pixels[i] = convertToShort(Math.clamp(Math.round(value), 0, Constants.MAX_INT_VALUE));
+            }
+        });
+    }
+
+    /**
+     * Blurs a level that already has the blur of the previous radius up to the next radius, taking into account that
+     * its pixels are the given factor larger than those of the image.
+     */
+    private void blurLevel(Level level, double previousRadius, double radius, int factor) {
+        double sigma = Math.sqrt(radius * radius - previousRadius * previousRadius) / factor;
+        LswGaussianBlur.blurGaussian(level.pixels(), level.width(), level.height(), sigma);
+    }
+
+    private float getGain(int amount) {
+        return 1f / (1f - (amount / 100f));
     }
 }
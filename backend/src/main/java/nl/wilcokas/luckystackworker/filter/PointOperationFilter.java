@@ -0,0 +1,18 @@
+package nl.wilcokas.luckystackworker.filter;
+
+import ij.ImagePlus;
+import nl.wilcokas.luckystackworker.model.Profile;
+
+/**
+ * Filter of which the new value of a pixel only depends on the old values of that same pixel in the three layers (and
+ * possibly on statistics of the whole image). Consecutive point operations can therefore be combined into a single
+ * pass over the image by a {@link PointOperationPipeline}.
+ */
+public interface PointOperationFilter extends LSWFilter {
+
+    /**
+     * Adds the operations of this filter to the given pipeline, which will be run on the given RGB image. Only called
+     * when the filter is applied for the given profile and image.
+     */
+    void addTo(PointOperationPipeline pipeline, ImagePlus image, Profile profile);
+}
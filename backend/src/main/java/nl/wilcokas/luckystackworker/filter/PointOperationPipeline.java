@@ -0,0 +1,239 @@
+package nl.wilcokas.luckystackworker.filter;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import nl.wilcokas.luckystackworker.constants.Constants;
+import nl.wilcokas.luckystackworker.exceptions.FilterException;
+import nl.wilcokas.luckystackworker.util.LswImageProcessingUtil;
+
+/**
+ * Runs a sequence of point operations on an RGB image in as few passes over the pixels as possible. Operations that
+ * only depend on the value of a single layer are expressed as 65536-entry lookup tables, consecutive lookup tables are
+ * merged into one. Operations that need the channel averages of their input split the work into two passes, the first
+ * one of which also collects these averages. Every pass is divided into horizontal bands that are processed in
+ * parallel.
+ */
+public class PointOperationPipeline {
+
+    public static final int LOOKUP_TABLE_SIZE = 65536;
+    private static final int NUMBER_OF_LAYERS = 3;
+
+    private final List<Stage> stages = new ArrayList<>();
+
+    /**
+     * Maps the value of every layer through its own lookup table, a null table leaves the layer unchanged. The tables
+     * must only contain values from 0 to 65535.
+     */
+    public void addLookupTables(int[] redTable, int[] greenTable, int[] blueTable) {
+        stages.add(new LookupStage(new int[][] {redTable, greenTable, blueTable}));
+    }
+
+    /**
+     * Adds an operation on the three values of a pixel, which should leave values from 0 to 65535 in the given array.
+     */
+    public void addPixelOperation(PixelOperation operation) {
+        stages.add(new PixelStage(operation));
+    }
+
+    /**
+     * Adds an operation that keeps buffers of its own, a separate instance is created for every band that is processed
+     * in parallel.
+     */
+    public void addPixelOperation(Supplier<PixelOperation> operationFactory) {
+        stages.add(new BufferedPixelStage(operationFactory));
+    }
+
+    /**
+     * Adds lookup tables that can only be created once the average values of the red, green and blue layers at this
+     * point in the pipeline are known.
+     */
+    public void addAveragesLookupTables(Function<double[], int[][]> tablesFactory) {
+        stages.add(new AveragesStage(tablesFactory));
+    }
+
+    public boolean isEmpty() {
+        return stages.isEmpty();
+    }
+
+    public void run(ImagePlus image) {
+        ImageStack stack = image.getStack();
+        short[][] layers = new short[NUMBER_OF_LAYERS][];
+        layers[0] = (short[]) stack.getProcessor(Constants.RED_LAYER_INDEX).getPixels();
+        layers[1] = (short[]) stack.getProcessor(Constants.GREEN_LAYER_INDEX).getPixels();
+        layers[2] = (short[]) stack.getProcessor(Constants.BLUE_LAYER_INDEX).getPixels();
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        List<Stage> pass = new ArrayList<>();
+        for (Stage stage : stages) {
+            if (stage instanceof AveragesStage averagesStage) {
+                double[] averages = runPass(pass, layers, width, height, true);
+                pass.clear();
+                pass.add(new LookupStage(averagesStage.tablesFactory.apply(averages)));
+            } else {
+                pass.add(stage);
+            }
+        }
+        runPass(pass, layers, width, height, false);
+    }
+
+    private double[] runPass(List<Stage> pass, short[][] layers, int width, int height, boolean determineAverages) {
+        Stage[] compiledStages = mergeLookupStages(pass);
+        if (compiledStages.length == 0 && !determineAverages) {
+            return null;
+        }
+        int numberOfBands = Math.max(1, Math.min(height, Runtime.getRuntime().availableProcessors()));
+        long[][] sums = new long[numberOfBands][NUMBER_OF_LAYERS];
+        try {
+            try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                CompletableFuture<?>[] futures = new CompletableFuture[numberOfBands];
+                for (int band = 0; band < numberOfBands; band++) {
+                    int from = (int) ((long) height * band / numberOfBands) * width;
+                    int to = (int) ((long) height * (band + 1) / numberOfBands) * width;
+                    long[] bandSums = determineAverages ? sums[band] : null;
+                    Stage[] bandStages = new Stage[compiledStages.length];
+                    for (int i = 0; i < compiledStages.length; i++) {
+                        bandStages[i] = compiledStages[i].forBand();
+                    }
+                    futures[band] = CompletableFuture.runAsync(
+                            () -> runBand(bandStages, layers, from, to, bandSums), executor);
+                }
+                CompletableFuture.allOf(futures).get();
+            }
+        } catch (InterruptedException | ExecutionException e) { // NOSONAR
+            throw new FilterException(e.getMessage());
+        }
+        if (!determineAverages) {
+            return null;
+        }
+        double[] averages = new double[NUMBER_OF_LAYERS];
+        for (int layer = 0; layer < NUMBER_OF_LAYERS; layer++) {
+            long sum = 0;
+            for (long[] bandSums : sums) {
+                sum += bandSums[layer];
+            }
+            averages[layer] = (double) sum / (width * height);
+        }
+        return averages;
+    }
+
+    private void runBand(Stage[] compiledStages, short[][] layers, int from, int to, long[] sums) {
+        short[] redPixels = layers[0];
+        short[] greenPixels = layers[1];
+        short[] bluePixels = layers[2];
+        int[] rgb = new int[NUMBER_OF_LAYERS];
+        for (int i = from; i < to; i++) {
+            rgb[0] = LswImageProcessingUtil.convertToUnsignedInt(redPixels[i]);
+            rgb[1] = LswImageProcessingUtil.convertToUnsignedInt(greenPixels[i]);
+            rgb[2] = LswImageProcessingUtil.convertToUnsignedInt(bluePixels[i]);
+            for (Stage stage : compiledStages) {
+                stage.apply(rgb);
+            }
+            if (sums != null) {
+                sums[0] += rgb[0];
+                sums[1] += rgb[1];
+                sums[2] += rgb[2];
+            }
+            if (compiledStages.length > 0) {
+                redPixels[i] = LswImageProcessingUtil.convertToShort(rgb[0]);
+                greenPixels[i] = LswImageProcessingUtil.convertToShort(rgb[1]);
+                bluePixels[i] = LswImageProcessingUtil.convertToShort(rgb[2]);
+            }
+        }
+    }
+
+    private Stage[] mergeLookupStages(List<Stage> pass) {
+        List<Stage> merged = new ArrayList<>();
+        for (Stage stage : pass) {
+            if (stage instanceof LookupStage next
+                    && !merged.isEmpty()
+                    && merged.getLast() instanceof LookupStage previous) {
+                merged.set(merged.size() - 1, previous.andThen(next));
+            } else {
+                merged.add(stage);
+            }
+        }
+        return merged.toArray(new Stage[0]);
+    }
+
+    @FunctionalInterface
+    public interface PixelOperation {
+        /**
+         * Replaces the red, green and blue values of a pixel, all ranging from 0 to 65535, by their new values.
+         */
+        void apply(int[] rgb);
+    }
+
+    private interface Stage {
+        void apply(int[] rgb);
+
+        default Stage forBand() {
+            return this;
+        }
+    }
+
+    private record LookupStage(int[][] tables) implements Stage {
+
+        @Override
+        public void apply(int[] rgb) {
+            for (int layer = 0; layer < NUMBER_OF_LAYERS; layer++) {
+                if (tables[layer] != null) {
+                    rgb[layer] = tables[layer][rgb[layer]];
+                }
+            }
+        }
+
+        LookupStage andThen(LookupStage next) {
+            int[][] result = new int[NUMBER_OF_LAYERS][];
+            for (int layer = 0; layer < NUMBER_OF_LAYERS; layer++) {
+                int[] first = tables[layer];
+                int[] second = next.tables[layer];
+                if (first == null || second == null) {
+                    result[layer] = first == null ? second : first;
+                } else {
+                    result[layer] = new int[LOOKUP_TABLE_SIZE];
+                    for (int value = 0; value < LOOKUP_TABLE_SIZE; value++) {
+                        result[layer][value] = second[first[value]];
+                    }
+                }
+            }
+            return new LookupStage(result);
+        }
+    }
+
+    private record PixelStage(PixelOperation operation) implements Stage {
+
+        @Override
+        public void apply(int[] rgb) {
+            operation.apply(rgb);
+        }
+    }
+
+    private record BufferedPixelStage(Supplier<PixelOperation> operationFactory) implements Stage {
+
+        @Override
+        public void apply(int[] rgb) {
+            throw new IllegalStateException("An operation must be created for every band");
+        }
+
+        @Override
+        public Stage forBand() {
+            return new PixelStage(operationFactory.get());
+        }
+    }
+
+    private record AveragesStage(Function<double[], int[][]> tablesFactory) implements Stage {
+
+        @Override
+        public void apply(int[] rgb) {
+            throw new IllegalStateException("Averages are resolved before a pass is run");
+        }
+    }
+}
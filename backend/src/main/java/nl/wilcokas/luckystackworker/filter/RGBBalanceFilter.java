@@ -1,40 +1,27 @@
 package nl.wilcokas.luckystackworker.filter;
 
 import ij.ImagePlus;
-import ij.ImageStack;
 import java.math.BigDecimal;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
+import java.util.Arrays;
+import java.util.List;
 import lombok.extern.slf4j.Slf4j;
 import nl.wilcokas.luckystackworker.constants.Constants;
-import nl.wilcokas.luckystackworker.exceptions.FilterException;
 import nl.wilcokas.luckystackworker.model.Profile;
 import nl.wilcokas.luckystackworker.util.LswImageProcessingUtil;
 import org.springframework.stereotype.Component;
 
 @Slf4j
 @Component
-public class RGBBalanceFilter implements LSWFilter {
+public class RGBBalanceFilter implements PointOperationFilter {
 
     private static final int STEP_SIZE = 64;
 
     @Override
     public boolean apply(ImagePlus image, Profile profile, boolean isMono, String... additionalArguments) {
         if (isApplied(profile, image)) {
-            log.info(
-                    "Applying RGB balance correction to image {} with values R {}, G {}, B {}",
-                    image.getID(),
-                    profile.getRed(),
-                    profile.getGreen(),
-                    profile.getBlue());
-            apply(
-                    image,
-                    profile.getRed().intValue(),
-                    profile.getGreen().intValue(),
-                    profile.getBlue().intValue(),
-                    profile.getPurple().intValue() / 255D,
-                    profile.getPreserveDarkBackground());
+            PointOperationPipeline pipeline = new PointOperationPipeline();
+            addTo(pipeline, image, profile);
+            pipeline.run(image);
             return true;
         }
         return false;
@@ -52,6 +39,33 @@ public class RGBBalanceFilter implements LSWFilter {
                 || (profile.getBlue() != null && (!profile.getBlue().equals(BigDecimal.ZERO))));
     }
 
+    @Override
+    public List<Object> getParameters(Profile profile) {
+        return Arrays.asList(
+                profile.getRed(),
+                profile.getGreen(),
+                profile.getBlue(),
+                profile.getPurple(),
+                profile.getPreserveDarkBackground());
+    }
+
+    @Override
+    public void addTo(PointOperationPipeline pipeline, ImagePlus image, Profile profile) {
+        log.info(
+                "Applying RGB balance correction to image {} with values R {}, G {}, B {}",
+                image.getID(),
+                profile.getRed(),
+                profile.getGreen(),
+                profile.getBlue());
+        addTo(
+                pipeline,
+                profile.getRed().intValue(),
+                profile.getGreen().intValue(),
+                profile.getBlue().intValue(),
+                profile.getPurple().intValue() / 255D,
+                profile.getPreserveDarkBackground());
+    }
+
     public void apply(
             ImagePlus image,
             int amountRed,
@@ -59,73 +73,47 @@ public class RGBBalanceFilter implements LSWFilter {
             int amountBlue,
             double purpleReductionAmount,
             boolean preserveDarkBackground) {
-        ImageStack stack = image.getStack();
-        short[] redPixels =
-                (short[]) stack.getProcessor(Constants.RED_LAYER_INDEX).getPixels();
-        short[] greenPixels =
-                (short[]) stack.getProcessor(Constants.GREEN_LAYER_INDEX).getPixels();
-        short[] bluePixels =
-                (short[]) stack.getProcessor(Constants.BLUE_LAYER_INDEX).getPixels();
-        short[] redPixelsResult = new short[redPixels.length];
-        short[] greenPixelsResult = new short[greenPixels.length];
-        short[] bluePixelsResult = new short[bluePixels.length];
-
-        for (int i = 0; i < redPixels.length; i++) {
-            int currentRedValue = LswImageProcessingUtil.convertToUnsignedInt(redPixels[i]);
-            int currentGreenValue = LswImageProcessingUtil.convertToUnsignedInt(greenPixels[i]);
-            int currentBlueValue = LswImageProcessingUtil.convertToUnsignedInt(bluePixels[i]);
+        PointOperationPipeline pipeline = new PointOperationPipeline();
+        addTo(pipeline, amountRed, amountGreen, amountBlue, purpleReductionAmount, preserveDarkBackground);
+        pipeline.run(image);
+    }
 
-            int newRedValue = LswImageProcessingUtil.preventBackgroundFromLightingUp(
-                    currentRedValue, currentRedValue - (amountRed * STEP_SIZE), 0, preserveDarkBackground);
-            int newGreenValue = LswImageProcessingUtil.preventBackgroundFromLightingUp(
-                    currentGreenValue, currentGreenValue - (amountGreen * STEP_SIZE), 0, preserveDarkBackground);
-            int newBlueValue = LswImageProcessingUtil.preventBackgroundFromLightingUp(
-                    currentBlueValue, currentBlueValue - (amountBlue * STEP_SIZE), 0, preserveDarkBackground);
+    private void addTo(
+            PointOperationPipeline pipeline,
+            int amountRed,
+            int amountGreen,
+            int amountBlue,
+            double purpleReductionAmount,
+            boolean preserveDarkBackground) {
+        // The shifted values aren't clipped yet, so these tables are looked up by the pixel operation itself.
+        int[] redTable = createShiftTable(amountRed, preserveDarkBackground);
+        int[] greenTable = createShiftTable(amountGreen, preserveDarkBackground);
+        int[] blueTable = createShiftTable(amountBlue, preserveDarkBackground);
+        pipeline.addPixelOperation(rgb -> {
+            int newRedValue = redTable[rgb[0]];
+            int newGreenValue = greenTable[rgb[1]];
+            int newBlueValue = blueTable[rgb[2]];
 
             int desaturatedValue = (newRedValue + newGreenValue + newBlueValue) / 3;
             double purpleCorrectionFactor = purpleReductionAmount > 0D
                     ? getPurpleCorrectionFactor(newRedValue, newGreenValue, newBlueValue)
                     : 0D;
-            redPixelsResult[i] =
-                    getPixelResult(newRedValue, desaturatedValue, purpleCorrectionFactor, purpleReductionAmount);
-            greenPixelsResult[i] =
-                    getPixelResult(newGreenValue, desaturatedValue, purpleCorrectionFactor, purpleReductionAmount);
-            bluePixelsResult[i] =
-                    getPixelResult(newBlueValue, desaturatedValue, purpleCorrectionFactor, purpleReductionAmount);
-        }
+            rgb[0] = getPixelResult(newRedValue, desaturatedValue, purpleCorrectionFactor, purpleReductionAmount);
+            rgb[1] = getPixelResult(newGreenValue, desaturatedValue, purpleCorrectionFactor, purpleReductionAmount);
+            rgb[2] = getPixelResult(newBlueValue, desaturatedValue, purpleCorrectionFactor, purpleReductionAmount);
+        });
+    }
 
-        try {
-            try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
-                CompletableFuture<?>[] futures = new CompletableFuture[3];
-                futures[0] = CompletableFuture.runAsync(
-                        () -> {
-                            for (int i = 0; i < redPixels.length; i++) {
-                                redPixels[i] = redPixelsResult[i];
-                            }
-                        },
-                        executor);
-                futures[1] = CompletableFuture.runAsync(
-                        () -> {
-                            for (int i = 0; i < greenPixels.length; i++) {
-                                greenPixels[i] = greenPixelsResult[i];
-                            }
-                        },
-                        executor);
-                futures[2] = CompletableFuture.runAsync(
-                        () -> {
-                            for (int i = 0; i < bluePixels.length; i++) {
-                                bluePixels[i] = bluePixelsResult[i];
-                            }
-                        },
-                        executor);
-                CompletableFuture.allOf(futures).get();
-            }
-        } catch (InterruptedException | ExecutionException e) { // NOSONAR
-            throw new FilterException(e.getMessage());
+    private int[] createShiftTable(int amount, boolean preserveDarkBackground) {
+        int[] table = new int[PointOperationPipeline.LOOKUP_TABLE_SIZE];
+        for (int value = 0; value < table.length; value++) {
+            table[value] = LswImageProcessingUtil.preventBackgroundFromLightingUp(
+                    value, value - (amount * STEP_SIZE), 0, preserveDarkBackground);
         }
+        return table;
     }
 
-    private short getPixelResult(
+    private int getPixelResult(
             int newValueUnsignedInt,
             int desaturatedValue,
             double purpleCorrectionFactor,
@@ -134,10 +122,9 @@ public class RGBBalanceFilter implements LSWFilter {
                 ((desaturatedValue * purpleCorrectionFactor) + (newValueUnsignedInt * (1 - purpleCorrectionFactor)));
         int finalNewValue = (int)
                 ((purpleCorrectedValue * purpleReductionAmount) + (newValueUnsignedInt * (1 - purpleReductionAmount)));
-        return LswImageProcessingUtil.convertToShort(
-                finalNewValue > Constants.MAX_INT_VALUE
-                        ? Constants.MAX_INT_VALUE
-                        : (finalNewValue < 0 ? 0 : finalNewValue));
+        return finalNewValue > Constants.MAX_INT_VALUE
+                ? Constants.MAX_INT_VALUE
+                : (finalNewValue < 0 ? 0 : finalNewValue);
     }
 
     private double getPurpleCorrectionFactor(int redValue, int greenValue, int blueValue) {
@@ -1,15 +1,25 @@
 package nl.wilcokas.luckystackworker.filter;
 
+import static nl.wilcokas.luckystackworker.util.LswImageProcessingUtil.convertToShort;
+import static nl.wilcokas.luckystackworker.util.LswImageProcessingUtil.convertToUnsignedInt;
+
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.process.FloatProcessor;
-import ij.process.ImageProcessor;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import lombok.extern.slf4j.Slf4j;
+import nl.wilcokas.luckystackworker.constants.Constants;
 import nl.wilcokas.luckystackworker.exceptions.FilterException;
 import nl.wilcokas.luckystackworker.model.Profile;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 /**
@@ -26,106 +36,269 @@ import org.springframework.stereotype.Component;
  * Matlab code</a>
  *
  * <p>Originally written By Philippe Magiera and Carl Londahl. Adapted by Wilco Kasteleijn.
+ *
+ * <p>The rows of a channel are divided into bands that are each iterated by their own worker. Every iteration has two
+ * steps, updating u from the divergence of p and updating p from the gradient of u, and the workers wait for each other
+ * at a barrier after each step as both read the pixels of the neighbouring band. The iterations stop early once the
+ * mean change of u drops below a threshold. The scratch buffers are kept in a pool of bounded size, so repeated runs on
+ * images of the same size don't have to allocate them again. Only buffers of the size last returned are kept.
  */
 @Slf4j
 @Component
-public class ROFDenoiseFilter {
+public class ROFDenoiseFilter implements LSWFilter {
+
+    private static final float G = 1;
+    private static final float DT = 0.25f;
+
+    private final Deque<float[]> bufferPool = new ArrayDeque<>();
+    private long pooledBytes;
+
+    @Value("${denoise.rof.min.mean.change}")
+    private double minMeanChange;
+
+    @Value("${denoise.rof.buffer.pool.megabytes}")
+    private long bufferPoolMegabytes;
+
+    @Override
+    public boolean apply(ImagePlus image, Profile profile, boolean isMono, String... additionalArguments) {
+        if (isApplied(profile, image)) {
+            log.info(
+                    "Applying ROF denoising to image {} with theta {}, thetaGreen {}, thetaBlue {}, iterations {}, iterationsGreen {}, iterationsBlue {}",
+                    image.getID(),
+                    profile.getRofTheta(),
+                    profile.getRofThetaGreen(),
+                    profile.getRofThetaBlue(),
+                    profile.getRofIterations(),
+                    profile.getRofIterationsGreen(),
+                    profile.getRofIterationsBlue());
+            ImageStack stack = image.getStack();
+            applyToChannel(stack, profile.getRofTheta() * 10, profile.getRofIterations(), 1);
+            applyToChannel(stack, profile.getRofThetaGreen() * 10, profile.getRofIterationsGreen(), 2);
+            applyToChannel(stack, profile.getRofThetaBlue() * 10, profile.getRofIterationsBlue(), 3);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isSlow() {
+        return false;
+    }
+
+    @Override
+    public boolean isApplied(Profile profile, ImagePlus image) {
+        return Constants.DENOISE_ALGORITHM_ROF.equals(profile.getDenoiseAlgorithm2());
+    }
 
-    public boolean apply(ImagePlus image, Profile profile) {
-        log.info(
-                "Applying ROF denoising to image {} with theta {}, thetaGreen {}, thetaBlue {}, iterations {}, iterationsGreen {}, iterationsBlue {}",
-                image.getID(),
+    @Override
+    public List<Object> getParameters(Profile profile) {
+        return Arrays.asList(
+                profile.getDenoiseAlgorithm2(),
                 profile.getRofTheta(),
                 profile.getRofThetaGreen(),
                 profile.getRofThetaBlue(),
                 profile.getRofIterations(),
                 profile.getRofIterationsGreen(),
                 profile.getRofIterationsBlue());
-        ImageStack stack = image.getStack();
-        final float g = 1;
-        final float dt = 0.25f;
+    }
 
+    private void applyToChannel(ImageStack stack, final float theta, final int iterations, final int channel) {
+        if (iterations <= 0 || theta <= 0) {
+            return;
+        }
+        short[] pixels = (short[]) stack.getProcessor(channel).getPixels();
+        int w = stack.getWidth();
+        int h = stack.getHeight();
+        float[] f = borrowBuffer(w * h);
+        float[] u = borrowBuffer(w * h);
+        float[] px = borrowBuffer(w * h);
+        float[] py = borrowBuffer(w * h);
         try {
-            // Run every stack in a seperate thread to increase performance.
-            try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
-                CompletableFuture<?>[] futures = new CompletableFuture[3];
-                futures[0] = CompletableFuture.runAsync(
-                        () -> applyToChannel(stack, profile.getRofTheta() * 10, g, dt, profile.getRofIterations(), 1),
-                        executor);
-                futures[1] = CompletableFuture.runAsync(
-                        () -> applyToChannel(
-                                stack, profile.getRofThetaGreen() * 10, g, dt, profile.getRofIterationsGreen(), 2),
-                        executor);
-                futures[2] = CompletableFuture.runAsync(
-                        () -> applyToChannel(
-                                stack, profile.getRofThetaBlue() * 10, g, dt, profile.getRofIterationsBlue(), 3),
-                        executor);
-                CompletableFuture.allOf(futures).get();
+            for (int i = 0; i < pixels.length; i++) {
+                f[i] = convertToUnsignedInt(pixels[i]);
             }
-        } catch (InterruptedException | ExecutionException e) { // NOSONAR
-            throw new FilterException(e.getMessage());
+            Arrays.fill(px, 0f);
+            Arrays.fill(py, 0f);
+            int iterationsRun = new Solver(f, u, px, py, w, h, theta, iterations).solve();
+            log.info("ROF: channel {} ran {} of {} iterations", channel, iterationsRun, iterations);
+            for (int i = 0; i < pixels.length; i++) {
+                float value = Math.clamp(u[i] + 0.5f, 0f, Constants.MAX_INT_VALUE);
+                pixels[i] = convertToShort((long) value);
+            }
+        } finally {
+            returnBuffers(f, u, px, py);
         }
+    }
 
-        return true;
+    private synchronized float[] borrowBuffer(int size) {
+        Iterator<float[]> iterator = bufferPool.iterator();
+        while (iterator.hasNext()) {
+            float[] buffer = iterator.next();
+            if (buffer.length == size) {
+                iterator.remove();
+                pooledBytes -= getBytes(buffer);
+                return buffer;
+            }
+        }
+        return new float[size];
     }
 
-    private void applyToChannel(
-            ImageStack stack,
-            final float theta,
-            final float g,
-            final float dt,
-            final int iterations,
-            final int channel) {
-        ImageProcessor ip = stack.getProcessor(channel);
-        FloatProcessor fp = ip.toFloat(channel, null);
-
-        final int w = fp.getWidth();
-        final int h = fp.getHeight();
-        final float[] pixels = (float[]) fp.getPixels();
-
-        final float[] u = new float[w * h];
-        final float[] p = new float[w * h * 2];
-        final float[] d = new float[w * h * 2];
-        final float[] du = new float[w * h * 2];
-        final float[] div_p = new float[w * h];
-
-        for (int iteration = 0; iteration < iterations; iteration++) {
-            for (int i = 0; i < w; i++) {
-                for (int j = 1; j < h - 1; j++) div_p[i + w * j] = p[i + w * j] - p[i + w * (j - 1)];
-                // Handle boundaries
-                div_p[i] = p[i];
-                div_p[i + w * (h - 1)] = -p[i + w * (h - 1)];
+    private synchronized void returnBuffers(float[]... buffers) {
+        for (float[] buffer : buffers) {
+            // Buffers of another size won't be borrowed again until an image of that size comes along.
+            Iterator<float[]> iterator = bufferPool.iterator();
+            while (iterator.hasNext()) {
+                float[] pooledBuffer = iterator.next();
+                if (pooledBuffer.length != buffer.length) {
+                    iterator.remove();
+                    pooledBytes -= getBytes(pooledBuffer);
+                }
             }
+            bufferPool.addFirst(buffer);
+            pooledBytes += getBytes(buffer);
+        }
+        while (pooledBytes > bufferPoolMegabytes * 1024 * 1024) {
+            pooledBytes -= getBytes(bufferPool.removeLast());
+        }
+    }
+
+    private static long getBytes(float[] buffer) {
+        return (long) buffer.length * Float.BYTES;
+    }
 
-            for (int j = 0; j < h; j++) {
-                for (int i = 1; i < w - 1; i++) div_p[i + w * j] += p[i + w * (j + h)] - p[i - 1 + w * (j + h)];
-                // Handle boundaries
-                div_p[w * j] = p[w * (j + h)];
-                div_p[w - 1 + w * j] = -p[w - 1 + w * (j + h)];
+    /**
+     * Runs the fixed point iterations of one channel. p is kept as its vertical (px) and horizontal (py) components,
+     * the derivatives and the denominator are computed on the fly per pixel so they need no buffers of their own.
+     */
+    private class Solver {
+
+        private final float[] f;
+        private final float[] u;
+        private final float[] px;
+        private final float[] py;
+        private final int w;
+        private final int h;
+        private final float theta;
+        private final float step;
+        private final float stepG;
+        private final int iterations;
+        private final int numberOfBands;
+        private final double[] bandChanges;
+        private final CyclicBarrier uUpdated;
+        private final CyclicBarrier pUpdated;
+        private int iterationsRun;
+        private boolean stopped;
+
+        Solver(float[] f, float[] u, float[] px, float[] py, int w, int h, float theta, int iterations) {
+            this.f = f;
+            this.u = u;
+            this.px = px;
+            this.py = py;
+            this.w = w;
+            this.h = h;
+            this.theta = theta;
+            this.step = DT / theta;
+            this.stepG = DT / theta / G;
+            this.iterations = iterations;
+            this.numberOfBands = Math.max(1, Math.min(h, Runtime.getRuntime().availableProcessors()));
+            this.bandChanges = new double[numberOfBands];
+            this.uUpdated = new CyclicBarrier(numberOfBands, this::checkConvergence);
+            this.pUpdated = new CyclicBarrier(numberOfBands);
+        }
+
+        int solve() {
+            try {
+                try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                    CompletableFuture<?>[] futures = new CompletableFuture[numberOfBands];
+                    for (int band = 0; band < numberOfBands; band++) {
+                        int bandIndex = band;
+                        int from = (int) ((long) h * band / numberOfBands);
+                        int to = (int) ((long) h * (band + 1) / numberOfBands);
+                        futures[band] = CompletableFuture.runAsync(() -> iterateBand(bandIndex, from, to), executor);
+                    }
+                    CompletableFuture.allOf(futures).get();
+                }
+            } catch (InterruptedException | ExecutionException e) { // NOSONAR
+                throw new FilterException(e.getMessage());
             }
+            return iterationsRun;
+        }
 
-            // Update u
-            for (int j = 0; j < h; j++)
-                for (int i = 0; i < w; i++) u[i + w * j] = pixels[i + w * j] - theta * div_p[i + w * j];
+        private void iterateBand(int band, int from, int to) {
+            try {
+                while (true) {
+                    bandChanges[band] = updateU(from, to);
+                    uUpdated.await();
+                    if (stopped) {
+                        return;
+                    }
+                    updateP(from, to);
+                    pUpdated.await();
+                }
+            } catch (InterruptedException | BrokenBarrierException e) { // NOSONAR
+                throw new FilterException(e.getMessage());
+            } catch (RuntimeException e) {
+                // Release the other workers, otherwise they would wait at the barrier forever.
+                uUpdated.reset();
+                pUpdated.reset();
+                throw e;
+            }
+        }
 
-            // Calculate forward derivatives
-            for (int j = 0; j < h; j++)
+        /**
+         * Runs when all bands have updated u, before any of them continues.
+         */
+        private void checkConvergence() {
+            iterationsRun++;
+            double meanChange = Arrays.stream(bandChanges).sum() / (w * h);
+            stopped = iterationsRun >= iterations || (iterationsRun > 1 && meanChange < minMeanChange);
+        }
+
+        /**
+         * u = f - theta * div(p), returns the total absolute change of u in the band.
+         */
+        private double updateU(int from, int to) {
+            double change = 0;
+            for (int j = from; j < to; j++) {
                 for (int i = 0; i < w; i++) {
-                    if (i < w - 1) du[i + w * (j + h)] = u[i + 1 + w * j] - u[i + w * j];
-                    if (j < h - 1) du[i + w * j] = u[i + w * (j + 1)] - u[i + w * j];
+                    int k = i + w * j;
+                    float divP;
+                    if (j == h - 1) {
+                        divP = -px[k];
+                    } else if (j == 0) {
+                        divP = px[k];
+                    } else {
+                        divP = px[k] - px[k - w];
+                    }
+                    if (i == w - 1) {
+                        divP = -py[k];
+                    } else if (i == 0) {
+                        divP = py[k];
+                    } else {
+                        divP += py[k] - py[k - 1];
+                    }
+                    float value = f[k] - theta * divP;
+                    change += Math.abs(value - u[k]);
+                    u[k] = value;
                 }
+            }
+            return change;
+        }
 
-            // Iterate
-            for (int j = 0; j < h; j++)
+        /**
+         * p = (p - dt / theta * grad(u)) / (1 + dt / theta / g * |grad(u)|)
+         */
+        private void updateP(int from, int to) {
+            for (int j = from; j < to; j++) {
                 for (int i = 0; i < w; i++) {
-                    final float du1 = du[i + w * j], du2 = du[i + w * (j + h)];
-                    d[i + w * j] = 1 + dt / theta / g * Math.abs((float) Math.sqrt(du1 * du1 + du2 * du2));
-                    d[i + w * (j + h)] = 1 + dt / theta / g * Math.abs((float) Math.sqrt(du1 * du1 + du2 * du2));
-                    p[i + w * j] = (p[i + w * j] - dt / theta * du[i + w * j]) / d[i + w * j];
-                    p[i + w * (j + h)] = (p[i + w * (j + h)] - dt / theta * du[i + w * (j + h)]) / d[i + w * (j + h)];
+                    int k = i + w * j;
+                    float du1 = j < h - 1 ? u[k + w] - u[k] : 0f;
+                    float du2 = i < w - 1 ? u[k + 1] - u[k] : 0f;
+                    float d = 1 + stepG * Math.abs((float) Math.sqrt(du1 * du1 + du2 * du2));
+                    px[k] = (px[k] - step * du1) / d;
+                    py[k] = (py[k] - step * du2) / d;
                 }
+            }
         }
-        System.arraycopy(u, 0, pixels, 0, w * h);
-        ip.setPixels(channel, fp);
     }
 }
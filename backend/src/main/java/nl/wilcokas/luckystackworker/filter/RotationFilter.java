@@ -2,6 +2,8 @@ package nl.wilcokas.luckystackworker.filter;
 
 import ij.ImagePlus;
 import ij.ImageStack;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
@@ -44,4 +46,9 @@ public class RotationFilter implements LSWFilter {
     public boolean isApplied(Profile profile, ImagePlus image) {
         return profile.getRotationAngle() != 0.0;
     }
+
+    @Override
+    public List<Object> getParameters(Profile profile) {
+        return Arrays.asList(profile.getRotationAngle());
+    }
 }
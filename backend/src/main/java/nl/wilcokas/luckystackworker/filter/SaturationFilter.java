@@ -1,24 +1,25 @@
 package nl.wilcokas.luckystackworker.filter;
 
 import ij.ImagePlus;
-import ij.ImageStack;
-import ij.process.FloatProcessor;
-import ij.process.ImageProcessor;
+import java.util.Arrays;
+import java.util.List;
 import lombok.extern.slf4j.Slf4j;
 import nl.wilcokas.luckystackworker.filter.settings.LSWSharpenMode;
 import nl.wilcokas.luckystackworker.model.Profile;
+import nl.wilcokas.luckystackworker.util.LswHslUtil;
 import nl.wilcokas.luckystackworker.util.LswImageProcessingUtil;
 import org.springframework.stereotype.Component;
 
 @Slf4j
 @Component
-public class SaturationFilter implements LSWFilter {
+public class SaturationFilter implements PointOperationFilter {
 
     @Override
     public boolean apply(ImagePlus image, Profile profile, boolean isMono, String... additionalArguments) {
         if (isApplied(profile, image)) {
-            log.info("Applying saturation increase with factor {} to image {}", profile.getSaturation(), image.getID());
-            apply(image, profile);
+            PointOperationPipeline pipeline = new PointOperationPipeline();
+            addTo(pipeline, image, profile);
+            pipeline.run(image);
             return true;
         } else {
             log.debug("Attemping to apply saturation increase to a non RGB image {}", image.getFileInfo());
@@ -36,50 +37,44 @@ public class SaturationFilter implements LSWFilter {
         return profile.getSaturation() != null && (LswImageProcessingUtil.validateRGBStack(image));
     }
 
-    private void apply(ImagePlus image, Profile profile) {
-        ImageStack stack = image.getStack();
-        ImageProcessor ipRed = stack.getProcessor(1);
-        ImageProcessor ipGreen = stack.getProcessor(2);
-        ImageProcessor ipBlue = stack.getProcessor(3);
+    @Override
+    public List<Object> getParameters(Profile profile) {
+        return Arrays.asList(
+                profile.getSaturation(),
+                profile.getSharpenMode(),
+                profile.getLuminanceIncludeColor());
+    }
 
-        FloatProcessor fpRed = ipRed.toFloat(1, null);
-        FloatProcessor fpGreen = ipGreen.toFloat(2, null);
-        FloatProcessor fpBlue = ipBlue.toFloat(3, null);
-        fpRed.snapshot();
-        fpGreen.snapshot();
-        fpBlue.snapshot();
-        float[] pixelsRed = (float[]) fpRed.getPixels();
-        float[] pixelsGreen = (float[]) fpGreen.getPixels();
-        float[] pixelsBlue = (float[]) fpBlue.getPixels();
+    @Override
+    public void addTo(PointOperationPipeline pipeline, ImagePlus image, Profile profile) {
+        log.info("Applying saturation increase with factor {} to image {}", profile.getSaturation(), image.getID());
+        LSWSharpenMode mode = LSWSharpenMode.valueOf(profile.getSharpenMode());
+        boolean includeColor = mode == LSWSharpenMode.RGB || profile.getLuminanceIncludeColor();
+        float saturation = profile.getSaturation().floatValue();
+        pipeline.addPixelOperation(() -> {
+            float[] hsl = new float[3];
+            float[] result = new float[3];
+            return rgb -> {
+                LswHslUtil.rgbToHsl(rgb[0], rgb[1], rgb[2], true, true, true, includeColor, mode, hsl);
+                LswHslUtil.hslToRgb(hsl[0], hsl[1] * saturation, hsl[2], 0f, result);
+                rgb[0] = toUnsignedValue(result[0]);
+                rgb[1] = toUnsignedValue(result[1]);
+                rgb[2] = toUnsignedValue(result[2]);
+            };
+        });
+    }
 
-        float[] pixelsHue = new float[pixelsRed.length];
-        float[] pixelsSat = new float[pixelsRed.length];
-        float[] pixelsLum = new float[pixelsRed.length];
-        for (int i = 0; i < pixelsRed.length; i++) {
-            LSWSharpenMode mode = LSWSharpenMode.valueOf(profile.getSharpenMode());
-            float[] hsl = LswImageProcessingUtil.rgbToHsl(
-                    pixelsRed[i],
-                    pixelsGreen[i],
-                    pixelsBlue[i],
-                    true,
-                    true,
-                    true,
-                    mode == LSWSharpenMode.RGB || profile.getLuminanceIncludeColor(),
-                    mode);
-            pixelsHue[i] = hsl[0];
-            pixelsSat[i] = hsl[1] * profile.getSaturation().floatValue();
-            pixelsLum[i] = hsl[2];
+    /**
+     * Rounds and clips the same way as ImageJ does when float pixels are put back into a 16-bit layer.
+     */
+    private int toUnsignedValue(float value) {
+        float roundedValue = value + 0.5f;
+        if (roundedValue < 0f) {
+            return 0;
         }
-
-        for (int i = 0; i < pixelsRed.length; i++) {
-            float[] rgb = LswImageProcessingUtil.hslToRgb(pixelsHue[i], pixelsSat[i], pixelsLum[i], 0f);
-            pixelsRed[i] = rgb[0];
-            pixelsGreen[i] = rgb[1];
-            pixelsBlue[i] = rgb[2];
+        if (roundedValue > 65535f) {
+            return 65535;
         }
-
-        ipRed.setPixels(1, fpRed);
-        ipGreen.setPixels(2, fpGreen);
-        ipBlue.setPixels(3, fpBlue);
+        return (int) roundedValue;
     }
 }
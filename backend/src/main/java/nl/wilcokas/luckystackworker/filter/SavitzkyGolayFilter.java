@@ -3,6 +3,8 @@ package nl.wilcokas.luckystackworker.filter;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.process.ImageProcessor;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
@@ -26,14 +28,6 @@ public class SavitzkyGolayFilter implements LSWFilter {
         -4, -22, -29, -22, -4, //
     };
 
-    private static final int[][] RADIUS_25_OFFSETS = { //
-        {-2, -2}, {-1, -2}, {0, -2}, {1, -2}, {2, -2}, //
-        {-2, -1}, {-1, -1}, {0, -1}, {1, -1}, {2, -1}, //
-        {-2, 0}, {-1, 0}, {0, 0}, {1, 0}, {2, 0}, //
-        {-2, 1}, {-1, 1}, {0, 1}, {1, 1}, {2, 1}, //
-        {-2, 2}, {-1, 2}, {0, 2}, {1, 2}, {2, 2}, //
-    };
-
     private static final int[] RADIUS_49_FACTORS = { //
         0, -14, -33, -39, -33, -14, 0, //
         -14, -22, 59, 86, 59, -22, -14, //
@@ -44,16 +38,6 @@ public class SavitzkyGolayFilter implements LSWFilter {
         0, -14, -33, -39, -33, -14, 0, //
     };
 
-    private static final int[][] RADIUS_49_OFFSETS = { //
-        {-3, -3}, {-2, -3}, {-1, -3}, {0, -3}, {1, -3}, {2, -3}, {3, -3}, //
-        {-3, -2}, {-2, -2}, {-1, -2}, {0, -2}, {1, -2}, {2, -2}, {3, -2}, //
-        {-3, -1}, {-2, -1}, {-1, -1}, {0, -1}, {1, -1}, {2, -1}, {3, -1}, //
-        {-3, 0}, {-2, 0}, {-1, 0}, {0, 0}, {1, 0}, {2, 0}, {3, 0}, //
-        {-3, 1}, {-2, 1}, {-1, 1}, {0, 1}, {1, 1}, {2, 1}, {3, 1}, //
-        {-3, 2}, {-2, 2}, {-1, 2}, {0, 2}, {1, 2}, {2, 2}, {3, 2}, //
-        {-3, 3}, {-2, 3}, {-1, 3}, {0, 3}, {1, 3}, {2, 3}, {3, 3}, //
-    };
-
     private static final int[] RADIUS_81_FACTORS = { //
         0, -5, -63, -106, -120, -106, -63, -5, 0, //
         -5, -96, -41, 71, 105, 71, -41, -96, -5, //
@@ -66,18 +50,6 @@ public class SavitzkyGolayFilter implements LSWFilter {
         0, -5, -63, -106, -120, -106, -63, -5, 0
     };
 
-    private static final int[][] RADIUS_81_OFFSETS = { //
-        {-4, -4}, {-3, -4}, {-2, -4}, {-1, -4}, {0, -4}, {1, -4}, {2, -4}, {3, -4}, {4, -4}, //
-        {-4, -3}, {-3, -3}, {-2, -3}, {-1, -3}, {0, -3}, {1, -3}, {2, -3}, {3, -3}, {4, -3}, //
-        {-4, -2}, {-3, -2}, {-2, -2}, {-1, -2}, {0, -2}, {1, -2}, {2, -2}, {3, -2}, {4, -2}, //
-        {-4, -1}, {-3, -1}, {-2, -1}, {-1, -1}, {0, -1}, {1, -1}, {2, -1}, {3, -1}, {4, -1}, //
-        {-4, 0}, {-3, 0}, {-2, 0}, {-1, 0}, {0, 0}, {1, 0}, {2, 0}, {3, 0}, {4, 0}, //
-        {-4, 1}, {-3, 1}, {-2, 1}, {-1, 1}, {0, 1}, {1, 1}, {2, 1}, {3, 1}, {4, 1}, //
-        {-4, 2}, {-3, 2}, {-2, 2}, {-1, 2}, {0, 2}, {1, 2}, {2, 2}, {3, 2}, {4, 2}, //
-        {-4, 3}, {-3, 3}, {-2, 3}, {-1, 3}, {0, 3}, {1, 3}, {2, 3}, {3, 3}, {4, 3}, //
-        {-4, 4}, {-3, 4}, {-2, 4}, {-1, 4}, {0, 4}, {1, 4}, {2, 4}, {3, 4}, {4, 4} //
-    };
-
     private static final int[] RADIUS_121_FACTORS = { //
         0, 0, -18, -81, -119, -132, -119, -81, -18, 0, 0, //
         0, -39, -120, -42, 20, 40, 20, -42, -120, -39, 0, //
@@ -92,20 +64,6 @@ public class SavitzkyGolayFilter implements LSWFilter {
         0, 0, -18, -81, -119, -132, -119, -81, -18, 0, 0, //
     };
 
-    private static final int[][] RADIUS_121_OFFSETS = { //
-        {-5, -5}, {-4, -5}, {-3, -5}, {-2, -5}, {-1, -5}, {0, -5}, {1, -5}, {2, -5}, {3, -5}, {4, -5}, {5, -5}, //
-        {-5, -4}, {-4, -4}, {-3, -4}, {-2, -4}, {-1, -4}, {0, -4}, {1, -4}, {2, -4}, {3, -4}, {4, -4}, {5, -4}, //
-        {-5, -3}, {-4, -3}, {-3, -3}, {-2, -3}, {-1, -3}, {0, -3}, {1, -3}, {2, -3}, {3, -3}, {4, -3}, {5, -3}, //
-        {-5, -2}, {-4, -2}, {-3, -2}, {-2, -2}, {-1, -2}, {0, -2}, {1, -2}, {2, -2}, {3, -2}, {4, -2}, {5, -2}, //
-        {-5, -1}, {-4, -1}, {-3, -1}, {-2, -1}, {-1, -1}, {0, -1}, {1, -1}, {2, -1}, {3, -1}, {4, -1}, {5, -1}, //
-        {-5, 0}, {-4, 0}, {-3, 0}, {-2, 0}, {-1, 0}, {0, 0}, {1, 0}, {2, 0}, {3, 0}, {4, 0}, {5, 0}, //
-        {-5, 1}, {-4, 1}, {-3, 1}, {-2, 1}, {-1, 1}, {0, 1}, {1, 1}, {2, 1}, {3, 1}, {4, 1}, {5, 1}, //
-        {-5, 2}, {-4, 2}, {-3, 2}, {-2, 2}, {-1, 2}, {0, 2}, {1, 2}, {2, 2}, {3, 2}, {4, 2}, {5, 2}, //
-        {-5, 3}, {-4, 3}, {-3, 3}, {-2, 3}, {-1, 3}, {0, 3}, {1, 3}, {2, 3}, {3, 3}, {4, 3}, {5, 3}, //
-        {-5, 4}, {-4, 4}, {-3, 4}, {-2, 4}, {-1, 4}, {0, 4}, {1, 4}, {2, 4}, {3, 4}, {4, 4}, {5, 4}, //
-        {-5, 5}, {-4, 5}, {-3, 5}, {-2, 5}, {-1, 5}, {0, 5}, {1, 5}, {2, 5}, {3, 5}, {4, 5}, {5, 5}, //
-    };
-
     private static final int[] RADIUS_169_FACTORS = { //
         0, 0, 0, -30, -79, -107, -117, -107, -79, -30, 0, 0, 0, //
         0, -2, -71, -101, -45, -12, -1, -12, -45, -101, -71, -2, 0, //
@@ -122,50 +80,18 @@ public class SavitzkyGolayFilter implements LSWFilter {
         0, 0, 0, -30, -79, -107, -117, -107, -79, -30, 0, 0, 0
     };
 
-    private static final int[][] RADIUS_169_OFFSETS = { //
-        {-6, -6}, {-5, -6}, {-4, -6}, {-3, -6}, {-2, -6}, {-1, -6}, {0, -6}, {1, -6}, {2, -6}, {3, -6}, {4, -6},
-        {5, -6}, {6, -6}, //
-        {-6, -5}, {-5, -5}, {-4, -5}, {-3, -5}, {-2, -5}, {-1, -5}, {0, -5}, {1, -5}, {2, -5}, {3, -5}, {4, -5},
-        {5, -5}, {6, -5}, //
-        {-6, -4}, {-5, -4}, {-4, -4}, {-3, -4}, {-2, -4}, {-1, -4}, {0, -4}, {1, -4}, {2, -4}, {3, -4}, {4, -4},
-        {5, -4}, {6, -4}, //
-        {-6, -3}, {-5, -3}, {-4, -3}, {-3, -3}, {-2, -3}, {-1, -3}, {0, -3}, {1, -3}, {2, -3}, {3, -3}, {4, -3},
-        {5, -3}, {6, -3}, //
-        {-6, -2}, {-5, -2}, {-4, -2}, {-3, -2}, {-2, -2}, {-1, -2}, {0, -2}, {1, -2}, {2, -2}, {3, -2}, {4, -2},
-        {5, -2}, {6, -2}, //
-        {-6, -1}, {-5, -1}, {-4, -1}, {-3, -1}, {-2, -1}, {-1, -1}, {0, -1}, {1, -1}, {2, -1}, {3, -1}, {4, -1},
-        {5, -1}, {6, -1}, //
-        {-6, 0}, {-5, 0}, {-4, 0}, {-3, 0}, {-2, 0}, {-1, 0}, {0, 0}, {1, 0}, {2, 0}, {3, 0}, {4, 0}, {5, 0},
-        {6, 0}, //
-        {-6, 1}, {-5, 1}, {-4, 1}, {-3, 1}, {-2, 1}, {-1, 1}, {0, 1}, {1, 1}, {2, 1}, {3, 1}, {4, 1}, {5, 1},
-        {6, 1}, //
-        {-6, 2}, {-5, 2}, {-4, 2}, {-3, 2}, {-2, 2}, {-1, 2}, {0, 2}, {1, 2}, {2, 2}, {3, 2}, {4, 2}, {5, 2},
-        {6, 2}, //
-        {-6, 3}, {-5, 3}, {-4, 3}, {-3, 3}, {-2, 3}, {-1, 3}, {0, 3}, {1, 3}, {2, 3}, {3, 3}, {4, 3}, {5, 3},
-        {6, 3}, //
-        {-6, 4}, {-5, 4}, {-4, 4}, {-3, 4}, {-2, 4}, {-1, 4}, {0, 4}, {1, 4}, {2, 4}, {3, 4}, {4, 4}, {5, 4},
-        {6, 4}, //
-        {-6, 5}, {-5, 5}, {-4, 5}, {-3, 5}, {-2, 5}, {-1, 5}, {0, 5}, {1, 5}, {2, 5}, {3, 5}, {4, 5}, {5, 5},
-        {6, 5}, //
-        {-6, 6}, {-5, 6}, {-4, 6}, {-3, 6}, {-2, 6}, {-1, 6}, {0, 6}, {1, 6}, {2, 6}, {3, 6}, {4, 6}, {5, 6}, {6, 6} //
-    };
-    private static final int RADIUS_25_CENTER = 12;
     private static final int RADIUS_25_DIVISOR = 3181;
     private static final int RADIUS_25_ROWLENGTH = 5;
 
-    private static final int RADIUS_49_CENTER = 24;
     private static final int RADIUS_49_DIVISOR = 5181;
     private static final int RADIUS_49_ROWLENGTH = 7;
 
-    private static final int RADIUS_81_CENTER = 40;
     private static final int RADIUS_81_DIVISOR = 21010;
     private static final int RADIUS_81_ROWLENGTH = 9;
 
-    private static final int RADIUS_121_CENTER = 60;
     private static final int RADIUS_121_DIVISOR = 29989;
     private static final int RADIUS_121_ROWLENGTH = 11;
 
-    private static final int RADIUS_169_CENTER = 84;
     private static final int RADIUS_169_DIVISOR = 33721;
     private static final int RADIUS_169_ROWLENGTH = 13;
 
@@ -189,6 +115,21 @@ public class SavitzkyGolayFilter implements LSWFilter {
         return Constants.DENOISE_ALGORITHM_SAVGOLAY.equals(profile.getDenoiseAlgorithm2());
     }
 
+    @Override
+    public List<Object> getParameters(Profile profile) {
+        return Arrays.asList(
+                profile.getDenoiseAlgorithm2(),
+                profile.getSavitzkyGolaySize(),
+                profile.getSavitzkyGolaySizeGreen(),
+                profile.getSavitzkyGolaySizeBlue(),
+                profile.getSavitzkyGolayAmount(),
+                profile.getSavitzkyGolayAmountGreen(),
+                profile.getSavitzkyGolayAmountBlue(),
+                profile.getSavitzkyGolayIterations(),
+                profile.getSavitzkyGolayIterationsGreen(),
+                profile.getSavitzkyGolayIterationsBlue());
+    }
+
     private void apply(ImagePlus image, Profile profile) {
         ImageStack stack = image.getStack();
         try {
@@ -251,9 +192,7 @@ public class SavitzkyGolayFilter implements LSWFilter {
     private SavitzkyGolayParameters getSavitzkyGolayParameters(int size, int amount, int iterations) {
         SavitzkyGolayRadius radius = SavitzkyGolayRadius.valueOf(size);
         int[] radiusFactors = null;
-        int[][] radiusOffsets = null;
         int radiusDivisor = -1;
-        int radiusCenter = -1;
         int radiusRowLength = -1;
         switch (radius) {
             case OFF -> {
@@ -261,108 +200,131 @@ public class SavitzkyGolayFilter implements LSWFilter {
             }
             case RADIUS_49 -> {
                 radiusFactors = RADIUS_49_FACTORS;
-                radiusOffsets = RADIUS_49_OFFSETS;
                 radiusDivisor = RADIUS_49_DIVISOR;
-                radiusCenter = RADIUS_49_CENTER;
                 radiusRowLength = RADIUS_49_ROWLENGTH;
             }
             case RADIUS_81 -> {
                 radiusFactors = RADIUS_81_FACTORS;
-                radiusOffsets = RADIUS_81_OFFSETS;
                 radiusDivisor = RADIUS_81_DIVISOR;
-                radiusCenter = RADIUS_81_CENTER;
                 radiusRowLength = RADIUS_81_ROWLENGTH;
             }
             case RADIUS_121 -> {
                 radiusFactors = RADIUS_121_FACTORS;
-                radiusOffsets = RADIUS_121_OFFSETS;
                 radiusDivisor = RADIUS_121_DIVISOR;
-                radiusCenter = RADIUS_121_CENTER;
                 radiusRowLength = RADIUS_121_ROWLENGTH;
             }
             case RADIUS_169 -> {
                 radiusFactors = RADIUS_169_FACTORS;
-                radiusOffsets = RADIUS_169_OFFSETS;
                 radiusDivisor = RADIUS_169_DIVISOR;
-                radiusCenter = RADIUS_169_CENTER;
                 radiusRowLength = RADIUS_169_ROWLENGTH;
             }
             default -> { // Also RADIUS_25
                 radiusFactors = RADIUS_25_FACTORS;
-                radiusOffsets = RADIUS_25_OFFSETS;
                 radiusDivisor = RADIUS_25_DIVISOR;
-                radiusCenter = RADIUS_25_CENTER;
                 radiusRowLength = RADIUS_25_ROWLENGTH;
             }
         }
-        return new SavitzkyGolayParameters(
-                iterations, amount, radiusFactors, radiusOffsets, radiusDivisor, radiusCenter, radiusRowLength);
+        return new SavitzkyGolayParameters(iterations, amount, radiusFactors, radiusDivisor, radiusRowLength);
     }
 
     private void applySavitzkyGolayToLayer(ImagePlus image, ImageProcessor p, SavitzkyGolayParameters parameters) {
+        int width = image.getWidth();
+        short[] pixels = (short[]) p.getPixels();
+        int height = pixels.length / width;
+        FlatKernel kernel = FlatKernel.of(parameters, width);
+        short[] input = pixels;
+        short[] output = new short[pixels.length];
         for (int it = 0; it < parameters.iterations; it++) {
-            short[] pixels = (short[]) p.getPixels();
-            short[] pixelsResult = new short[pixels.length];
-            for (int i = 0; i < pixels.length; i++) {
-                long newValueUnsignedInt = getPixelValueUnsignedInt(
-                        pixels,
-                        i,
-                        image.getWidth(),
-                        parameters.radiusFactors,
-                        parameters.radiusOffsets,
-                        parameters.radiusDivisor,
-                        parameters.radiusCenter,
-                        parameters.radiusRowLength,
-                        parameters.amount);
-                pixelsResult[i] = LswImageProcessingUtil.convertToShort(
-                        newValueUnsignedInt > Constants.MAX_INT_VALUE
-                                ? Constants.MAX_INT_VALUE
-                                : (newValueUnsignedInt < 0 ? 0 : newValueUnsignedInt));
-            }
-            for (int i = 0; i < pixels.length; i++) {
-                pixels[i] = pixelsResult[i];
-            }
+            short[] iterationInput = input;
+            short[] iterationOutput = output;
+            LswImageProcessingUtil.runInBands(
+                    height,
+                    (from, to) -> filterRange(
+                            iterationInput, iterationOutput, from * width, to * width, kernel, parameters));
+            output = input;
+            input = iterationOutput;
+        }
+        if (input != pixels) {
+            System.arraycopy(input, 0, pixels, 0, pixels.length);
         }
     }
 
-    private long getPixelValueUnsignedInt(
-            short[] pixels,
-            final int position,
-            final int width,
-            int[] radiusFactors,
-            int[][] radiusOffsets,
-            double radiusDivisor,
-            int radiusCenter,
-            int radiusRowLength,
-            double amount) {
-        final int yPosition = position / width;
-        final int xPosition = position % width;
-        double multipliedTotal = 0;
-        int pixelValueUnsignedInt = LswImageProcessingUtil.convertToUnsignedInt(pixels[position]);
-        for (int i = 0; i < radiusOffsets.length; i++) {
-            int offsetValueUnsignedInt = getOffsetValueUnsignedInt(
-                    pixels, xPosition + radiusOffsets[i][0], yPosition + radiusOffsets[i][1], width);
-            int factor = radiusFactors[radiusCenter + (radiusOffsets[i][1] * radiusRowLength) + radiusOffsets[i][0]];
-            multipliedTotal += offsetValueUnsignedInt * factor;
+    /**
+     * Filters the pixels from position from up to position to. Neighbors that fall outside a row continue on the
+     * previous or next row, only those before the first or after the last pixel count as 0. So the pixels far enough
+     * from the start and end of the image need no bounds checks at all.
+     */
+    private void filterRange(
+            short[] input, short[] output, int from, int to, FlatKernel kernel, SavitzkyGolayParameters parameters) {
+        int interiorFrom = Math.clamp(kernel.reach(), from, to);
+        int interiorTo = Math.clamp((long) input.length - kernel.reach(), interiorFrom, to);
+        int[] offsets = kernel.offsets();
+        int[] factors = kernel.factors();
+        for (int position = from; position < interiorFrom; position++) {
+            output[position] = getFilteredValue(input, position, getBorderTotal(input, position, kernel), parameters);
+        }
+        for (int position = interiorFrom; position < interiorTo; position++) {
+            // The products are integers and their sum stays far below 2^53, so adding them up as a long gives exactly
+            // the same total as adding them up as a double.
+            long total = 0;
+            for (int k = 0; k < offsets.length; k++) {
+                total += LswImageProcessingUtil.convertToUnsignedInt(input[position + offsets[k]]) * factors[k];
+            }
+            output[position] = getFilteredValue(input, position, total, parameters);
+        }
+        for (int position = interiorTo; position < to; position++) {
+            output[position] = getFilteredValue(input, position, getBorderTotal(input, position, kernel), parameters);
         }
-        return Math.round(((amount / 100) * (multipliedTotal / radiusDivisor))
-                + (((100 - amount) / 100) * pixelValueUnsignedInt));
     }
 
-    private int getOffsetValueUnsignedInt(short[] pixels, final int xPosition, final int yPosition, final int width) {
-        int position = (yPosition * width) + xPosition;
-        if (position < 0 || position >= pixels.length) {
-            return 0;
+    private long getBorderTotal(short[] input, int position, FlatKernel kernel) {
+        long total = 0;
+        for (int k = 0; k < kernel.offsets().length; k++) {
+            int neighbor = position + kernel.offsets()[k];
+            if (neighbor >= 0 && neighbor < input.length) {
+                total += LswImageProcessingUtil.convertToUnsignedInt(input[neighbor]) * kernel.factors()[k];
+            }
         }
-        return LswImageProcessingUtil.convertToUnsignedInt(pixels[position]);
+        return total;
+    }
+
+    private short getFilteredValue(short[] input, int position, long total, SavitzkyGolayParameters parameters) {
+        double amount = parameters.amount;
+        double multipliedTotal = total;
+        double radiusDivisor = parameters.radiusDivisor;
+        int pixelValueUnsignedInt = LswImageProcessingUtil.convertToUnsignedInt(input[position]);
+        long newValueUnsignedInt = Math.round(((amount / 100) * (multipliedTotal / radiusDivisor))
+                + (((100 - amount) / 100) * pixelValueUnsignedInt));
+        return LswImageProcessingUtil.convertToShort(
+                newValueUnsignedInt > Constants.MAX_INT_VALUE
+                        ? Constants.MAX_INT_VALUE
+                        : (newValueUnsignedInt < 0 ? 0 : newValueUnsignedInt));
     }
 
     private record SavitzkyGolayParameters(
-            int iterations,
-            int amount,
-            int[] radiusFactors,
-            int[][] radiusOffsets,
-            int radiusDivisor,
-            int radiusCenter,
-            int radiusRowLength) {}
+            int iterations, int amount, int[] radiusFactors, int radiusDivisor, int radiusRowLength) {}
+
+    /**
+     * The non-zero factors of a kernel with their offsets in the pixel array, and the largest offset.
+     */
+    private record FlatKernel(int[] offsets, int[] factors, int reach) {
+
+        static FlatKernel of(SavitzkyGolayParameters parameters, int width) {
+            int rowLength = parameters.radiusRowLength();
+            int radius = rowLength / 2;
+            int[] radiusFactors = parameters.radiusFactors();
+            int size = (int) Arrays.stream(radiusFactors).filter(factor -> factor != 0).count();
+            int[] offsets = new int[size];
+            int[] factors = new int[size];
+            int k = 0;
+            for (int i = 0; i < radiusFactors.length; i++) {
+                if (radiusFactors[i] != 0) {
+                    offsets[k] = (i / rowLength - radius) * width + (i % rowLength - radius);
+                    factors[k] = radiusFactors[i];
+                    k++;
+                }
+            }
+            return new FlatKernel(offsets, factors, radius * width + radius);
+        }
+    }
 }
@@ -1,6 +1,8 @@
 package nl.wilcokas.luckystackworker.filter;
 
 import ij.ImagePlus;
+import java.util.Arrays;
+import java.util.List;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import nl.wilcokas.luckystackworker.constants.Constants;
@@ -37,4 +39,19 @@ public class SigmaDenoise1Filter implements LSWFilter {
     public boolean isApplied(Profile profile, ImagePlus image) {
         return Constants.DENOISE_ALGORITHM_SIGMA1.equals(profile.getDenoiseAlgorithm1());
     }
+
+    @Override
+    public List<Object> getParameters(Profile profile) {
+        return Arrays.asList(
+                profile.getDenoiseAlgorithm1(),
+                profile.getDenoise1Amount(),
+                profile.getDenoise1AmountGreen(),
+                profile.getDenoise1AmountBlue(),
+                profile.getDenoise1Radius(),
+                profile.getDenoise1RadiusGreen(),
+                profile.getDenoise1RadiusBlue(),
+                profile.getDenoise1Iterations(),
+                profile.getDenoise1IterationsGreen(),
+                profile.getDenoise1IterationsBlue());
+    }
 }
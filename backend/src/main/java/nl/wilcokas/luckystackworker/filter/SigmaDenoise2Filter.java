@@ -1,6 +1,8 @@
 package nl.wilcokas.luckystackworker.filter;
 
 import ij.ImagePlus;
+import java.util.Arrays;
+import java.util.List;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import nl.wilcokas.luckystackworker.constants.Constants;
@@ -43,4 +45,16 @@ public class SigmaDenoise2Filter implements LSWFilter {
     public boolean isApplied(Profile profile, ImagePlus image) {
         return Constants.DENOISE_ALGORITHM_SIGMA2.equals(profile.getDenoiseAlgorithm2());
     }
+
+    @Override
+    public List<Object> getParameters(Profile profile) {
+        return Arrays.asList(
+                profile.getDenoiseAlgorithm2(),
+                profile.getDenoise2Radius(),
+                profile.getDenoise2RadiusGreen(),
+                profile.getDenoise2RadiusBlue(),
+                profile.getDenoise2Iterations(),
+                profile.getDenoise2IterationsGreen(),
+                profile.getDenoise2IterationsBlue());
+    }
 }
@@ -11,18 +11,25 @@ import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import nl.wilcokas.luckystackworker.exceptions.FilterException;
 import nl.wilcokas.luckystackworker.filter.settings.LSWSharpenMode;
 import nl.wilcokas.luckystackworker.filter.settings.WienerDeconvolutionParameters;
 import nl.wilcokas.luckystackworker.filter.wpl.LswWPLFloatIterativeDeconvolver2D;
+import nl.wilcokas.luckystackworker.filter.wpl.LswWPLTiledDeconvolver2D;
+import nl.wilcokas.luckystackworker.filter.wpl.WPLPsfCache;
 import nl.wilcokas.luckystackworker.model.PSF;
 import nl.wilcokas.luckystackworker.model.PSFType;
 import nl.wilcokas.luckystackworker.model.Profile;
 import nl.wilcokas.luckystackworker.util.LswFileUtil;
+import nl.wilcokas.luckystackworker.util.LswHslUtil;
 import nl.wilcokas.luckystackworker.util.LswImageProcessingUtil;
 import nl.wilcokas.luckystackworker.util.PsfDiskGenerator;
 import org.springframework.beans.factory.annotation.Value;
@@ -30,11 +37,32 @@ import org.springframework.stereotype.Component;
 
 @Component
 @Slf4j
+@RequiredArgsConstructor
 public class WienerDeconvolutionFilter implements LSWFilter {
 
+    /**
+     * Property of the filtered image holding the number of iterations that were run, which may be less than the
+     * profile asks for when the deconvolution converges early.
+     */
+    public static final String ITERATIONS_RUN_PROPERTY = "deconvolutionIterationsRun";
+
+    private final WPLPsfCache psfCache;
+
     @Value("${deconvolve.number.of.virtualThreads}")
     private int numberOfVirtualThreads;
 
+    @Value("${deconvolve.tile.size}")
+    private int tileSize;
+
+    @Value("${deconvolve.tiled.min.size}")
+    private int tiledMinSize;
+
+    @Value("${deconvolve.adaptive.iterations}")
+    private boolean adaptiveIterations;
+
+    @Value("${deconvolve.change.threshold.percent}")
+    private double changeThresholdPercent;
+
     @Override
     public boolean apply(final ImagePlus image, Profile profile, boolean isMono, String... additionalArguments) {
         if (isApplied(profile, image)) {
@@ -121,12 +149,43 @@ public class WienerDeconvolutionFilter implements LSWFilter {
         return profile.getApplyWienerDeconvolution().booleanValue();
     }
 
+    @Override
+    public List<Object> getParameters(Profile profile) {
+        return Arrays.asList(
+                profile.getApplyWienerDeconvolution(),
+                profile.getName(),
+                profile.getPsf().getAiryDiskRadius(),
+                profile.getPsf().getSeeingIndex(),
+                profile.getPsf().getDiffractionIntensity(),
+                profile.getPsf().getType(),
+                profile.getSharpenMode(),
+                profile.getWienerIterations(),
+                profile.getWienerIterationsGreen(),
+                profile.getWienerIterationsBlue(),
+                profile.getWienerRepetitions(),
+                profile.getDeringRadius(),
+                profile.getDeringRadiusGreen(),
+                profile.getDeringRadiusBlue(),
+                profile.getDeringStrength(),
+                profile.getDeringStrengthGreen(),
+                profile.getDeringStrengthBlue(),
+                profile.getBlendRaw(),
+                profile.getBlendRawGreen(),
+                profile.getBlendRawBlue(),
+                profile.getLuminanceIncludeRed(),
+                profile.getLuminanceIncludeGreen(),
+                profile.getLuminanceIncludeBlue(),
+                profile.getLuminanceIncludeColor());
+    }
+
     private boolean validateLuminanceInclusion(WienerDeconvolutionParameters parameters) {
         return parameters.isIncludeRed() || parameters.isIncludeGreen() || parameters.isIncludeBlue();
     }
 
     private void apply(ImagePlus image, ImagePlus psf, WienerDeconvolutionParameters parameters) {
+        int iterationsRun = 0;
         for (int i = 0; i < parameters.getRepetitions(); i++) {
+            AtomicInteger repetitionIterationsRun = new AtomicInteger();
             ImagePlus[] psfPerChannel = getPsfPerChannel(psf);
             ImageStack stack = image.getStack();
             if (parameters.getMode() == LSWSharpenMode.RGB) {
@@ -140,7 +199,8 @@ public class WienerDeconvolutionFilter implements LSWFilter {
                                         parameters.getIterationsRed(),
                                         parameters.getDeringStrengthRed(),
                                         parameters.getDeringRadiusRed(),
-                                        parameters.getBlendRawRed()),
+                                        parameters.getBlendRawRed(),
+                                        repetitionIterationsRun),
                                 executor);
                         futures[1] = CompletableFuture.runAsync(
                                 () -> applyToChannel(
@@ -149,7 +209,8 @@ public class WienerDeconvolutionFilter implements LSWFilter {
                                         parameters.getIterationsGreen(),
                                         parameters.getDeringStrengthGreen(),
                                         parameters.getDeringRadiusGreen(),
-                                        parameters.getBlendRawGreen()),
+                                        parameters.getBlendRawGreen(),
+                                        repetitionIterationsRun),
                                 executor);
                         futures[2] = CompletableFuture.runAsync(
                                 () -> applyToChannel(
@@ -158,7 +219,8 @@ public class WienerDeconvolutionFilter implements LSWFilter {
                                         parameters.getIterationsBlue(),
                                         parameters.getDeringStrengthBlue(),
                                         parameters.getDeringRadiusBlue(),
-                                        parameters.getBlendRawBlue()),
+                                        parameters.getBlendRawBlue(),
+                                        repetitionIterationsRun),
                                 executor);
                         CompletableFuture.allOf(futures).get();
                     }
@@ -166,9 +228,12 @@ public class WienerDeconvolutionFilter implements LSWFilter {
                     throw new FilterException(e.getMessage());
                 }
             } else {
-                applyLuminance(image, psf, parameters);
+                applyLuminance(image, psf, parameters, repetitionIterationsRun);
             }
+            iterationsRun += repetitionIterationsRun.get();
         }
+        log.info("Wiener deconvolution ran {} iterations", iterationsRun);
+        image.setProperty(ITERATIONS_RUN_PROPERTY, iterationsRun);
     }
 
     private ImagePlus[] getPsfPerChannel(ImagePlus psf) {
@@ -186,10 +251,11 @@ public class WienerDeconvolutionFilter implements LSWFilter {
             int iterations,
             float deringStrength,
             double deringRadius,
-            float blendRawFactor) {
+            float blendRawFactor,
+            AtomicInteger iterationsRun) {
         log.info("Applying Wiener deconvolution to channel {}", ipInput.getSliceNumber());
         short[] pixels = (short[]) ipInput.getPixels();
-        short[] outPixels = getDeconvolvedPixels(ipInput, psf, iterations);
+        short[] outPixels = getDeconvolvedPixels(ipInput, psf, iterations, iterationsRun);
         ImageProcessor ipMask =
                 LswImageProcessingUtil.createDeringMaskProcessor(deringStrength, deringRadius, 4.0, ipInput);
         int maskStartX = 0;
@@ -234,7 +300,8 @@ public class WienerDeconvolutionFilter implements LSWFilter {
         }
     }
 
-    private void applyLuminance(ImagePlus image, ImagePlus psf, WienerDeconvolutionParameters parameters) {
+    private void applyLuminance(
+            ImagePlus image, ImagePlus psf, WienerDeconvolutionParameters parameters, AtomicInteger iterationsRun) {
         ImageStack stack = image.getStack();
         ImageProcessor ipRed = stack.getProcessor(1);
         ImageProcessor ipGreen = stack.getProcessor(2);
@@ -250,20 +317,18 @@ public class WienerDeconvolutionFilter implements LSWFilter {
         float[] pixelsHue = new float[pixelsRed.length];
         float[] pixelsSat = new float[pixelsRed.length];
         float[] pixelsLum = new float[pixelsRed.length];
-        for (int i = 0; i < pixelsRed.length; i++) {
-            float[] hsl = LswImageProcessingUtil.rgbToHsl(
-                    pixelsRed[i],
-                    pixelsGreen[i],
-                    pixelsBlue[i],
-                    parameters.isIncludeRed(),
-                    parameters.isIncludeGreen(),
-                    parameters.isIncludeBlue(),
-                    parameters.isIncludeColor(),
-                    parameters.getMode());
-            pixelsHue[i] = hsl[0];
-            pixelsSat[i] = hsl[1];
-            pixelsLum[i] = hsl[2];
-        }
+        LswHslUtil.rgbToHsl(
+                pixelsRed,
+                pixelsGreen,
+                pixelsBlue,
+                pixelsHue,
+                pixelsSat,
+                pixelsLum,
+                parameters.isIncludeRed(),
+                parameters.isIncludeGreen(),
+                parameters.isIncludeBlue(),
+                parameters.isIncludeColor(),
+                parameters.getMode());
         FloatProcessor fpLum = new FloatProcessor(image.getWidth(), image.getHeight(), pixelsLum);
         ShortProcessor ipInput = new ShortProcessor(image.getWidth(), image.getHeight());
         ipInput.setPixels(1, fpLum);
@@ -274,34 +339,60 @@ public class WienerDeconvolutionFilter implements LSWFilter {
                 parameters.getIterationsLuminance(),
                 parameters.getDeringStrengthLuminance(),
                 parameters.getDeringRadiusLuminance(),
-                parameters.getBlendRawLuminance());
+                parameters.getBlendRawLuminance(),
+                iterationsRun);
         FloatProcessor fpOut = ipInput.toFloat(3, null);
         pixelsLum = (float[]) fpOut.getPixels();
 
         // Convert back to 16-bit RGB and update the image
-        for (int i = 0; i < pixelsRed.length; i++) {
-            float[] rgb = LswImageProcessingUtil.hslToRgb(pixelsHue[i], pixelsSat[i], pixelsLum[i], 0f);
-            pixelsRed[i] = rgb[0];
-            pixelsGreen[i] = rgb[1];
-            pixelsBlue[i] = rgb[2];
-        }
+        LswHslUtil.hslToRgb(pixelsHue, pixelsSat, pixelsLum, pixelsRed, pixelsGreen, pixelsBlue, 0f);
         ipRed.setPixels(1, fpRed);
         ipGreen.setPixels(2, fpGreen);
         ipBlue.setPixels(3, fpBlue);
     }
 
-    private short[] getDeconvolvedPixels(ImageProcessor ipInput, ImagePlus psf, int iterations) {
-        WPLOptions options = new WPLOptions(0, 1.0, 1.0, true, false, true, 0.01, false, false, false, -1);
-        LswWPLFloatIterativeDeconvolver2D deconv = new LswWPLFloatIterativeDeconvolver2D(
-                new ImagePlus(null, ipInput),
-                psf,
-                IterativeEnums.BoundaryType.ZERO,
-                IterativeEnums.ResizingType.AUTO,
-                iterations,
-                options,
-                numberOfVirtualThreads);
+    private short[] getDeconvolvedPixels(
+            ImageProcessor ipInput, ImagePlus psf, int iterations, AtomicInteger iterationsRun) {
+        WPLOptions options = new WPLOptions(
+                0,
+                1.0,
+                1.0,
+                true,
+                false,
+                true,
+                adaptiveIterations ? changeThresholdPercent : 0,
+                false,
+                adaptiveIterations,
+                false,
+                -1);
         try {
-            return deconv.deconvolve();
+            if (Math.max(ipInput.getWidth(), ipInput.getHeight()) >= tiledMinSize) {
+                LswWPLTiledDeconvolver2D tiledDeconv = new LswWPLTiledDeconvolver2D(
+                        ipInput,
+                        psf,
+                        iterations,
+                        options,
+                        tileSize,
+                        Runtime.getRuntime().availableProcessors(),
+                        psfCache);
+                if (tiledDeconv.isTilingUseful()) {
+                    short[] result = tiledDeconv.deconvolve();
+                    iterationsRun.accumulateAndGet(tiledDeconv.getIterationsRun(), Math::max);
+                    return result;
+                }
+            }
+            LswWPLFloatIterativeDeconvolver2D deconv = new LswWPLFloatIterativeDeconvolver2D(
+                    new ImagePlus(null, ipInput),
+                    psf,
+                    IterativeEnums.BoundaryType.ZERO,
+                    IterativeEnums.ResizingType.AUTO,
+                    iterations,
+                    options,
+                    numberOfVirtualThreads,
+                    psfCache);
+            short[] result = deconv.deconvolve();
+            iterationsRun.accumulateAndGet(deconv.getIterationsRun(), Math::max);
+            return result;
         } catch (Exception e) {
             log.error("Error during deconvolution: ", e);
             return (short[]) ipInput.getPixels();
@@ -4,10 +4,14 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import java.awt.Rectangle;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import nl.wilcokas.luckystackworker.exceptions.FilterException;
 import nl.wilcokas.luckystackworker.model.Profile;
+import nl.wilcokas.luckystackworker.util.LswImageProcessingUtil;
 import org.springframework.stereotype.Component;
 
 /**
@@ -42,121 +46,117 @@ import org.springframework.stereotype.Component;
  *
  * <p>Note: this class is based on the original filter from Michael Schmid, but rewritten as an LSW
  * filter.
+ *
+ * <p>The filter holds no state, the kernel is an immutable {@link SigmaKernel} created per call, so it can be used by
+ * concurrently filtered images. The channels are filtered in parallel, and each channel is divided into bands of rows
+ * that are filtered in parallel as well. Every band reads from the unfiltered pixels and writes to a separate output,
+ * so the bands don't see each other's results.
  */
 @Component
 public class SigmaFilterPlus {
-    // smoothing
-    protected int kRadius; // kernel radius. Size is (2*kRadius+1)^2
-    protected int kNPoints; // number of points in the kernel
-    protected int[] lineRadius; // the length of each kernel line is 2*lineRadius+1
 
     public void applyDenoise1(ImagePlus image, Profile profile) {
         double sigma = 2D;
         ImageStack stack = image.getStack();
-        // red
-        ImageProcessor ip = stack.getProcessor(1);
-        BigDecimal factor = profile.getDenoise1Amount().compareTo(new BigDecimal("100")) > 0
-                ? new BigDecimal(100)
-                : profile.getDenoise1Amount();
-        BigDecimal minimum = factor.divide(new BigDecimal(100), 2, RoundingMode.HALF_EVEN);
-        applySigmaToLayer(
-                sigma,
-                minimum.doubleValue(),
-                profile.getDenoise1Radius().doubleValue(),
-                profile.getDenoise1Iterations() == 0 ? 1 : profile.getDenoise1Iterations(),
-                ip,
-                1);
-        // green
-        ip = stack.getProcessor(2);
-        factor = profile.getDenoise1AmountGreen().compareTo(new BigDecimal("100")) > 0
-                ? new BigDecimal(100)
-                : profile.getDenoise1AmountGreen();
-        minimum = factor.divide(new BigDecimal(100), 2, RoundingMode.HALF_EVEN);
-        applySigmaToLayer(
-                sigma,
-                minimum.doubleValue(),
-                profile.getDenoise1RadiusGreen().doubleValue(),
-                profile.getDenoise1IterationsGreen() == 0 ? 1 : profile.getDenoise1IterationsGreen(),
-                ip,
-                2);
-        // blue
-        ip = stack.getProcessor(3);
-        factor = profile.getDenoise1AmountBlue().compareTo(new BigDecimal("100")) > 0
-                ? new BigDecimal(100)
-                : profile.getDenoise1AmountBlue();
-        minimum = factor.divide(new BigDecimal(100), 2, RoundingMode.HALF_EVEN);
-        applySigmaToLayer(
-                sigma,
-                minimum.doubleValue(),
-                profile.getDenoise1RadiusBlue().doubleValue(),
-                profile.getDenoise1IterationsBlue() == 0 ? 1 : profile.getDenoise1IterationsBlue(),
-                ip,
-                3);
+        runForChannels(
+                () -> applySigmaToLayer(
+                        sigma,
+                        getMinimumFraction(profile.getDenoise1Amount()),
+                        profile.getDenoise1Radius().doubleValue(),
+                        profile.getDenoise1Iterations() == 0 ? 1 : profile.getDenoise1Iterations(),
+                        stack.getProcessor(1),
+                        1),
+                () -> applySigmaToLayer(
+                        sigma,
+                        getMinimumFraction(profile.getDenoise1AmountGreen()),
+                        profile.getDenoise1RadiusGreen().doubleValue(),
+                        profile.getDenoise1IterationsGreen() == 0 ? 1 : profile.getDenoise1IterationsGreen(),
+                        stack.getProcessor(2),
+                        2),
+                () -> applySigmaToLayer(
+                        sigma,
+                        getMinimumFraction(profile.getDenoise1AmountBlue()),
+                        profile.getDenoise1RadiusBlue().doubleValue(),
+                        profile.getDenoise1IterationsBlue() == 0 ? 1 : profile.getDenoise1IterationsBlue(),
+                        stack.getProcessor(3),
+                        3));
     }
 
     public void applyDenoise2(ImagePlus image, Profile profile) {
         double sigma = 5D;
         double minimum = 1D;
         ImageStack stack = image.getStack();
-        // red
-        ImageProcessor ip = stack.getProcessor(1);
-        applySigmaToLayer(
-                sigma,
-                minimum,
-                profile.getDenoise2Radius().doubleValue(),
-                profile.getDenoise2Iterations() == 0 ? 1 : profile.getDenoise2Iterations(),
-                ip,
-                1);
-        // green
-        ip = stack.getProcessor(2);
-        applySigmaToLayer(
-                sigma,
-                minimum,
-                profile.getDenoise2RadiusGreen().doubleValue(),
-                profile.getDenoise2IterationsGreen() == 0 ? 1 : profile.getDenoise2IterationsGreen(),
-                ip,
-                2);
-        // blue
-        ip = stack.getProcessor(3);
-        applySigmaToLayer(
-                sigma,
-                minimum,
-                profile.getDenoise2RadiusBlue().doubleValue(),
-                profile.getDenoise2IterationsBlue() == 0 ? 1 : profile.getDenoise2IterationsBlue(),
-                ip,
-                3);
+        runForChannels(
+                () -> applySigmaToLayer(
+                        sigma,
+                        minimum,
+                        profile.getDenoise2Radius().doubleValue(),
+                        profile.getDenoise2Iterations() == 0 ? 1 : profile.getDenoise2Iterations(),
+                        stack.getProcessor(1),
+                        1),
+                () -> applySigmaToLayer(
+                        sigma,
+                        minimum,
+                        profile.getDenoise2RadiusGreen().doubleValue(),
+                        profile.getDenoise2IterationsGreen() == 0 ? 1 : profile.getDenoise2IterationsGreen(),
+                        stack.getProcessor(2),
+                        2),
+                () -> applySigmaToLayer(
+                        sigma,
+                        minimum,
+                        profile.getDenoise2RadiusBlue().doubleValue(),
+                        profile.getDenoise2IterationsBlue() == 0 ? 1 : profile.getDenoise2IterationsBlue(),
+                        stack.getProcessor(3),
+                        3));
+    }
+
+    private double getMinimumFraction(BigDecimal amount) {
+        BigDecimal factor = amount.compareTo(new BigDecimal("100")) > 0 ? new BigDecimal(100) : amount;
+        return factor.divide(new BigDecimal(100), 2, RoundingMode.HALF_EVEN).doubleValue();
+    }
+
+    private void runForChannels(Runnable... channelTasks) {
+        try {
+            try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                CompletableFuture<?>[] futures = new CompletableFuture[channelTasks.length];
+                for (int i = 0; i < channelTasks.length; i++) {
+                    futures[i] = CompletableFuture.runAsync(channelTasks[i], executor);
+                }
+                CompletableFuture.allOf(futures).get();
+            }
+        } catch (InterruptedException | ExecutionException e) { // NOSONAR
+            throw new FilterException(e.getMessage());
+        }
     }
 
     private void applySigmaToLayer(
             double sigma, double minimum, double radius, int iterations, ImageProcessor ip, int layer) {
-        makeKernel(radius);
+        SigmaKernel kernel = SigmaKernel.of(radius);
+        int minPixNumber = (int) (kernel.nPoints() * minimum + 0.999999); // min pixels in sigma range
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        FloatProcessor source = null;
+        FloatProcessor filtered = new FloatProcessor(width, height);
         for (int i = 0; i < iterations; i++) {
-            // copy class variables to local ones - this is necessary for preview
-            int[] lineRadius;
-            int kRadius, kNPoints, minPixNumber;
-            synchronized (this) { // the two following items must be consistent
-                lineRadius = (this.lineRadius.clone()); // cloning also required by doFiltering method
-                kRadius = this.kRadius; // kernel radius
-                kNPoints = this.kNPoints; // number of pixels in the kernel
-                minPixNumber = (int) (kNPoints * minimum + 0.999999); // min pixels in sigma range
-            }
             if (Thread.currentThread().isInterrupted()) return;
 
-            FloatProcessor fp = ip.toFloat(layer, null);
-            doFiltering(fp, kRadius, lineRadius, sigma, minPixNumber, true);
-            ip.setPixels(layer, fp);
+            source = ip.toFloat(layer, source);
+            float[] input = (float[]) source.getPixels();
+            float[] output = (float[]) filtered.getPixels();
+            LswImageProcessingUtil.runInBands(
+                    height,
+                    (from, to) ->
+                            doFiltering(input, output, width, height, from, to, kernel, sigma, minPixNumber, true));
+            ip.setPixels(layer, filtered);
         }
     }
 
     /**
-     * Filter a FloatProcessor according to filterType
+     * Filter the rows fromRow up to toRow of an image.
      *
-     * @param ip The image subject to filtering
-     * @param kRadius The kernel radius. The kernel has a side length of 2*kRadius+1
-     * @param lineRadius The radius of the lines in the kernel. Line length of line i is
-     *     2*lineRadius[i]+1. Note that the array <code>lineRadius</code> will be modified, thus call
-     *     this method with a clone of the original lineRadius array if the array should be used
-     *     again.
+     * @param input The pixels of the image subject to filtering, these are not modified
+     * @param output The array the filtered pixels are written to
+     * @param kernel The kernel, its line radii are copied as they are rotated while filtering
      */
     //
     // Data handling: The area needed for processing a line, i.e. a stripe of width
@@ -172,53 +172,45 @@ public class SigmaFilterPlus {
     // shifted.
     //
     private void doFiltering(
-            FloatProcessor ip,
-            int kRadius,
-            int[] lineRadius,
+            float[] input,
+            float[] output,
+            int width,
+            int height,
+            int fromRow,
+            int toRow,
+            SigmaKernel kernel,
             double sigmaWidth,
             int minPixNumber,
             boolean outlierAware) {
-        float[] pixels = (float[]) ip.getPixels(); // array of the pixel values of the input image
-        int width = ip.getWidth();
-        int height = ip.getHeight();
-        Rectangle roi = ip.getRoi();
-        int xmin = roi.x - kRadius;
-        int xEnd = roi.x + roi.width;
-        int xmax = xEnd + kRadius;
-        int kSize = 2 * kRadius + 1;
+        int kRadius = kernel.radius();
+        int kNPoints = kernel.nPoints();
+        int[] lineRadius = kernel.copyOfLineRadius();
+        int xmin = -kRadius;
+        int xmax = width + kRadius;
+        int kSize = kernel.size();
         int cacheWidth = xmax - xmin;
-        int xminInside = xmin > 0 ? xmin : 0;
-        int xmaxInside = xmax < width ? xmax : width;
-        int widthInside = xmaxInside - xminInside;
         boolean smallKernel = kRadius < 2;
         float[] cache = new float[cacheWidth * kSize]; // a stripe of the image with height=2*kRadius+1
-        for (int y = roi.y - kRadius, iCache = 0; y < roi.y + kRadius; y++)
+        for (int y = fromRow - kRadius, iCache = 0; y < fromRow + kRadius; y++)
             for (int x = xmin; x < xmax; x++, iCache++) // fill the cache for filtering the first line
-            cache[iCache] = pixels[
+            cache[iCache] = input[
                     (x < 0 ? 0 : x >= width ? width - 1 : x) + width * (y < 0 ? 0 : y >= height ? height - 1 : y)];
         int nextLineInCache = 2 * kRadius; // where the next line should be written to
         double[] sums = new double[2];
-        Thread thread = Thread.currentThread(); // needed to check for interrupted state
-        long lastTime = System.currentTimeMillis();
-        for (int y = roi.y; y < roi.y + roi.height; y++) {
-            long time = System.currentTimeMillis();
-            if (time - lastTime > 100) {
-                lastTime = time;
-                if (thread.isInterrupted()) return;
-            }
+        for (int y = fromRow; y < toRow; y++) {
             int ynext = y + kRadius; // C O P Y N E W L I N E into cache
             if (ynext >= height) ynext = height - 1;
-            float leftpxl = pixels[width * ynext]; // edge pixels of the line replace out-of-image pixels
-            float rightpxl = pixels[width - 1 + width * ynext];
+            float leftpxl = input[width * ynext]; // edge pixels of the line replace out-of-image pixels
+            float rightpxl = input[width - 1 + width * ynext];
             int iCache = cacheWidth * nextLineInCache; // where in the cache we have to copy to
             for (int x = xmin; x < 0; x++, iCache++) cache[iCache] = leftpxl;
-            System.arraycopy(pixels, xminInside + width * ynext, cache, iCache, widthInside);
-            iCache += widthInside;
+            System.arraycopy(input, width * ynext, cache, iCache, width);
+            iCache += width;
             for (int x = width; x < xmax; x++, iCache++) cache[iCache] = rightpxl;
             nextLineInCache = (nextLineInCache + 1) % kSize;
             boolean fullCalculation = true; // F I L T E R the line
-            for (int x = roi.x, p = x + y * width, xCache0 = kRadius; x < xEnd; x++, p++, xCache0++) {
-                double value = pixels[p]; // the current pixel
+            for (int x = 0, p = y * width, xCache0 = kRadius; x < width; x++, p++, xCache0++) {
+                double value = input[p]; // the current pixel
                 if (fullCalculation) {
                     fullCalculation = smallKernel; // for small kernel, always use the full area, not incremental
                     // algorithm
@@ -245,12 +237,12 @@ public class SigmaFilterPlus {
                 }
                 // if there are too few pixels in the kernel that are within sigma range, the
                 // mean of the entire kernel is taken.
-                if (count >= minPixNumber) pixels[p] = (float) (sum / count);
+                if (count >= minPixNumber) output[p] = (float) (sum / count);
                 else {
                     if (outlierAware)
-                        pixels[p] = (float) ((sums[0] - value) / (kNPoints - 1)); // assumes that the current pixel is
+                        output[p] = (float) ((sums[0] - value) / (kNPoints - 1)); // assumes that the current pixel is
                     // an outlier
-                    else pixels[p] = (float) mean;
+                    else output[p] = (float) mean;
                 }
             } // for x
             int newLineRadius0 = lineRadius[kSize - 1]; // shift kernel lineRadii one line
@@ -300,27 +292,4 @@ public class SigmaFilterPlus {
         sums[1] += sum2;
         return;
     }
-
-    /**
-     * Create a circular kernel of a given radius. Radius = 0.5 includes the 4 neighbors of the pixel
-     * in the center, radius = 1 corresponds to a 3x3 kernel size. The output is written to class
-     * variables kNPoints (number of points inside the kernel) and lineRadius, which is an array
-     * giving the radius of each line. Line length is 2*lineRadius+1.
-     */
-    private synchronized void makeKernel(double radius) {
-        if (radius >= 1.5 && radius < 1.75) // this code creates the same sizes as the previous RankFilters
-        radius = 1.75;
-        else if (radius >= 2.5 && radius < 2.85) radius = 2.85;
-        int r2 = (int) (radius * radius) + 1;
-        kRadius = (int) (Math.sqrt(r2 + 1e-10));
-        lineRadius = new int[2 * kRadius + 1];
-        lineRadius[kRadius] = kRadius;
-        kNPoints = 2 * kRadius + 1;
-        for (int y = 1; y <= kRadius; y++) {
-            int dx = (int) (Math.sqrt(r2 - y * y + 1e-10));
-            lineRadius[kRadius + y] = dx;
-            lineRadius[kRadius - y] = dx;
-            kNPoints += 4 * dx + 2;
-        }
-    }
 }
@@ -0,0 +1,39 @@
+package nl.wilcokas.luckystackworker.filter.sigma;
+
+/**
+ * Circular kernel of the sigma filter. The kernel has a side length of 2*radius+1, the length of line i is
+ * 2*lineRadius[i]+1. Instances are never modified after creation, so one kernel can be shared by all threads filtering
+ * with it; filtering rotates a copy of the line radii, see {@link #copyOfLineRadius()}.
+ */
+public record SigmaKernel(int radius, int nPoints, int[] lineRadius) {
+
+    /**
+     * Create a circular kernel of a given radius. Radius = 0.5 includes the 4 neighbors of the pixel in the center,
+     * radius = 1 corresponds to a 3x3 kernel size.
+     */
+    public static SigmaKernel of(double radius) {
+        if (radius >= 1.5 && radius < 1.75) // this code creates the same sizes as the previous RankFilters
+        radius = 1.75;
+        else if (radius >= 2.5 && radius < 2.85) radius = 2.85;
+        int r2 = (int) (radius * radius) + 1;
+        int kRadius = (int) (Math.sqrt(r2 + 1e-10));
+        int[] lineRadius = new int[2 * kRadius + 1];
+        lineRadius[kRadius] = kRadius;
+        int kNPoints = 2 * kRadius + 1;
+        for (int y = 1; y <= kRadius; y++) {
+            int dx = (int) (Math.sqrt(r2 - y * y + 1e-10));
+            lineRadius[kRadius + y] = dx;
+            lineRadius[kRadius - y] = dx;
+            kNPoints += 4 * dx + 2;
+        }
+        return new SigmaKernel(kRadius, kNPoints, lineRadius);
+    }
+
+    public int size() {
+        return 2 * radius + 1;
+    }
+
+    public int[] copyOfLineRadius() {
+        return lineRadius.clone();
+    }
+}
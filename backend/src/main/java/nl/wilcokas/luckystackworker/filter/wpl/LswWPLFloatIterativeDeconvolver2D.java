@@ -15,6 +15,7 @@ import ij.ImagePlus;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
@@ -34,8 +35,8 @@ public class LswWPLFloatIterativeDeconvolver2D {
     /** Blurred image */
     protected FloatMatrix2D B;
 
-    /** Point Spread Function */
-    protected FloatMatrix2D PSF;
+    /** Point Spread Function, padded and transformed */
+    private WPLPsfCache.PreparedPsf PSF;
 
     /** Color model */
     protected java.awt.image.ColorModel cmY;
@@ -67,18 +68,9 @@ public class LswWPLFloatIterativeDeconvolver2D {
     /** Min value of the blurred image. */
     private float minB = 0;
 
-    /** Min value of the PSF. */
-    private float minPSF = 0;
-
-    /** Sum of all elements in the PSF matrix. */
-    private float sum;
-
     /** Scaling factor. */
     private float scalePSF = 1;
 
-    /** Gaussian weights. */
-    private float[][] gweights;
-
     /** Regularization parameter for the Wiener Filter. */
     protected float gamma;
 
@@ -106,6 +98,9 @@ public class LswWPLFloatIterativeDeconvolver2D {
     /** Number of virtual threads created for parallel processing. */
     private int numberOfThreads;
 
+    /** Number of iterations that were actually run by the last deconvolution. */
+    private int iterationsRun;
+
     /**
      * Creates a new instance of WPLFloatIterativeDeconvolver2D
      *
@@ -115,6 +110,7 @@ public class LswWPLFloatIterativeDeconvolver2D {
      * @param resizing type of resizing
      * @param iterations maximal number of iterations
      * @param options WPL options
+     * @param psfCache cache of prepared PSF's, null if the PSF should always be prepared
      */
     public LswWPLFloatIterativeDeconvolver2D(
             ImagePlus imB,
@@ -123,8 +119,11 @@ public class LswWPLFloatIterativeDeconvolver2D {
             ResizingType resizing,
             int iterations,
             WPLOptions options,
-            int numberOfThreads) {
+            int numberOfThreads,
+            WPLPsfCache psfCache)
+            throws ExecutionException, InterruptedException {
         log.info("WPL initialization...");
+        this.numberOfThreads = numberOfThreads;
         ImageProcessor ipB = imB.getProcessor();
         cmY = ipB.getColorModel();
         bColumns = ipB.getWidth();
@@ -134,7 +133,7 @@ public class LswWPLFloatIterativeDeconvolver2D {
         ImageProcessor ipPSF = imPSF.getProcessor();
         int psfColumns = ipPSF.getWidth();
         int psfRows = ipPSF.getHeight();
-        PSF = FloatCommon2D.assignPixelsToMatrix(ipPSF);
+        FloatMatrix2D psf = FloatCommon2D.assignPixelsToMatrix(ipPSF);
         this.iterations = iterations;
         this.gamma = (float) options.getGamma();
         this.filterXY = (float) options.getFilterXY();
@@ -147,17 +146,13 @@ public class LswWPLFloatIterativeDeconvolver2D {
         this.logConvergence = options.isLogConvergence();
         if (this.dB) {
             minB = unDB(B);
-            minPSF = unDB(PSF);
         }
-        sum = PSF.zSum();
-        if ((sum != 0) && this.normalize) scalePSF /= sum;
 
         columns = expandedSize(psfColumns, bColumns, resizing);
         rows = expandedSize(psfRows, bRows, resizing);
         if ((psfColumns > columns) || (psfRows > rows)) {
             throw new IllegalArgumentException("PSF cannot be largest that the image.");
         }
-        gweights = gaussianWeights(rows, columns, this.filterXY, this.filterXY);
         switch (boundary) {
             case PERIODIC:
                 B = FloatCommon2D.padPeriodic(B, rows, columns);
@@ -169,13 +164,57 @@ public class LswWPLFloatIterativeDeconvolver2D {
                 B = FloatCommon2D.padZero(B, rows, columns);
                 break;
         }
-        float[] maxLoc = PSF.getMaxLocation();
+        if (psfCache == null) {
+            PSF = preparePsf(psf, psfRows, psfColumns);
+        } else {
+            WPLPsfCache.Key key = new WPLPsfCache.Key(
+                    imPSF.getTitle(),
+                    Arrays.hashCode((float[]) psf.elements()),
+                    psfRows,
+                    psfColumns,
+                    rows,
+                    columns,
+                    gamma,
+                    filterXY,
+                    normalize,
+                    antiRing,
+                    dB);
+            PSF = psfCache.get(key, () -> preparePsf(psf, psfRows, psfColumns));
+        }
+        if ((PSF.sum() != 0) && this.normalize) scalePSF /= PSF.sum();
+    }
+
+    /**
+     * Pads, shifts and transforms the PSF and derives everything from it that doesn't depend on the blurred image.
+     */
+    private WPLPsfCache.PreparedPsf preparePsf(FloatMatrix2D psf, int psfRows, int psfColumns)
+            throws ExecutionException, InterruptedException {
+        if (this.dB) {
+            unDB(psf);
+        }
+        float sum = psf.zSum();
+        float[] maxLoc = psf.getMaxLocation();
         int[] padSize = new int[2];
         padSize[0] = rows - psfRows;
         padSize[1] = columns - psfColumns;
-        PSF = FloatCommon2D.padZero(PSF, padSize, PaddingType.POST);
-        PSF = FloatCommon2D.circShift(PSF, new int[] {(int) maxLoc[1], (int) maxLoc[2]});
-        this.numberOfThreads = numberOfThreads;
+        psf = FloatCommon2D.padZero(psf, padSize, PaddingType.POST);
+        psf = FloatCommon2D.circShift(psf, new int[] {(int) maxLoc[1], (int) maxLoc[2]});
+        ((DenseFloatMatrix2D) psf).dht2();
+
+        FloatMatrix2D transformedPsf = null;
+        float magMax = 0;
+        if (antiRing || gamma > 0.0001) {
+            transformedPsf = psf.copy();
+        }
+        if (gamma > 0.0001) {
+            magMax = findMagMax(psf);
+            deconvolveFD(gamma, magMax, rows, columns, transformedPsf, transformedPsf, psf);
+        }
+        ((DenseFloatMatrix2D) psf).idht2(true);
+        float aSum = psf.aggregate(FloatFunctions.plus, FloatFunctions.abs);
+        ((DenseFloatMatrix2D) psf).dht2();
+        float[][] gweights = gaussianWeights(rows, columns, this.filterXY, this.filterXY);
+        return new WPLPsfCache.PreparedPsf(transformedPsf, psf, sum, aSum, magMax, gweights);
     }
 
     /**
@@ -184,54 +223,70 @@ public class LswWPLFloatIterativeDeconvolver2D {
      * @return deconvolved image
      */
     public short[] deconvolve() throws ExecutionException, InterruptedException {
-        ((DenseFloatMatrix2D) PSF).dht2();
         FloatMatrix2D X;
         FloatMatrix2D AX = B.like();
         if (antiRing) {
             log.info("WPL: performing anti-ringing step.");
             X = B.copy();
             ((DenseFloatMatrix2D) X).dht2();
-            convolveFD(rows, columns, PSF, X, AX);
+            convolveFD(rows, columns, PSF.transformedPsf(), X, AX);
             ((DenseFloatMatrix2D) AX).idht2(true);
-            copyDataAverage(bRows, bColumns, rows, columns, sum, B, AX, B);
+            copyDataAverage(bRows, bColumns, rows, columns, PSF.sum(), B, AX, B);
         }
         if (gamma > 0.0001) {
             log.info("WPL: Wiener filter");
-            float magMax = findMagMax(PSF);
             ((DenseFloatMatrix2D) B).dht2();
-            X = PSF.copy();
-            deconvolveFD(gamma, magMax, rows, columns, X, X, PSF);
             AX = B.copy();
-            deconvolveFD(gamma, magMax, rows, columns, AX, X, B);
+            deconvolveFD(gamma, PSF.magMax(), rows, columns, AX, PSF.transformedPsf(), B);
             ((DenseFloatMatrix2D) B).idht2(true);
         }
 
         int rOff = (rows - bRows + 1) / 2;
         int cOff = (columns - bColumns + 1) / 2;
 
-        ((DenseFloatMatrix2D) PSF).idht2(true);
-        float aSum = PSF.aggregate(FloatFunctions.plus, FloatFunctions.abs);
+        float aSum = PSF.aSum();
+        float[][] gweights = PSF.gaussianWeights();
         if (scalePSF != 1) {
             B.assign(FloatFunctions.div(scalePSF));
         }
-        ((DenseFloatMatrix2D) PSF).dht2();
         X = B.copy();
         FloatProcessor ip = new FloatProcessor(bColumns, bRows);
+        float oldPercentChange = Float.MAX_VALUE;
+        iterationsRun = 0;
         for (int iter = 0; iter < iterations; iter++) {
             log.info("WPL iteration: " + (iter + 1) + "/" + iterations);
             ((DenseFloatMatrix2D) X).dht2();
             gaussianFilter(X, gweights);
-            convolveFD(rows, columns, PSF, X, AX);
+            convolveFD(rows, columns, PSF.iterationPsf(), X, AX);
             ((DenseFloatMatrix2D) AX).idht2(true);
             ((DenseFloatMatrix2D) X).idht2(true);
-            meanDelta(B, AX, X, aSum);
-            energySum(X, bRows, bColumns, cOff, rOff);
+            float meanDelta = meanDelta(B, AX, X, aSum);
+            float energySum = energySum(X, bRows, bColumns, cOff, rOff);
+            iterationsRun = iter + 1;
+            if (energySum <= 0) {
+                // Nothing left to compare the change with, like in a black tile.
+                log.info("WPL: stopped on an empty image after {} of {} iterations", iterationsRun, iterations);
+                break;
+            }
+            float percentChange = 100 * meanDelta / energySum;
+            if (logConvergence) {
+                log.info("WPL: mean delta {}, change {}%", meanDelta, percentChange);
+            }
+            if (changeThreshPercent > 0 && (oldPercentChange - percentChange) < changeThreshPercent) {
+                log.info("WPL: converged after {} of {} iterations", iterationsRun, iterations);
+                break;
+            }
+            if (detectDivergence && oldPercentChange < percentChange) {
+                log.info("WPL: stopped on divergence after {} of {} iterations", iterationsRun, iterations);
+                break;
+            }
+            oldPercentChange = percentChange;
         }
         ((DenseFloatMatrix2D) X).dht2();
         gaussianFilterWithScaling(X, gweights, aSum);
         ((DenseFloatMatrix2D) X).idht2(true);
         if (dB) {
-            toDB(PSF, minPSF);
+            // The PSF is shared with other deconvolutions, so it is left in the Hartley domain.
             toDB(B, minB);
             toDB(X, -90);
         }
@@ -249,6 +304,14 @@ public class LswWPLFloatIterativeDeconvolver2D {
         return shortPixels;
     }
 
+    /**
+     * Returns the number of iterations run by the last deconvolution, which is less than the maximal number of
+     * iterations when the changes dropped below the threshold or started increasing.
+     */
+    public int getIterationsRun() {
+        return iterationsRun;
+    }
+
     private void convolveFD(final int rows, final int columns, FloatMatrix2D H1, FloatMatrix2D H2, FloatMatrix2D Result)
             throws ExecutionException, InterruptedException {
         final float[] h1 = (float[]) H1.elements();
@@ -483,9 +546,9 @@ public class LswWPLFloatIterativeDeconvolver2D {
                 }
             } catch (ExecutionException | InterruptedException ex) {
                 log.error("Error applying wiener deconvolution", ex);
-                for (int j = 0; j < np; j++) {
-                    sumPixels += results[j];
-                }
+            }
+            for (int j = 0; j < np; j++) {
+                sumPixels += results[j];
             }
         } else {
             for (int r = 0; r < rows; r++) {
@@ -0,0 +1,233 @@
+package nl.wilcokas.luckystackworker.filter.wpl;
+
+import static nl.wilcokas.luckystackworker.util.LswImageProcessingUtil.convertToShort;
+import static nl.wilcokas.luckystackworker.util.LswImageProcessingUtil.convertToUnsignedInt;
+
+import edu.emory.mathcs.restoretools.iterative.IterativeEnums.BoundaryType;
+import edu.emory.mathcs.restoretools.iterative.IterativeEnums.ResizingType;
+import edu.emory.mathcs.restoretools.iterative.wpl.WPLOptions;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import lombok.extern.slf4j.Slf4j;
+import nl.wilcokas.luckystackworker.exceptions.FilterException;
+import nl.wilcokas.luckystackworker.util.LswImageProcessingUtil;
+
+/**
+ * Deconvolves a large image as a set of overlapping tiles, so the memory needed no longer grows with the size of the
+ * image and the FFT's stay small enough to fit in the processor caches. The tiles are sized so that their padded size
+ * is exactly the given power of two, all tiles have the same size so they share the same prepared PSF. Each tile is
+ * deconvolved single threaded, the tiles themselves are spread over a work-stealing pool.
+ *
+ * <p>The image is processed one row of tiles at a time, while the next row is already being deconvolved. Where tiles
+ * overlap their results are blended with linear ramps, which start only past the margin at the edges of a tile that is
+ * affected by its zero boundary. The blended rows are accumulated in a strip the height of a tile, and written to the
+ * result as soon as no later tile covers them.
+ */
+@Slf4j
+public class LswWPLTiledDeconvolver2D {
+
+    private final ImageProcessor ipB;
+    private final ImagePlus imPSF;
+    private final int iterations;
+    private final WPLOptions options;
+    private final WPLPsfCache psfCache;
+    private final int tileSize;
+    private final int overlap;
+    private final int margin;
+    private final int parallelism;
+    private int iterationsRun;
+
+    private record Tile(int x0, short[] pixels, int iterationsRun) {}
+
+    /**
+     * @param ipB blurred image
+     * @param imPSF Point Spread Function
+     * @param iterations maximal number of iterations
+     * @param options WPL options
+     * @param paddedTileSize size of the tiles after padding, should be a power of two
+     * @param parallelism maximum number of tiles that are deconvolved at the same time
+     * @param psfCache cache of prepared PSF's, null if the PSF should always be prepared
+     */
+    public LswWPLTiledDeconvolver2D(
+            ImageProcessor ipB,
+            ImagePlus imPSF,
+            int iterations,
+            WPLOptions options,
+            int paddedTileSize,
+            int parallelism,
+            WPLPsfCache psfCache) {
+        this.ipB = ipB;
+        this.imPSF = imPSF;
+        this.iterations = iterations;
+        this.options = options;
+        this.psfCache = psfCache;
+        int psfSize = Math.max(imPSF.getWidth(), imPSF.getHeight());
+        this.tileSize = paddedTileSize - psfSize;
+        this.overlap = 2 * psfSize;
+        this.margin = psfSize / 2;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Tiling only makes sense when the image doesn't fit in a single tile and the tiles are large enough compared to
+     * the overlap between them.
+     */
+    public boolean isTilingUseful() {
+        return tileSize > 2 * overlap && (ipB.getWidth() > tileSize || ipB.getHeight() > tileSize);
+    }
+
+    public short[] deconvolve() throws ExecutionException, InterruptedException {
+        int width = ipB.getWidth();
+        int height = ipB.getHeight();
+        short[] pixels = (short[]) ipB.getPixels();
+        List<Integer> xPositions = getTilePositions(width);
+        List<Integer> yPositions = getTilePositions(height);
+        log.info("WPL: deconvolving {}x{} image as {} tiles", width, height, xPositions.size() * yPositions.size());
+
+        int tileWidth = Math.min(tileSize, width);
+        int tileHeight = Math.min(tileSize, height);
+        short[] result = new short[width * height];
+        float[] weightedSum = new float[width * tileHeight];
+        float[] weights = new float[width * tileHeight];
+        float[] rampY = new float[tileHeight];
+        ExecutorService executor = Executors.newWorkStealingPool(parallelism);
+        try {
+            List<CompletableFuture<Tile>> nextRow =
+                    submitTileRow(executor, pixels, width, tileWidth, tileHeight, xPositions, yPositions.get(0));
+            for (int row = 0; row < yPositions.size(); row++) {
+                int y0 = yPositions.get(row);
+                List<CompletableFuture<Tile>> currentRow = nextRow;
+                if (row + 1 < yPositions.size()) {
+                    nextRow = submitTileRow(
+                            executor, pixels, width, tileWidth, tileHeight, xPositions, yPositions.get(row + 1));
+                }
+                CompletableFuture.allOf(currentRow.toArray(new CompletableFuture[0])).get();
+                List<Tile> tiles = currentRow.stream().map(CompletableFuture::join).toList();
+                tiles.forEach(tile -> iterationsRun = Math.max(iterationsRun, tile.iterationsRun()));
+
+                // The strip starts at the top of the current row of tiles, every thread adds its own rows of it.
+                fillRamp(rampY, y0 > 0, y0 + tileHeight < height);
+                LswImageProcessingUtil.runInBands(tileHeight, (from, to) -> {
+                    for (Tile tile : tiles) {
+                        float[] rampX = new float[tileWidth];
+                        fillRamp(rampX, tile.x0() > 0, tile.x0() + tileWidth < width);
+                        for (int y = from; y < to; y++) {
+                            for (int x = 0; x < tileWidth; x++) {
+                                float weight = rampX[x] * rampY[y];
+                                int i = y * width + tile.x0() + x;
+                                weightedSum[i] += weight * convertToUnsignedInt(tile.pixels()[y * tileWidth + x]);
+                                weights[i] += weight;
+                            }
+                        }
+                    }
+                });
+
+                // Rows above the next row of tiles are complete, the rest of the strip is carried over to it.
+                int completeRows = row + 1 < yPositions.size() ? yPositions.get(row + 1) - y0 : tileHeight;
+                for (int i = 0; i < completeRows * width; i++) {
+                    int resultIndex = y0 * width + i;
+                    int value = weights[i] > 0
+                            ? Math.round(weightedSum[i] / weights[i])
+                            : convertToUnsignedInt(pixels[resultIndex]);
+                    result[resultIndex] = convertToShort(Math.clamp(value, 0, 65535));
+                }
+                int carriedLength = (tileHeight - completeRows) * width;
+                System.arraycopy(weightedSum, completeRows * width, weightedSum, 0, carriedLength);
+                System.arraycopy(weights, completeRows * width, weights, 0, carriedLength);
+                Arrays.fill(weightedSum, carriedLength, weightedSum.length, 0f);
+                Arrays.fill(weights, carriedLength, weights.length, 0f);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    private List<CompletableFuture<Tile>> submitTileRow(
+            ExecutorService executor,
+            short[] pixels,
+            int width,
+            int tileWidth,
+            int tileHeight,
+            List<Integer> xPositions,
+            int y0) {
+        return xPositions.stream()
+                .map(x0 -> CompletableFuture.supplyAsync(
+                        () -> deconvolveTile(pixels, width, tileWidth, tileHeight, x0, y0), executor))
+                .toList();
+    }
+
+    private Tile deconvolveTile(short[] pixels, int width, int tileWidth, int tileHeight, int x0, int y0) {
+        short[] tilePixels = new short[tileWidth * tileHeight];
+        for (int y = 0; y < tileHeight; y++) {
+            System.arraycopy(pixels, (y0 + y) * width + x0, tilePixels, y * tileWidth, tileWidth);
+        }
+        try {
+            LswWPLFloatIterativeDeconvolver2D deconvolver = new LswWPLFloatIterativeDeconvolver2D(
+                    new ImagePlus(null, new ShortProcessor(tileWidth, tileHeight, tilePixels, null)),
+                    imPSF,
+                    BoundaryType.ZERO,
+                    ResizingType.AUTO,
+                    iterations,
+                    options,
+                    1,
+                    psfCache);
+            short[] tileResult = deconvolver.deconvolve();
+            return new Tile(x0, tileResult, deconvolver.getIterationsRun());
+        } catch (InterruptedException | ExecutionException e) { // NOSONAR
+            throw new FilterException(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the largest number of iterations run by any of the tiles.
+     */
+    public int getIterationsRun() {
+        return iterationsRun;
+    }
+
+    /**
+     * Start positions of the tiles along one axis. The last tile is aligned with the end of the image, so all tiles
+     * have the same size.
+     */
+    private List<Integer> getTilePositions(int size) {
+        List<Integer> positions = new ArrayList<>();
+        if (size <= tileSize) {
+            positions.add(0);
+            return positions;
+        }
+        int step = tileSize - overlap;
+        for (int position = 0; position + tileSize < size; position += step) {
+            positions.add(position);
+        }
+        positions.add(size - tileSize);
+        return positions;
+    }
+
+    /**
+     * Weights along one axis of a tile. At the sides that border on another tile, the weight is zero over the margin
+     * that is affected by the zero boundary and then ramps up over the rest of the overlap.
+     */
+    private void fillRamp(float[] ramp, boolean rampStart, boolean rampEnd) {
+        int size = ramp.length;
+        float rampLength = overlap - 2f * margin;
+        for (int i = 0; i < size; i++) {
+            float weight = 1f;
+            if (rampStart) {
+                weight = Math.min(weight, (i - margin + 1f) / (rampLength + 1f));
+            }
+            if (rampEnd) {
+                weight = Math.min(weight, (size - i - margin) / (rampLength + 1f));
+            }
+            ramp[i] = Math.max(weight, 0f);
+        }
+    }
+}
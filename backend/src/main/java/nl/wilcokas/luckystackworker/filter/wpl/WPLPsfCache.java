@@ -0,0 +1,81 @@
+package nl.wilcokas.luckystackworker.filter.wpl;
+
+import cern.colt.matrix.tfloat.FloatMatrix2D;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the most recently used prepared PSF's of the WPL deconvolution, so repeated deconvolutions of images of the
+ * same size with the same PSF (e.g. every preview update and every file of a batch) can skip padding and transforming
+ * the PSF. The prepared PSF's are only read during deconvolution, so they can be shared between threads.
+ */
+@Slf4j
+@Component
+public class WPLPsfCache {
+
+    @FunctionalInterface
+    interface PsfPreparation {
+        PreparedPsf prepare() throws ExecutionException, InterruptedException;
+    }
+
+    private final Map<Key, PreparedPsf> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Value("${deconvolve.psf.cache.entries}")
+    private int maxEntries;
+
+    PreparedPsf get(Key key, PsfPreparation preparation) throws ExecutionException, InterruptedException {
+        synchronized (this) {
+            PreparedPsf preparedPsf = entries.get(key);
+            if (preparedPsf != null) {
+                return preparedPsf;
+            }
+        }
+        // Prepared outside the lock so the channels of an image don't have to wait for each other.
+        log.info("WPL: preparing PSF for a {}x{} padded image", key.columns(), key.rows());
+        PreparedPsf preparedPsf = preparation.prepare();
+        synchronized (this) {
+            entries.put(key, preparedPsf);
+            while (entries.size() > maxEntries) {
+                entries.remove(entries.keySet().iterator().next());
+            }
+        }
+        return preparedPsf;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Everything the prepared PSF depends on: the PSF itself, the size of the padded image and the options that are
+     * applied to the PSF.
+     */
+    record Key(
+            String psfTitle,
+            int psfHash,
+            int psfRows,
+            int psfColumns,
+            int rows,
+            int columns,
+            float gamma,
+            float filterXY,
+            boolean normalize,
+            boolean antiRing,
+            boolean dB) {}
+
+    /**
+     * The PSF in the Hartley domain as it is used by the anti-ringing and Wiener filter steps, the PSF in the Hartley
+     * domain as it is used by the iterations, and the values derived from these.
+     */
+    record PreparedPsf(
+            FloatMatrix2D transformedPsf,
+            FloatMatrix2D iterationPsf,
+            float sum,
+            float aSum,
+            float magMax,
+            float[][] gaussianWeights) {}
+}
@@ -9,6 +9,7 @@ public enum FilterEnum {
     SIGMA_DENOISE_2,
     BILATERAL_DENOISE,
     SAVITSKY_GOLAY,
+    ROF_DENOISE,
     LOCAL_CONTRAST,
     GAMMA,
     COLOR_NORMALIZE,
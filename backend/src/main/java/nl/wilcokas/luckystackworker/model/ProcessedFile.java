@@ -0,0 +1,17 @@
+package nl.wilcokas.luckystackworker.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class ProcessedFile {
+    private long size;
+    private long lastModified;
+    private String profileHash;
+    private String outputPath;
+}
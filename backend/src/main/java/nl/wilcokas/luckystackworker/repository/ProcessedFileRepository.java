@@ -0,0 +1,118 @@
+package nl.wilcokas.luckystackworker.repository;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import nl.wilcokas.luckystackworker.exceptions.WorkerException;
+import nl.wilcokas.luckystackworker.model.ProcessedFile;
+import nl.wilcokas.luckystackworker.model.Profile;
+import nl.wilcokas.luckystackworker.util.LswFileUtil;
+import nl.wilcokas.luckystackworker.util.LswUtil;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Index of the images that were processed by the worker, stored in the data folder. An image only needs to be
+ * processed again when either the image itself or the profile parameters that were applied to it have changed.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Repository
+public class ProcessedFileRepository {
+
+    private static final String PROCESSED_FILES_FILE = "/processed_files.json";
+
+    private final ObjectMapper objectMapper;
+    private Map<String, ProcessedFile> processedFiles;
+    private boolean modified = false;
+
+    public synchronized boolean isUpToDate(File file, String profileHash) {
+        ProcessedFile processedFile = getProcessedFiles().get(getKey(file));
+        return processedFile != null
+                && processedFile.getSize() == file.length()
+                && processedFile.getLastModified() == file.lastModified()
+                && processedFile.getProfileHash().equals(profileHash)
+                && LswFileUtil.fileExists(processedFile.getOutputPath());
+    }
+
+    public synchronized boolean isKnown(File file) {
+        return getProcessedFiles().containsKey(getKey(file));
+    }
+
+    public synchronized void markProcessed(File file, String profileHash, String outputPath) {
+        getProcessedFiles()
+                .put(
+                        getKey(file),
+                        ProcessedFile.builder()
+                                .size(file.length())
+                                .lastModified(file.lastModified())
+                                .profileHash(profileHash)
+                                .outputPath(outputPath)
+                                .build());
+        modified = true;
+    }
+
+    public synchronized void save() {
+        if (!modified) {
+            return;
+        }
+        try {
+            objectMapper.writeValue(
+                    new File(LswFileUtil.getDataFolder(LswUtil.getActiveOSProfile()) + PROCESSED_FILES_FILE),
+                    processedFiles);
+            modified = false;
+        } catch (Exception e) {
+            log.error("Error writing processed files: ", e);
+        }
+    }
+
+    /**
+     * Hash of all parameters that have an influence on the output of the worker. The profile is hashed through its json
+     * representation, as the hashCode of the profile isn't stable between runs of the application.
+     */
+    public String getProfileHash(Profile profile, String... additionalParameters) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(objectMapper.writeValueAsBytes(profile));
+            for (String parameter : additionalParameters) {
+                digest.update(String.valueOf(parameter).getBytes(StandardCharsets.UTF_8));
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException | JsonProcessingException e) {
+            throw new WorkerException(e.getMessage());
+        }
+    }
+
+    private Map<String, ProcessedFile> getProcessedFiles() {
+        if (processedFiles == null) {
+            readProcessedFiles();
+        }
+        return processedFiles;
+    }
+
+    private void readProcessedFiles() {
+        try {
+            processedFiles = objectMapper.readValue(
+                    Files.readString(Paths.get(
+                            LswFileUtil.getDataFolder(LswUtil.getActiveOSProfile()) + PROCESSED_FILES_FILE)),
+                    new TypeReference<HashMap<String, ProcessedFile>>() {});
+        } catch (Exception e) {
+            log.info("Processed files index not found, starting with an empty one");
+            processedFiles = new HashMap<>();
+        }
+    }
+
+    private String getKey(File file) {
+        return LswFileUtil.getIJFileFormat(file.getAbsolutePath());
+    }
+}
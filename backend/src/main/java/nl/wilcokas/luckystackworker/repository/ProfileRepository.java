@@ -12,6 +12,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import lombok.RequiredArgsConstructor;
@@ -43,13 +44,10 @@ public class ProfileRepository {
 
     private Map<String, Profile> profiles;
 
-    public Profile updateProfile(ProfileDTO profileDTO) {
+    public synchronized Profile updateProfile(ProfileDTO profileDTO) {
         log.info("updateProfile called with profile {}", profileDTO);
-        if (profiles == null) {
-            readProfiles();
-        }
         Profile profile = new Profile(profileDTO);
-        profiles.put(profile.getName(), profile);
+        getProfiles().put(profile.getName(), profile);
         try {
             objectMapper.writeValue(
                     new File(LswFileUtil.getDataFolder(LswUtil.getActiveOSProfile()) + PROFILES_FILE),
@@ -61,17 +59,30 @@ public class ProfileRepository {
     }
 
     public Optional<Profile> findByName(String profileName) {
-        if (profiles == null) {
-            readProfiles();
-        }
-        return Optional.ofNullable(profiles.get(profileName));
+        return Optional.ofNullable(getProfiles().get(profileName));
+    }
+
+    /**
+     * A copy of the stored profile, for processing that changes the profile while running. The automatic dispersion
+     * correction fills in the correction it determined, which must not end up in the stored profile.
+     */
+    public Optional<Profile> findCopyByName(String profileName) {
+        return findByName(profileName).map(profile -> objectMapper.convertValue(profile, Profile.class));
     }
 
     public Collection<Profile> getAllProfiles() {
+        return getProfiles().values();
+    }
+
+    /**
+     * Batch files are processed in parallel, so the profiles are loaded by whichever job gets here first and shared
+     * with the others.
+     */
+    private synchronized Map<String, Profile> getProfiles() {
         if (profiles == null) {
             readProfiles();
         }
-        return profiles.values();
+        return profiles;
     }
 
     private void readProfiles() {
@@ -89,7 +100,8 @@ public class ProfileRepository {
             List<Profile> list = objectMapper.readValue(json, new TypeReference<>() {});
             list = addNewProfilesWhenMissing(list);
             list.forEach(LswFileUtil::correctProfileForBackwardCompatability);
-            profiles = list.stream().collect(Collectors.toMap(Profile::getName, Function.identity()));
+            profiles = new ConcurrentHashMap<>(
+                    list.stream().collect(Collectors.toMap(Profile::getName, Function.identity())));
         } catch (JsonProcessingException e) {
             log.error("Error reading profiles: ", e);
             throw new ProfileNotFoundException(e.getMessage());
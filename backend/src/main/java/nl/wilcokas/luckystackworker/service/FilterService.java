@@ -22,11 +22,14 @@ import nl.wilcokas.luckystackworker.model.FilterEnum;
 import nl.wilcokas.luckystackworker.model.PSF;
 import nl.wilcokas.luckystackworker.model.PSFType;
 import nl.wilcokas.luckystackworker.model.Profile;
+import nl.wilcokas.luckystackworker.service.bean.FilterJobState;
 import nl.wilcokas.luckystackworker.service.bean.LswImageLayers;
+import nl.wilcokas.luckystackworker.service.bean.StageCache;
 import nl.wilcokas.luckystackworker.util.LswFileUtil;
 import nl.wilcokas.luckystackworker.util.LswImageProcessingUtil;
 import nl.wilcokas.luckystackworker.util.PsfDiskGenerator;
 import org.apache.commons.lang3.tuple.Pair;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 @Slf4j
@@ -45,21 +48,26 @@ public class FilterService {
     private final HistogramStretchFilter histogramStretchFilter;
     private final WienerDeconvolutionFilter wienerDeconvolutionFilter;
     private final BilateralDenoiseFilter bilateralDenoiseFilter;
+    private final ROFDenoiseFilter rofDenoiseFilter;
     private final LocalContrastFilter localContrastFilter;
     private final RotationFilter rotationFilter;
     private final GammaFilter gammaFilter;
     private final ClippingSuppressionFilter clippingSuppressionFilter;
     private final LuckyStackWorkerContext luckyStackWorkerContext;
 
-    private int displayedProgress = 0;
-    private Timer timer = new Timer();
+    @Value("${filter.cache.max.megabytes}")
+    private long cacheMaxMegabytes;
 
-    private final List<Pair<FilterEnum, LSWFilter>> filters = new ArrayList<>();
+    @Value("${filter.cache.off.heap}")
+    private boolean cacheOffHeap;
+
+    private FilterJobState referenceImageState;
 
-    private Map<FilterEnum, LswImageLayers> cache = new HashMap<>();
+    private final List<Pair<FilterEnum, LSWFilter>> filters = new ArrayList<>();
 
     @PostConstruct
     void init() {
+        referenceImageState = FilterJobState.interactive(new StageCache(cacheMaxMegabytes * 1024 * 1024, cacheOffHeap));
         filters.add(Pair.of(FilterEnum.CLIPPING_SUPPRESSION, clippingSuppressionFilter));
         filters.add(Pair.of(FilterEnum.WIENER_DECONV, wienerDeconvolutionFilter));
         filters.add(Pair.of(FilterEnum.SHARPEN, lswSharpenFilter));
@@ -68,6 +76,7 @@ public class FilterService {
         filters.add(Pair.of(FilterEnum.BILATERAL_DENOISE, bilateralDenoiseFilter));
         filters.add(Pair.of(FilterEnum.SIGMA_DENOISE_2, sigmaDenoise2Filter));
         filters.add(Pair.of(FilterEnum.SAVITSKY_GOLAY, savitzkyGolayFilter));
+        filters.add(Pair.of(FilterEnum.ROF_DENOISE, rofDenoiseFilter));
         filters.add(Pair.of(FilterEnum.LOCAL_CONTRAST, localContrastFilter));
         filters.add(Pair.of(FilterEnum.GAMMA, gammaFilter));
         filters.add(Pair.of(FilterEnum.COLOR_NORMALIZE, colorNormalisationFilter));
@@ -83,7 +92,16 @@ public class FilterService {
     }
 
     public void clearCache() {
-        cache.clear();
+        referenceImageState.getCache().clear();
+    }
+
+    /**
+     * Must be called whenever a different image is opened as reference image, so its cached results aren't mistaken
+     * for results of the new one.
+     */
+    public void referenceImageChanged() {
+        referenceImageState.nextImageGeneration();
+        clearCache();
     }
 
     public byte[] applyAllFilters(
@@ -93,10 +111,29 @@ public class FilterService {
             List<FilterEnum> filterParams,
             boolean isMono,
             boolean fromWorker) {
-        updateProgress(viewer, 0, false);
+        return applyAllFilters(referenceImageState, image, viewer, profile, filterParams, isMono, fromWorker);
+    }
+
+    /**
+     * Applies all filters using the given job state instead of the one of the reference image, which allows the
+     * worker to filter multiple images concurrently.
+     */
+    public byte[] applyAllFilters(
+            FilterJobState state,
+            ImagePlus image,
+            LswImageViewer viewer,
+            Profile profile,
+            List<FilterEnum> filterParams,
+            boolean isMono,
+            boolean fromWorker) {
+        updateProgress(state, viewer, 0, false);
 
         byte[] psfImage = updatePSF(profile.getPsf(), filterParams, profile.getName(), isMono, fromWorker);
         List<FilterEnum> appliedFilters = new ArrayList<>(filterParams);
+        if (appliedFilters.contains(FilterEnum.PSF)) {
+            // The PSF image has been (re)generated, the deconvolution must use the new one
+            appliedFilters.add(FilterEnum.WIENER_DECONV);
+        }
         int progressIncrease = 100 / this.filters.size();
         int progress = 0;
 
@@ -107,24 +144,13 @@ public class FilterService {
             workImage = createTempCroppedImage(roi, stack);
         }
 
-        int cacheWidth = cache.isEmpty()
-                ? 0
-                : cache.entrySet().stream().findFirst().get().getValue().getWidth();
-        int cacheHeight = cache.isEmpty()
-                ? 0
-                : cache.entrySet().stream().findFirst().get().getValue().getHeight();
-        if (workImage.getHeight() != cacheHeight || workImage.getWidth() != cacheWidth) {
-            log.info("ROI has been modified, clearing the cache");
-            clearCache();
-        }
-
-        applyFilters(viewer, profile, isMono, appliedFilters, workImage, progress, progressIncrease);
+        applyFilters(state, viewer, profile, isMono, appliedFilters, workImage, progress, progressIncrease);
 
         if (luckyStackWorkerContext.isRoiActive()) {
             copyPixelsBackToImage(roi, workImage.getStack(), stack);
         }
 
-        resetProgress(viewer);
+        resetProgress(state, viewer);
 
         return psfImage;
     }
@@ -220,7 +246,14 @@ public class FilterService {
         return (int) (value / 20);
     }
 
+    /**
+     * Applies the filters in order, resuming from the most advanced cached result that is still valid. A cached result
+     * is valid when it was computed from the same input image with the same parameters for the filter itself and for
+     * all filters before it, and when neither the filter nor one of the filters before it is explicitly requested to be
+     * re-applied.
+     */
     private void applyFilters(
+            FilterJobState state,
             LswImageViewer viewer,
             Profile profile,
             boolean isMono,
@@ -228,41 +261,149 @@ public class FilterService {
             ImagePlus workImage,
             int progress,
             int progressIncrease) {
-
-        FilterEnum previousCachedOperation = getPreviousCachedOperation(profile, workImage, appliedFilters);
-        boolean filterEncountered = false;
+        StageCache cache = state.getCache();
+        List<List<Object>> cacheKeys = new ArrayList<>();
+        int resumeIndex = -1;
+        List<Object> imageIdentity = getImageIdentity(state, workImage, isMono);
+        if (state.isCachingEnabled()) {
+            cacheKeys = getCacheKeys(imageIdentity, profile);
+            int firstAppliedIndex = 0;
+            while (firstAppliedIndex < filters.size()
+                    && !appliedFilters.contains(filters.get(firstAppliedIndex).getLeft())) {
+                firstAppliedIndex++;
+            }
+            for (int i = firstAppliedIndex - 1; i >= 0 && resumeIndex < 0; i--) {
+                if (cache.contains(filters.get(i).getLeft(), cacheKeys.get(i))) {
+                    resumeIndex = i;
+                }
+            }
+            if (resumeIndex >= 0) {
+                FilterEnum resumeOperation = filters.get(resumeIndex).getLeft();
+                log.info("Continuing from cached result of {}", resumeOperation);
+                cache.restore(resumeOperation, workImage);
+            }
+        }
         for (int i = 0; i < filters.size(); i++) {
             Pair<FilterEnum, LSWFilter> filterData = filters.get(i);
-            FilterEnum filterOperation = filterData.getLeft();
-            LswImageLayers cacheValue = cache.get(filterOperation);
-            if (appliedFilters.contains(filterOperation) || filterEncountered || appliedFilters.isEmpty()) {
-                LSWFilter filter = filterData.getRight();
-                if (filter.apply(workImage, profile, isMono)) {
-                    cache.put(filterOperation, LswImageProcessingUtil.getImageLayers(workImage));
+            LSWFilter filter = filterData.getRight();
+            int lastIndex = i;
+            if (i > resumeIndex) {
+                int appliedIndex = -1;
+                if (filter instanceof PointOperationFilter
+                        && filter.isApplied(profile, workImage)
+                        && LswImageProcessingUtil.validateRGBStack(workImage)) {
+                    lastIndex = getLastPointOperationIndex(i, profile, workImage);
+                    appliedIndex = applyPointOperations(i, lastIndex, profile, workImage);
+                } else if (filter.apply(workImage, profile, isMono)) {
+                    appliedIndex = i;
+                    if (filter == wienerDeconvolutionFilter && viewer != null) {
+                        // Only the iterations of the displayed image are reported, batch files are filtered
+                        // concurrently.
+                        luckyStackWorkerContext.setDeconvolutionIterationsRun(
+                                (Integer) workImage.getProperty(WienerDeconvolutionFilter.ITERATIONS_RUN_PROPERTY));
+                    }
+                }
+                if (appliedIndex >= 0 && state.isCachingEnabled()) {
+                    // Filters may resolve parameters of the profile while being applied, like the automatic
+                    // dispersion correction does. The result is stored under the resolved values, which are the
+                    // ones the next render will have.
+                    cacheKeys = getCacheKeys(imageIdentity, profile);
+                    cache.put(
+                            filters.get(appliedIndex).getLeft(),
+                            cacheKeys.get(appliedIndex),
+                            workImage,
+                            filters.get(appliedIndex).getRight().isSlow());
                 }
-                filterEncountered = true;
-            } else if (previousCachedOperation == filterOperation && cacheValue != null) {
-                log.info("Applying {} from cache", filterOperation);
-                LswImageProcessingUtil.updateImageLayers(workImage, cacheValue);
             }
-            progress += progressIncrease;
+            progress += progressIncrease * (lastIndex - i + 1);
+            i = lastIndex;
             boolean nextOperationSlow =
                     filters.get(i < filters.size() - 1 ? i + 1 : i).getRight().isSlow();
-            updateProgress(viewer, progress, nextOperationSlow);
+            updateProgress(state, viewer, progress, nextOperationSlow);
         }
     }
 
-    private void resetProgress(LswImageViewer viewer) {
+    /**
+     * Index of the last filter of the sequence of point operations that starts at the given index. Filters that aren't
+     * applied don't interrupt the sequence, as they leave the image unchanged.
+     */
+    private int getLastPointOperationIndex(int firstIndex, Profile profile, ImagePlus image) {
+        int lastIndex = firstIndex;
+        for (int i = firstIndex + 1; i < filters.size(); i++) {
+            LSWFilter filter = filters.get(i).getRight();
+            if (filter instanceof PointOperationFilter || !filter.isApplied(profile, image)) {
+                lastIndex = i;
+            } else {
+                break;
+            }
+        }
+        return lastIndex;
+    }
+
+    /**
+     * Applies all point operations from the first up to and including the last index in a single pipeline, returns the
+     * index of the last filter that was actually applied. Intermediate results aren't available, so only the outcome of
+     * the whole sequence is cached.
+     */
+    private int applyPointOperations(int firstIndex, int lastIndex, Profile profile, ImagePlus image) {
+        PointOperationPipeline pipeline = new PointOperationPipeline();
+        int appliedIndex = -1;
+        for (int i = firstIndex; i <= lastIndex; i++) {
+            if (filters.get(i).getRight() instanceof PointOperationFilter filter && filter.isApplied(profile, image)) {
+                filter.addTo(pipeline, image, profile);
+                appliedIndex = i;
+            }
+        }
+        pipeline.run(image);
+        return appliedIndex;
+    }
+
+    /**
+     * Key of every filter, made of the identity of the input image and the parameters of the filter itself and of all
+     * filters before it.
+     */
+    private List<List<Object>> getCacheKeys(List<Object> imageIdentity, Profile profile) {
+        List<List<Object>> cacheKeys = new ArrayList<>();
+        List<Object> cacheKey = new ArrayList<>(imageIdentity);
+        for (Pair<FilterEnum, LSWFilter> filterData : filters) {
+            cacheKey.add(filterData.getLeft());
+            cacheKey.addAll(filterData.getRight().getParameters(profile));
+            cacheKeys.add(new ArrayList<>(cacheKey));
+        }
+        return cacheKeys;
+    }
+
+    /**
+     * The input image is restored from the same unprocessed layers on every render, so it is identified by the
+     * generation of the job instead of by its pixels. With an active ROI, only the selected part is filtered.
+     */
+    private List<Object> getImageIdentity(FilterJobState state, ImagePlus image, boolean isMono) {
+        List<Object> identity = new ArrayList<>();
+        identity.add(state.getImageGeneration());
+        identity.add(image.getWidth());
+        identity.add(image.getHeight());
+        identity.add(isMono);
+        if (luckyStackWorkerContext.isRoiActive()) {
+            Roi roi = luckyStackWorkerContext.getSelectedRoi();
+            identity.add(roi.getXBase());
+            identity.add(roi.getYBase());
+        }
+        return identity;
+    }
+
+    private void resetProgress(FilterJobState state, LswImageViewer viewer) {
+        if (viewer == null) {
+            state.setDisplayedProgress(0);
+            return;
+        }
         Timer resetProgressTimer = new Timer();
         resetProgressTimer.schedule(
                 new TimerTask() {
                     @Override
                     public void run() {
-                        displayedProgress = 0;
+                        state.setDisplayedProgress(0);
                         resetProgressTimer.cancel();
-                        if (viewer != null) {
-                            viewer.updateProgress(displayedProgress);
-                        }
+                        viewer.updateProgress(state.getDisplayedProgress());
                     }
                 },
                 Constants.ARTIFICIAL_PROGRESS_DELAY,
@@ -314,45 +455,34 @@ public class FilterService {
         }
     }
 
-    private FilterEnum getPreviousCachedOperation(Profile profile, ImagePlus image, List<FilterEnum> operations) {
-        boolean operationFound = false;
-        for (int i = filters.size() - 1; i >= 0; i--) {
-            Pair<FilterEnum, LSWFilter> filterData = filters.get(i);
-            FilterEnum currentFilterOperation = filterData.getLeft();
-            if (operations.contains(currentFilterOperation)) {
-                operationFound = true;
-                continue;
-            }
-            LswImageLayers cacheValue = cache.get(currentFilterOperation);
-            if (operationFound && cacheValue != null && filterData.getRight().isApplied(profile, image)) {
-                return currentFilterOperation;
-            }
+    private void updateProgress(FilterJobState state, LswImageViewer viewer, int progress, boolean slowOperationNext) {
+        if (state.getDisplayedProgress() < progress) {
+            state.setDisplayedProgress(progress);
         }
-        return null;
-    }
-
-    private void updateProgress(LswImageViewer viewer, int progress, boolean slowOperationNext) {
-        if (displayedProgress < progress) {
-            displayedProgress = progress;
+        if (viewer == null) {
+            // Nothing to display, so there is no need for the artificial progress timer either.
+            return;
         }
-        if (viewer != null) {
-            viewer.updateProgress(displayedProgress);
+        viewer.updateProgress(state.getDisplayedProgress());
+        if (state.getTimer() != null) {
+            state.getTimer().cancel();
         }
         if (slowOperationNext) {
-            timer = new Timer();
+            Timer timer = new Timer();
             timer.schedule(
                     new TimerTask() {
                         @Override
                         public void run() {
-                            if (viewer != null) {
-                                viewer.updateProgress(displayedProgress++);
-                            }
+                            int displayedProgress = state.getDisplayedProgress();
+                            state.setDisplayedProgress(displayedProgress + 1);
+                            viewer.updateProgress(displayedProgress);
                         }
                     },
                     Constants.ARTIFICIAL_PROGRESS_DELAY,
                     Constants.ARTIFICIAL_PROGRESS_DELAY);
+            state.setTimer(timer);
         } else {
-            timer.cancel();
+            state.setTimer(null);
         }
     }
 
@@ -29,6 +29,7 @@ import org.springframework.stereotype.Service;
 public class PSFService {
 
     private final ReferenceImageService referenceImageService;
+    private final FilterService filterService;
     private final SettingsRepository settingsService;
     private final ProfileRepository profileService;
     private final LuckyStackWorkerContext luckyStackWorkerContext;
@@ -73,6 +74,8 @@ public class PSFService {
                 LswFileUtil.savePSF(psf, profileName);
                 byte[] psfImage = LswFileUtil.getWienerDeconvolutionPSFImage(profileName);
                 profile.getPsf().setType(PSFType.CUSTOM);
+                // The contents of a custom PSF are not part of the profile, so cached results can't be reused.
+                filterService.clearCache();
                 referenceImageService.updateProcessing(profile, emptyList());
                 return ResponseDTO.builder().psfImage(getPSFImageDto(psfImage)).build();
             }
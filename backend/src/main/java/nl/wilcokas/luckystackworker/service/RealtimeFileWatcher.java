@@ -0,0 +1,246 @@
+package nl.wilcokas.luckystackworker.service;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import jakarta.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+import nl.wilcokas.luckystackworker.constants.Constants;
+import nl.wilcokas.luckystackworker.util.LswFileUtil;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps track of the images that are written to the root folder while realtime processing is enabled. Files are
+ * reported once they are stable, i.e. their size and modification time did not change for a while, so a stacker that
+ * is still writing a file doesn't cause a half written image to be processed. When the file system doesn't support a
+ * watch service, the folder is rescanned and compared against an index of the files that were seen before.
+ */
+@Slf4j
+@Component
+public class RealtimeFileWatcher {
+
+    private static final long STABLE_DELAY = 1000; // milliseconds
+    private static final long POLL_INTERVAL = 250; // milliseconds
+    private static final long RESCAN_INTERVAL = 2000; // milliseconds, only used when there is no watch service
+
+    private final Map<Path, PendingFile> pendingFiles = new LinkedHashMap<>();
+    private final Map<Path, Long> knownFiles = new HashMap<>();
+    private WatchService watchService;
+    private Path rootFolder;
+    private Set<String> extensions;
+    private long lastScanTime;
+
+    /**
+     * Starts watching the given root folder, unless it was already being watched. All images that are present in the
+     * folder at that moment are reported as well, it is up to the caller to skip the ones that were already processed.
+     */
+    public void watch(String folder, String[] fileExtensions) {
+        Path path = Paths.get(folder).toAbsolutePath().normalize();
+        if (path.equals(rootFolder)) {
+            return;
+        }
+        stop();
+        rootFolder = path;
+        extensions = Arrays.stream(fileExtensions).map(String::toLowerCase).collect(Collectors.toSet());
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            registerRecursively(rootFolder);
+            log.info("Watching folder {} for new images", rootFolder);
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("Could not watch folder {}, falling back to rescanning it: {}", rootFolder, e.getMessage());
+            closeWatchService();
+        }
+        scan(rootFolder);
+    }
+
+    public void stop() {
+        closeWatchService();
+        rootFolder = null;
+        pendingFiles.clear();
+        knownFiles.clear();
+    }
+
+    /**
+     * Waits at most the given amount of milliseconds for files to become stable and returns these in the order in
+     * which they were first seen. An empty list is returned when nothing became stable in time.
+     */
+    public List<File> pollStableFiles(long timeout) throws InterruptedException {
+        if (rootFolder == null) {
+            return List.of();
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        List<File> stableFiles;
+        do {
+            if (watchService != null) {
+                WatchKey key = watchService.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    processEvents(key);
+                    key = watchService.poll();
+                }
+            } else {
+                if (System.currentTimeMillis() - lastScanTime >= RESCAN_INTERVAL) {
+                    scan(rootFolder);
+                }
+                Thread.sleep(POLL_INTERVAL);
+            }
+            stableFiles = takeStableFiles();
+        } while (stableFiles.isEmpty() && System.currentTimeMillis() < deadline);
+        return stableFiles;
+    }
+
+    /**
+     * Puts files that were reported but not handled back in front of the pending files, so they are reported again
+     * even when they don't change anymore.
+     */
+    public void requeue(List<File> files) {
+        if (rootFolder == null || files.isEmpty()) {
+            return;
+        }
+        Map<Path, PendingFile> requeuedFiles = new LinkedHashMap<>();
+        for (File file : files) {
+            Path path = file.toPath().toAbsolutePath().normalize();
+            knownFiles.put(path, file.lastModified());
+            requeuedFiles.put(path, new PendingFile());
+        }
+        pendingFiles.forEach(requeuedFiles::putIfAbsent);
+        pendingFiles.clear();
+        pendingFiles.putAll(requeuedFiles);
+    }
+
+    @PreDestroy
+    void close() {
+        stop();
+    }
+
+    private void processEvents(WatchKey key) {
+        Path folder = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                log.warn("Missed file system events for {}, rescanning it", folder);
+                scan(folder);
+                continue;
+            }
+            Path path = folder.resolve((Path) event.context());
+            if (Files.isDirectory(path)) {
+                if (event.kind() == ENTRY_CREATE && !isOutputFolder(path)) {
+                    registerRecursively(path);
+                    scan(path);
+                }
+            } else {
+                addPendingFile(path);
+            }
+        }
+        if (!key.reset()) {
+            log.info("Folder {} is no longer being watched", folder);
+        }
+    }
+
+    private void registerRecursively(Path folder) {
+        try (Stream<Path> folders = Files.walk(folder)) {
+            for (Path path : folders.filter(Files::isDirectory)
+                    .filter(p -> !isOutputFolder(p))
+                    .toList()) {
+                path.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+            }
+        } catch (IOException e) {
+            log.warn("Could not watch folder {}: {}", folder, e.getMessage());
+        }
+    }
+
+    private void scan(Path folder) {
+        lastScanTime = System.currentTimeMillis();
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.filter(Files::isRegularFile).forEach(this::addPendingFile);
+        } catch (IOException e) {
+            log.warn("Could not scan folder {}: {}", folder, e.getMessage());
+        }
+    }
+
+    private void addPendingFile(Path path) {
+        String extension = LswFileUtil.getFilenameExtension(LswFileUtil.getIJFileFormat(path.toString()));
+        if (!extensions.contains(extension) || isOutputFolder(path.getParent())) {
+            return;
+        }
+        long lastModified = path.toFile().lastModified();
+        Long knownLastModified = knownFiles.get(path);
+        if (knownLastModified != null && knownLastModified == lastModified) {
+            return;
+        }
+        knownFiles.put(path, lastModified);
+        pendingFiles.putIfAbsent(path, new PendingFile());
+    }
+
+    private List<File> takeStableFiles() {
+        List<File> stableFiles = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, PendingFile>> iterator = pendingFiles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, PendingFile> entry = iterator.next();
+            File file = entry.getKey().toFile();
+            if (!file.exists()) {
+                iterator.remove();
+                knownFiles.remove(entry.getKey());
+                continue;
+            }
+            PendingFile pendingFile = entry.getValue();
+            long size = file.length();
+            long lastModified = file.lastModified();
+            if (size != pendingFile.size || lastModified != pendingFile.lastModified) {
+                // Files that were already there before they were seen for the first time don't have to be waited for.
+                pendingFile.lastChanged = pendingFile.size < 0 ? Math.min(now, lastModified) : now;
+                pendingFile.size = size;
+                pendingFile.lastModified = lastModified;
+            }
+            if (size > 0 && now - pendingFile.lastChanged >= STABLE_DELAY) {
+                iterator.remove();
+                knownFiles.put(entry.getKey(), lastModified);
+                stableFiles.add(file);
+            }
+        }
+        return stableFiles;
+    }
+
+    private boolean isOutputFolder(Path folder) {
+        return folder != null
+                && folder.getFileName() != null
+                && folder.getFileName().toString().endsWith(Constants.WORKER_FOLDER_POSTFIX);
+    }
+
+    private void closeWatchService() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                log.warn("Error closing the watch service: {}", e.getMessage());
+            }
+            watchService = null;
+        }
+    }
+
+    private static class PendingFile {
+        private long size = -1;
+        private long lastModified = -1;
+        private long lastChanged;
+    }
+}
@@ -65,6 +65,7 @@ import nl.wilcokas.luckystackworker.repository.ProfileRepository;
 import nl.wilcokas.luckystackworker.repository.SettingsRepository;
 import nl.wilcokas.luckystackworker.service.bean.GithubRelease;
 import nl.wilcokas.luckystackworker.service.bean.LswImageLayers;
+import nl.wilcokas.luckystackworker.service.bean.StackModeEnum;
 import nl.wilcokas.luckystackworker.service.client.GithubClientService;
 import nl.wilcokas.luckystackworker.util.*;
 import org.apache.commons.lang3.tuple.Pair;
@@ -623,7 +624,7 @@ public class ReferenceImageService implements RoiListener, WindowListener, Compo
     }
 
     @SneakyThrows
-    public void derotate(DeRotation deRotation, double scale, String openImageMode) {
+    public void derotate(DeRotation deRotation, double scale, String openImageMode, StackModeEnum stackMode) {
         luckyStackWorkerContext.setStatus(Constants.STATUS_WORKING);
         var executor = Executors.newVirtualThreadPerTaskExecutor();
         CompletableFuture.runAsync(
@@ -636,6 +637,7 @@ public class ReferenceImageService implements RoiListener, WindowListener, Compo
                                 deRotation.getAnchorStrength(),
                                 deRotation.getNoiseRobustness(),
                                 deRotation.getAccurateness(),
+                                stackMode,
                                 getParentFrame());
                         if (deRotatedImagePath != null) {
                             openImageAfterStacking(
@@ -648,7 +650,7 @@ public class ReferenceImageService implements RoiListener, WindowListener, Compo
                 executor);
     }
 
-    public void stackImages(Double scale, String openImageMode) {
+    public void stackImages(Double scale, String openImageMode, StackModeEnum stackMode) {
         JFileChooser jfc =
                 getJFileChooser(settingsService.getRootFolder(), "Open images, use shift+click to select multiple");
         jfc.setMultiSelectionEnabled(true);
@@ -684,7 +686,8 @@ public class ReferenceImageService implements RoiListener, WindowListener, Compo
                                                 .map(LswFileUtil::getIJFileFormat)
                                                 .toList(),
                                         getParentFrame(),
-                                        false);
+                                        false,
+                                        stackMode);
                                 openImageAfterStacking(stackedImagePath, rootFolder, scale, openImageMode);
                             } catch (IOException e) {
                                 log.error("Error stacking images : ", e);
@@ -824,7 +827,7 @@ public class ReferenceImageService implements RoiListener, WindowListener, Compo
         if (finalResultImage != null) {
             setImageMetadata(filePath, profile, dateTime, finalResultImage, profile.getScale());
             operationService.correctExposure(finalResultImage);
-            operationService.clearCache();
+            operationService.referenceImageChanged();
             unprocessedImageLayers = LswImageProcessingUtil.getImageLayers(finalResultImage);
 
             log.info("Opened final result image image with id {}", finalResultImage.getID());
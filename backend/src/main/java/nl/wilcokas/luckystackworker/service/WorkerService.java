@@ -5,21 +5,32 @@ import static java.util.Collections.*;
 import ij.ImagePlus;
 import java.io.File;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import nl.wilcokas.luckystackworker.LuckyStackWorkerContext;
 import nl.wilcokas.luckystackworker.constants.Constants;
 import nl.wilcokas.luckystackworker.exceptions.ProfileNotFoundException;
+import nl.wilcokas.luckystackworker.exceptions.WorkerException;
 import nl.wilcokas.luckystackworker.model.Profile;
+import nl.wilcokas.luckystackworker.repository.ProcessedFileRepository;
 import nl.wilcokas.luckystackworker.repository.ProfileRepository;
 import nl.wilcokas.luckystackworker.repository.SettingsRepository;
+import nl.wilcokas.luckystackworker.service.bean.FilterJobState;
 import nl.wilcokas.luckystackworker.service.bean.OpenImageModeEnum;
 import nl.wilcokas.luckystackworker.util.LswFileUtil;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.tuple.Pair;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
@@ -32,10 +43,13 @@ public class WorkerService {
     private final SettingsRepository settingsService;
     private final ProfileRepository profileService;
     private final LuckyStackWorkerContext luckyStackWorkerContext;
+    private final RealtimeFileWatcher realtimeFileWatcher;
+    private final ProcessedFileRepository processedFileRepository;
+
+    @Value("${worker.number.of.parallel.files}")
+    private int numberOfParallelFiles;
 
     private static final int WAIT_DELAY = 4000;
-    private static final int REALTIME_WAIT_LOOP = 1;
-    private int realtimeCountdown = REALTIME_WAIT_LOOP;
 
     @Scheduled(fixedDelay = WAIT_DELAY)
     public void doWork() {
@@ -46,12 +60,9 @@ public class WorkerService {
             } else {
                 log.debug("Waiting for a profile to be applied...");
                 if (luckyStackWorkerContext.isRealTimeEnabled() && luckyStackWorkerContext.isRootFolderSelected()) {
-                    if (realtimeCountdown == 0) {
-                        realtimeCountdown = REALTIME_WAIT_LOOP;
-                        realtimeProcess();
-                    } else {
-                        realtimeCountdown--;
-                    }
+                    realtimeProcess();
+                } else {
+                    realtimeFileWatcher.stop();
                 }
             }
         } catch (Exception e) {
@@ -88,51 +99,101 @@ public class WorkerService {
     private void realtimeProcess() {
         log.debug("Checking if there is any file to process...");
         try {
-            Collection<File> files = getImages(true);
-            for (File file : files) {
-                String name = LswFileUtil.getFilename(LswFileUtil.getIJFileFormat(file.getAbsolutePath()));
-                String extension = LswFileUtil.getFilenameExtension(file);
-                if (!name.contains(Constants.OUTPUT_POSTFIX)
-                        && (!name.contains(Constants.OUTPUT_POSTFIX_SAVE))
-                        && Arrays.asList(settingsService.getExtensions()).contains(extension)
-                        && !isInFileList(files, name + Constants.OUTPUT_POSTFIX)) {
-                    log.info("Realtime processing file {}", name);
-                    if (processFile(file, true)) {
-                        // If one file was successfully processed then keep it to that, else find a next
-                        // one.
-                        break;
+            realtimeFileWatcher.watch(settingsService.getRootFolder(), settingsService.getExtensions());
+            // Keep processing newly written files back-to-back until it has been quiet for a while or until the
+            // worker is needed for something else.
+            List<File> files = realtimeFileWatcher.pollStableFiles(WAIT_DELAY);
+            while (!files.isEmpty()) {
+                int filesHandled = 0;
+                try {
+                    for (File file : files) {
+                        if (!luckyStackWorkerContext.isRealTimeEnabled()
+                                || luckyStackWorkerContext.isProfileBeingApplied()) {
+                            return;
+                        }
+                        // A file that fails is not reported again, it would fail again on the next poll.
+                        filesHandled++;
+                        String name = LswFileUtil.getFilename(LswFileUtil.getIJFileFormat(file.getAbsolutePath()));
+                        if (!name.contains(Constants.OUTPUT_POSTFIX)
+                                && !name.contains(Constants.OUTPUT_POSTFIX_SAVE)
+                                && !isProcessedBeforeIndexExisted(file)) {
+                            log.info("Realtime processing file {}", name);
+                            processFile(file, true);
+                            processedFileRepository.save();
+                        }
                     }
+                } finally {
+                    // The watcher keeps running when the worker is needed for something else, the rest of the
+                    // files are picked up again by the next realtime pass.
+                    realtimeFileWatcher.requeue(files.subList(filesHandled, files.size()));
                 }
+                files = realtimeFileWatcher.pollStableFiles(WAIT_DELAY);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             log.error("Error in realtime process:", e);
         }
     }
 
-    private boolean isInFileList(Collection<File> files, String filename) {
-        return files.stream()
-                .map(f -> LswFileUtil.getFilename(LswFileUtil.getIJFileFormat(f.getAbsolutePath())))
-                .anyMatch(filename::equals);
+    /**
+     * Files that are in the processed files index are checked against it when being processed, for the other ones an
+     * existing output file is taken as proof that the file was processed already.
+     */
+    private boolean isProcessedBeforeIndexExisted(File file) {
+        if (processedFileRepository.isKnown(file)) {
+            return false;
+        }
+        String profileName = LswFileUtil.deriveProfileFromImageName(file.getAbsolutePath());
+        return LswFileUtil.fileExists(getWorkerOutputFile(file, profileName))
+                || LswFileUtil.fileExists(getOutputFile(file));
     }
 
     private boolean processFiles(Collection<File> files) {
-        boolean filesProcessed = false;
-        int count = 0;
-        for (File file : files) {
-            String name = LswFileUtil.getFilename(file);
-            String extension = LswFileUtil.getFilenameExtension(file);
-            if (!name.contains(Constants.OUTPUT_POSTFIX)
-                    && (!name.contains(Constants.OUTPUT_POSTFIX_SAVE))
-                    && Arrays.asList(settingsService.getExtensions()).contains(extension)) {
-                filesProcessed = filesProcessed | processFile(file, false);
-            }
-            luckyStackWorkerContext.setFilesProcessedCount(++count);
-            if (luckyStackWorkerContext.isWorkerStopped()) {
-                luckyStackWorkerContext.setWorkerStopped(false);
-                break;
+        AtomicBoolean filesProcessed = new AtomicBoolean(false);
+        // Every file in flight holds its decoded image plus the intermediate filter results, so the number of files
+        // being worked on at the same time is bounded by the configured number of parallel files.
+        Semaphore filesInFlight = new Semaphore(Math.max(1, numberOfParallelFiles));
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            int filesRemaining = files.size();
+            for (File file : files) {
+                if (luckyStackWorkerContext.isWorkerStopped()) {
+                    luckyStackWorkerContext.setWorkerStopped(false);
+                    // The skipped files count as processed, so the progress still ends at the total.
+                    luckyStackWorkerContext.increaseFilesProcessedCount(filesRemaining);
+                    break;
+                }
+                filesRemaining--;
+                String name = LswFileUtil.getFilename(file);
+                String extension = LswFileUtil.getFilenameExtension(file);
+                if (name.contains(Constants.OUTPUT_POSTFIX)
+                        || name.contains(Constants.OUTPUT_POSTFIX_SAVE)
+                        || !Arrays.asList(settingsService.getExtensions()).contains(extension)) {
+                    luckyStackWorkerContext.increaseFilesProcessedCount();
+                    continue;
+                }
+                filesInFlight.acquire();
+                futures.add(CompletableFuture.runAsync(
+                        () -> {
+                            try {
+                                if (processFile(file, false)) {
+                                    filesProcessed.set(true);
+                                }
+                            } finally {
+                                filesInFlight.release();
+                                luckyStackWorkerContext.increaseFilesProcessedCount();
+                            }
+                        },
+                        executor));
             }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+        } catch (InterruptedException | ExecutionException e) { // NOSONAR
+            throw new WorkerException(e.getMessage());
+        } finally {
+            processedFileRepository.save();
         }
-        return filesProcessed;
+        return filesProcessed.get();
     }
 
     private boolean processFile(final File file, boolean realtime) {
@@ -152,10 +213,18 @@ public class WorkerService {
                     luckyStackWorkerContext.setStatus("Processing : " + filename);
                 }
 
-                Profile profile = profileService
+                // The hash is taken from the stored profile, which only holds the parameters set by the user. The
+                // filters run with a copy, so the values they derive while running don't change the hash.
+                Profile storedProfile = profileService
                         .findByName(profileName)
                         .orElseThrow(
                                 () -> new ProfileNotFoundException(String.format("Unknown profile %s", profileName)));
+                String profileHash = processedFileRepository.getProfileHash(storedProfile, getRoiParameter());
+                Profile profile = profileService.findCopyByName(profileName).orElse(storedProfile);
+                if (processedFileRepository.isUpToDate(file, profileHash)) {
+                    log.info("Skipping {}, it was already processed with the same profile settings", filename);
+                    return true;
+                }
                 Pair<ImagePlus, Boolean> imageDetails = LswFileUtil.openImage(
                         filePath,
                         OpenImageModeEnum.RGB,
@@ -168,7 +237,8 @@ public class WorkerService {
                         imp = LswFileUtil.fixNonTiffOpeningSettings(imp);
                     }
                     operationService.correctExposure(imp);
-                    operationService.applyAllFilters(imp, null, profile, emptyList(), isMono, true);
+                    operationService.applyAllFilters(
+                            FilterJobState.batch(), imp, null, profile, emptyList(), isMono, true);
                     imp.updateAndDraw();
                     if (luckyStackWorkerContext.isRoiActive()) {
                         imp.setRoi(luckyStackWorkerContext.getSelectedRoi());
@@ -189,6 +259,7 @@ public class WorkerService {
                             luckyStackWorkerContext.isRoiActive(),
                             false,
                             true);
+                    processedFileRepository.markProcessed(file, profileHash, getWorkerOutputFile(file, profileName));
                     return true;
                 }
             } catch (Exception e) {
@@ -204,4 +275,19 @@ public class WorkerService {
                 + "."
                 + Constants.DEFAULT_OUTPUT_FORMAT;
     }
+
+    /**
+     * The location where {@link LswFileUtil#saveImage} actually writes the output of the worker to.
+     */
+    private String getWorkerOutputFile(final File file, String profileName) {
+        String outputFile = getOutputFile(file);
+        return LswFileUtil.getFileDirectory(outputFile) + "/" + profileName + Constants.WORKER_FOLDER_POSTFIX + "/"
+                + LswFileUtil.getFilenameFromPath(LswFileUtil.getIJFileFormat(outputFile));
+    }
+
+    private String getRoiParameter() {
+        return luckyStackWorkerContext.isRoiActive()
+                ? String.valueOf(luckyStackWorkerContext.getSelectedRoi().getBounds())
+                : "noRoi";
+    }
 }
@@ -0,0 +1,42 @@
+package nl.wilcokas.luckystackworker.service.bean;
+
+import java.util.Timer;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Mutable state of a single filter run. The reference image keeps one instance for its whole lifetime so the
+ * intermediate results can be reused, every batch file gets its own (non-caching) instance so files can be filtered
+ * concurrently.
+ */
+@Getter
+@Setter
+public class FilterJobState {
+
+    private final StageCache cache;
+    private int displayedProgress = 0;
+    private Timer timer;
+
+    /** Counts the input images the job has been given, the cached results are only valid for the current one. */
+    private long imageGeneration = 0;
+
+    private FilterJobState(StageCache cache) {
+        this.cache = cache;
+    }
+
+    public static FilterJobState interactive(StageCache cache) {
+        return new FilterJobState(cache);
+    }
+
+    public static FilterJobState batch() {
+        return new FilterJobState(null);
+    }
+
+    public boolean isCachingEnabled() {
+        return cache != null;
+    }
+
+    public void nextImageGeneration() {
+        imageGeneration++;
+    }
+}
@@ -0,0 +1,9 @@
+package nl.wilcokas.luckystackworker.service.bean;
+
+public enum StackModeEnum {
+    MEAN,
+    QUALITY_WEIGHTED,
+    SIGMA_CLIP,
+    WINSORIZED,
+    MEDIAN
+}
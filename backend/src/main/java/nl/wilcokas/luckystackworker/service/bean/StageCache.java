@@ -0,0 +1,191 @@
+package nl.wilcokas.luckystackworker.service.bean;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+import nl.wilcokas.luckystackworker.model.FilterEnum;
+
+/**
+ * Cache of intermediate filter results that stays within a byte budget. When the budget would be exceeded, the least
+ * recently used results of fast filters are evicted first, results of slow filters are only evicted when nothing else
+ * is left. The pixels can be kept outside of the heap, so large scaled images don't put any pressure on the garbage
+ * collector.
+ */
+@Slf4j
+public class StageCache {
+
+    private static final int NUMBER_OF_LAYERS = 3;
+
+    private final long maxBytes;
+    private final boolean offHeap;
+    private final Map<FilterEnum, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes = 0;
+
+    public StageCache(long maxBytes, boolean offHeap) {
+        this.maxBytes = maxBytes;
+        this.offHeap = offHeap;
+    }
+
+    public synchronized boolean contains(FilterEnum stage, List<Object> key) {
+        Entry entry = entries.get(stage);
+        return entry != null && entry.key.equals(key);
+    }
+
+    /**
+     * Copies the cached pixels of the given stage into the image, which must have the same dimensions as the image the
+     * result was cached from.
+     */
+    public synchronized void restore(FilterEnum stage, ImagePlus image) {
+        Entry entry = entries.get(stage);
+        ImageStack stack = image.getStack();
+        for (int layer = 0; layer < NUMBER_OF_LAYERS; layer++) {
+            entry.copyTo(layer, (short[]) stack.getProcessor(layer + 1).getPixels());
+        }
+    }
+
+    public synchronized void put(FilterEnum stage, List<Object> key, ImagePlus image, boolean expensive) {
+        remove(stage);
+        int layerLength = image.getWidth() * image.getHeight();
+        long size = (long) NUMBER_OF_LAYERS * layerLength * Short.BYTES;
+        if (size > maxBytes) {
+            log.debug("Result of {} is too large to be cached", stage);
+            return;
+        }
+        while (usedBytes + size > maxBytes) {
+            evict();
+        }
+        Entry entry;
+        try {
+            entry = offHeap
+                    ? new OffHeapEntry(key, expensive, layerLength)
+                    : new HeapEntry(key, expensive, layerLength);
+        } catch (OutOfMemoryError e) {
+            log.warn("Not enough memory left to cache the result of {}", stage);
+            return;
+        }
+        ImageStack stack = image.getStack();
+        for (int layer = 0; layer < NUMBER_OF_LAYERS; layer++) {
+            short[] pixels = (short[]) stack.getProcessor(Math.min(stack.size(), layer + 1)).getPixels();
+            entry.copyFrom(layer, pixels);
+        }
+        entries.put(stage, entry);
+        usedBytes += size;
+    }
+
+    public synchronized void clear() {
+        entries.values().forEach(Entry::free);
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    private void remove(FilterEnum stage) {
+        Entry entry = entries.remove(stage);
+        if (entry != null) {
+            entry.free();
+            usedBytes -= entry.size();
+        }
+    }
+
+    private void evict() {
+        FilterEnum victim = null;
+        // Iteration order is from least to most recently used
+        for (Map.Entry<FilterEnum, Entry> entry : entries.entrySet()) {
+            if (victim == null) {
+                victim = entry.getKey();
+            }
+            if (!entry.getValue().expensive) {
+                victim = entry.getKey();
+                break;
+            }
+        }
+        log.debug("Evicting cached result of {}", victim);
+        remove(victim);
+    }
+
+    private abstract static class Entry {
+        private final List<Object> key;
+        private final boolean expensive;
+        protected final int layerLength;
+
+        Entry(List<Object> key, boolean expensive, int layerLength) {
+            this.key = key;
+            this.expensive = expensive;
+            this.layerLength = layerLength;
+        }
+
+        long size() {
+            return (long) NUMBER_OF_LAYERS * layerLength * Short.BYTES;
+        }
+
+        abstract void copyFrom(int layer, short[] pixels);
+
+        abstract void copyTo(int layer, short[] pixels);
+
+        abstract void free();
+    }
+
+    private static class HeapEntry extends Entry {
+        private final short[][] layers;
+
+        HeapEntry(List<Object> key, boolean expensive, int layerLength) {
+            super(key, expensive, layerLength);
+            layers = new short[NUMBER_OF_LAYERS][layerLength];
+        }
+
+        @Override
+        void copyFrom(int layer, short[] pixels) {
+            System.arraycopy(pixels, 0, layers[layer], 0, layerLength);
+        }
+
+        @Override
+        void copyTo(int layer, short[] pixels) {
+            System.arraycopy(layers[layer], 0, pixels, 0, layerLength);
+        }
+
+        @Override
+        void free() {
+            // Left to the garbage collector
+        }
+    }
+
+    private static class OffHeapEntry extends Entry {
+        private final Arena arena;
+        private final MemorySegment segment;
+
+        OffHeapEntry(List<Object> key, boolean expensive, int layerLength) {
+            super(key, expensive, layerLength);
+            arena = Arena.ofShared();
+            try {
+                segment = arena.allocate(ValueLayout.JAVA_SHORT, (long) NUMBER_OF_LAYERS * layerLength);
+            } catch (OutOfMemoryError e) {
+                arena.close();
+                throw e;
+            }
+        }
+
+        @Override
+        void copyFrom(int layer, short[] pixels) {
+            MemorySegment.copy(pixels, 0, segment, ValueLayout.JAVA_SHORT, getOffset(layer), layerLength);
+        }
+
+        @Override
+        void copyTo(int layer, short[] pixels) {
+            MemorySegment.copy(segment, ValueLayout.JAVA_SHORT, getOffset(layer), pixels, 0, layerLength);
+        }
+
+        @Override
+        void free() {
+            arena.close();
+        }
+
+        private long getOffset(int layer) {
+            return (long) layer * layerLength * Short.BYTES;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package nl.wilcokas.luckystackworker.util;
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+
+/**
+ * Recursive (IIR) gaussian blur after Young & van Vliet, with the boundary conditions of Triggs & Sdika so pixels
+ * outside the image are assumed equal to the nearest edge pixel, just like ImageJ's GaussianBlur. The cost per pixel
+ * doesn't depend on the radius, so large radii are as fast as small ones. The rows and columns are divided into bands
+ * that are blurred in parallel.
+ */
+public class LswGaussianBlur {
+
+    /** Below this sigma the recursive filter is no longer a good approximation of the gaussian. */
+    private static final double MIN_RECURSIVE_SIGMA = 1.0;
+
+    private static final int MIN_RECURSIVE_SIZE = 4;
+
+    private LswGaussianBlur() {}
+
+    public static void blurGaussian(FloatProcessor fp, double sigma) {
+        blurGaussian((float[]) fp.getPixels(), fp.getWidth(), fp.getHeight(), sigma);
+    }
+
+    public static void blurGaussian(float[] pixels, int width, int height, double sigma) {
+        if (sigma < MIN_RECURSIVE_SIGMA || width < MIN_RECURSIVE_SIZE || height < MIN_RECURSIVE_SIZE) {
+            new GaussianBlur().blurGaussian(new FloatProcessor(width, height, pixels), sigma, sigma, 0.01);
+            return;
+        }
+        Coefficients coefficients = Coefficients.of(sigma);
+        LswImageProcessingUtil.runInBands(height, (from, to) -> blurRows(pixels, width, from, to, coefficients));
+        LswImageProcessingUtil.runInBands(
+                width, (from, to) -> blurColumns(pixels, width, height, from, to, coefficients));
+    }
+
+    private static void blurRows(float[] pixels, int width, int fromRow, int toRow, Coefficients c) {
+        double[] forward = new double[width];
+        for (int y = fromRow; y < toRow; y++) {
+            int offset = y * width;
+            double start = pixels[offset];
+            double w1 = start;
+            double w2 = start;
+            double w3 = start;
+            for (int x = 0; x < width; x++) {
+                double w = c.b * pixels[offset + x] + c.a1 * w1 + c.a2 * w2 + c.a3 * w3;
+                forward[x] = w;
+                w3 = w2;
+                w2 = w1;
+                w1 = w;
+            }
+
+            double end = pixels[offset + width - 1];
+            double u0 = forward[width - 1] - end;
+            double u1 = forward[width - 2] - end;
+            double u2 = forward[width - 3] - end;
+            double v1 = c.m[0] * u0 + c.m[1] * u1 + c.m[2] * u2 + end;
+            double v2 = c.m[3] * u0 + c.m[4] * u1 + c.m[5] * u2 + end;
+            double v3 = c.m[6] * u0 + c.m[7] * u1 + c.m[8] * u2 + end;
+            pixels[offset + width - 1] = (float) v1;
+            for (int x = width - 2; x >= 0; x--) {
+                double v = c.b * forward[x] + c.a1 * v1 + c.a2 * v2 + c.a3 * v3;
+                pixels[offset + x] = (float) v;
+                v3 = v2;
+                v2 = v1;
+                v1 = v;
+            }
+        }
+    }
+
+    /**
+     * Blurs the columns of a band all at once, row by row, so the pixels are read in the order they are stored.
+     */
+    private static void blurColumns(
+            float[] pixels, int width, int height, int fromColumn, int toColumn, Coefficients c) {
+        int bandWidth = toColumn - fromColumn;
+        double[] forward = new double[bandWidth * height];
+        for (int y = 0; y < height; y++) {
+            int row = y * bandWidth;
+            int offset = y * width + fromColumn;
+            for (int i = 0; i < bandWidth; i++) {
+                double start = pixels[fromColumn + i];
+                double w1 = y >= 1 ? forward[row - bandWidth + i] : start;
+                double w2 = y >= 2 ? forward[row - 2 * bandWidth + i] : start;
+                double w3 = y >= 3 ? forward[row - 3 * bandWidth + i] : start;
+                forward[row + i] = c.b * pixels[offset + i] + c.a1 * w1 + c.a2 * w2 + c.a3 * w3;
+            }
+        }
+
+        double[] next1 = new double[bandWidth];
+        double[] next2 = new double[bandWidth];
+        double[] next3 = new double[bandWidth];
+        int lastRow = (height - 1) * bandWidth;
+        int lastOffset = (height - 1) * width + fromColumn;
+        for (int i = 0; i < bandWidth; i++) {
+            double end = pixels[lastOffset + i];
+            double u0 = forward[lastRow + i] - end;
+            double u1 = forward[lastRow - bandWidth + i] - end;
+            double u2 = forward[lastRow - 2 * bandWidth + i] - end;
+            next1[i] = c.m[0] * u0 + c.m[1] * u1 + c.m[2] * u2 + end;
+            next2[i] = c.m[3] * u0 + c.m[4] * u1 + c.m[5] * u2 + end;
+            next3[i] = c.m[6] * u0 + c.m[7] * u1 + c.m[8] * u2 + end;
+            pixels[lastOffset + i] = (float) next1[i];
+        }
+        for (int y = height - 2; y >= 0; y--) {
+            int row = y * bandWidth;
+            int offset = y * width + fromColumn;
+            double[] current = next3;
+            for (int i = 0; i < bandWidth; i++) {
+                current[i] = c.b * forward[row + i] + c.a1 * next1[i] + c.a2 * next2[i] + c.a3 * next3[i];
+                pixels[offset + i] = (float) current[i];
+            }
+            next3 = next2;
+            next2 = next1;
+            next1 = current;
+        }
+    }
+
+    /**
+     * Coefficients of the third order recursive filter. The forward pass computes w[n] from x[n] and the three previous
+     * values of w, the backward pass does the same in reverse. The matrix m gives the start values of the backward pass
+     * from the last values of the forward pass.
+     */
+    private record Coefficients(double b, double a1, double a2, double a3, double[] m) {
+
+        /**
+         * The scale q is solved from the exact variance of the filter rather than taken from the approximation in the
+         * paper, which overestimates sigma by up to 10%.
+         */
+        static Coefficients of(double sigma) {
+            double low = 0;
+            double high = 2 * sigma + 1;
+            for (int i = 0; i < 50; i++) {
+                double q = (low + high) / 2;
+                if (forScale(q).variance() < sigma * sigma) {
+                    low = q;
+                } else {
+                    high = q;
+                }
+            }
+            return forScale((low + high) / 2);
+        }
+
+        private static Coefficients forScale(double q) {
+            double q2 = q * q;
+            double q3 = q2 * q;
+            double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+            double a1 = (2.44413 * q + 2.85619 * q2 + 1.26661 * q3) / b0;
+            double a2 = -(1.4281 * q2 + 1.26661 * q3) / b0;
+            double a3 = 0.422205 * q3 / b0;
+            double b = 1 - (a1 + a2 + a3);
+
+            double scale = b / ((1 + a1 - a2 + a3) * (1 - a1 - a2 - a3) * (1 + a2 + (a1 - a3) * a3));
+            double[] m = {
+                scale * (-a3 * a1 + 1 - a3 * a3 - a2),
+                scale * (a3 + a1) * (a2 + a3 * a1),
+                scale * a3 * (a1 + a3 * a2),
+                scale * (a1 + a3 * a2),
+                -scale * (a2 - 1) * (a2 + a3 * a1),
+                -scale * a3 * (a3 * a1 + a3 * a3 + a2 - 1),
+                scale * (a3 * a1 + a2 + a1 * a1 - a2 * a2),
+                scale * (a1 * a2 + a3 * a2 * a2 - a1 * a3 * a3 - a3 * a3 * a3 - a3 * a2 + a3),
+                scale * a3 * (a1 + a3 * a2)
+            };
+            return new Coefficients(b, a1, a2, a3, m);
+        }
+
+        /**
+         * Variance of the impulse response of the forward and backward pass together.
+         */
+        private double variance() {
+            double mean = (a1 + 2 * a2 + 3 * a3) / b;
+            return 2 * (mean + mean * mean + (2 * a2 + 6 * a3) / b);
+        }
+    }
+}
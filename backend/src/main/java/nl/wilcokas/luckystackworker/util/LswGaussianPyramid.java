@@ -0,0 +1,87 @@
+package nl.wilcokas.luckystackworker.util;
+
+/**
+ * Moves float planes between the levels of a gaussian pyramid. A plane is reduced by averaging blocks of pixels, which
+ * assumes it is already blurred enough for the lower resolution, and expanded again by bilinear interpolation. The
+ * rows are processed in parallel bands.
+ */
+public class LswGaussianPyramid {
+
+    private LswGaussianPyramid() {}
+
+    public record Level(float[] pixels, int width, int height) {}
+
+    /**
+     * Reduces the given level by the given factor, blocks at the right and bottom edges that are only partly inside the
+     * image are averaged over the pixels that are.
+     */
+    public static Level reduce(Level level, int factor) {
+        int width = level.width();
+        int height = level.height();
+        float[] pixels = level.pixels();
+        int reducedWidth = (width + factor - 1) / factor;
+        int reducedHeight = (height + factor - 1) / factor;
+        float[] reduced = new float[reducedWidth * reducedHeight];
+        LswImageProcessingUtil.runInBands(reducedHeight, (from, to) -> {
+            for (int ry = from; ry < to; ry++) {
+                int yStart = ry * factor;
+                int yEnd = Math.min(yStart + factor, height);
+                for (int rx = 0; rx < reducedWidth; rx++) {
+                    int xStart = rx * factor;
+                    int xEnd = Math.min(xStart + factor, width);
+                    float sum = 0;
+                    for (int y = yStart; y < yEnd; y++) {
+                        for (int x = xStart; x < xEnd; x++) {
+                            sum += pixels[y * width + x];
+                        }
+                    }
+                    reduced[ry * reducedWidth + rx] = sum / ((yEnd - yStart) * (xEnd - xStart));
+                }
+            }
+        });
+        return new Level(reduced, reducedWidth, reducedHeight);
+    }
+
+    /**
+     * Expands the given level, which was reduced by the given factor, back to the given size.
+     */
+    public static Level expand(Level level, int factor, int width, int height) {
+        int[] x0 = new int[width];
+        int[] x1 = new int[width];
+        float[] fx = new float[width];
+        interpolationWeights(level.width(), factor, x0, x1, fx);
+        int[] y0 = new int[height];
+        int[] y1 = new int[height];
+        float[] fy = new float[height];
+        interpolationWeights(level.height(), factor, y0, y1, fy);
+
+        float[] pixels = level.pixels();
+        int levelWidth = level.width();
+        float[] expanded = new float[width * height];
+        LswImageProcessingUtil.runInBands(height, (from, to) -> {
+            for (int y = from; y < to; y++) {
+                int row0 = y0[y] * levelWidth;
+                int row1 = y1[y] * levelWidth;
+                for (int x = 0; x < width; x++) {
+                    float top = pixels[row0 + x0[x]] + fx[x] * (pixels[row0 + x1[x]] - pixels[row0 + x0[x]]);
+                    float bottom = pixels[row1 + x0[x]] + fx[x] * (pixels[row1 + x1[x]] - pixels[row1 + x0[x]]);
+                    expanded[y * width + x] = top + fy[y] * (bottom - top);
+                }
+            }
+        });
+        return new Level(expanded, width, height);
+    }
+
+    /**
+     * Maps every position of the expanded axis onto the two nearest pixel centers of the reduced axis and the weight of
+     * the second one.
+     */
+    private static void interpolationWeights(int levelSize, int factor, int[] index0, int[] index1, float[] weight) {
+        for (int i = 0; i < index0.length; i++) {
+            float position = Math.clamp((i + 0.5f) / factor - 0.5f, 0f, levelSize - 1f);
+            index0[i] = (int) position;
+            index1[i] = Math.min(index0[i] + 1, levelSize - 1);
+            weight[i] = position - index0[i];
+        }
+    }
+}
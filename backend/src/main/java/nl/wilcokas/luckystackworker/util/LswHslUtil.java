@@ -0,0 +1,156 @@
+package nl.wilcokas.luckystackworker.util;
+
+import nl.wilcokas.luckystackworker.filter.settings.LSWSharpenMode;
+
+/**
+ * Conversion between RGB and HSL, either for a single pixel into a given buffer or for whole planes at once. The plane
+ * conversions don't allocate anything per pixel and are divided into bands that are converted in parallel.
+ */
+public class LswHslUtil {
+
+    private LswHslUtil() {}
+
+    /**
+     * Converts the given RGB planes into the HSL planes. The hue and saturation planes may be null when only the
+     * luminance is needed.
+     */
+    public static void rgbToHsl(
+            float[] red,
+            float[] green,
+            float[] blue,
+            float[] hue,
+            float[] saturation,
+            float[] luminance,
+            boolean includeRed,
+            boolean includeGreen,
+            boolean includeBlue,
+            boolean includeColor,
+            LSWSharpenMode mode) {
+        LswImageProcessingUtil.runInBands(red.length, (from, to) -> {
+            float[] hsl = new float[3];
+            for (int i = from; i < to; i++) {
+                rgbToHsl(red[i], green[i], blue[i], includeRed, includeGreen, includeBlue, includeColor, mode, hsl);
+                if (hue != null) {
+                    hue[i] = hsl[0];
+                }
+                if (saturation != null) {
+                    saturation[i] = hsl[1];
+                }
+                luminance[i] = hsl[2];
+            }
+        });
+    }
+
+    /**
+     * Converts the given HSL planes back into the RGB planes.
+     */
+    public static void hslToRgb(
+            float[] hue,
+            float[] saturation,
+            float[] luminance,
+            float[] red,
+            float[] green,
+            float[] blue,
+            float hueCorrectionFactor) {
+        LswImageProcessingUtil.runInBands(red.length, (from, to) -> {
+            float[] rgb = new float[3];
+            for (int i = from; i < to; i++) {
+                hslToRgb(hue[i], saturation[i], luminance[i], hueCorrectionFactor, rgb);
+                red[i] = rgb[0];
+                green[i] = rgb[1];
+                blue[i] = rgb[2];
+            }
+        });
+    }
+
+    public static void rgbToHsl(
+            float red,
+            float green,
+            float blue,
+            boolean includeRed,
+            boolean includeGreen,
+            boolean includeBlue,
+            boolean includeColor,
+            LSWSharpenMode mode,
+            float[] hsl) {
+        float max = Math.max(Math.max(red, green), blue);
+        float min = Math.min(Math.min(red, green), blue);
+        float c = max - min;
+
+        float hue_ = 0.f;
+        if (c == 0) {
+            hue_ = 0;
+        } else if (max == red) {
+            hue_ = (green - blue) / c;
+            if (hue_ < 0) hue_ += 6.f;
+        } else if (max == green) {
+            hue_ = (blue - red) / c + 2.f;
+        } else if (max == blue) {
+            hue_ = (red - green) / c + 4.f;
+        }
+        float hue = 60.f * hue_;
+
+        float luminance;
+        if (mode == LSWSharpenMode.LUMINANCE) {
+            float luminanceDivisor = (includeRed ? 1 : 0) + (includeGreen ? 1 : 0) + (includeBlue ? 1 : 0);
+            luminance =
+                    ((includeRed ? red : 0) + (includeGreen ? green : 0) + (includeBlue ? blue : 0)) / luminanceDivisor;
+        } else {
+            luminance = (max + min) * 0.5f;
+        }
+
+        float saturation = 0.f;
+        if (includeColor) {
+            if (c == 0) {
+                saturation = 0.f;
+            } else {
+                saturation = c / (1 - Math.abs(2.f * luminance - 1.f));
+            }
+        }
+
+        hsl[0] = hue;
+        hsl[1] = saturation;
+        hsl[2] = luminance;
+    }
+
+    public static void hslToRgb(float hue, float saturation, float luminance, float hueCorrectionFactor, float[] rgb) {
+        float c = (1 - Math.abs(2.f * luminance - 1.f)) * saturation;
+        float hue_ = hue / 60.f;
+        float h_mod2 = hue_;
+        if (h_mod2 >= 4.f) h_mod2 -= 4.f;
+        else if (h_mod2 >= 2.f) h_mod2 -= 2.f;
+
+        float x = c * (1 - Math.abs(h_mod2 - 1));
+        float r_, g_, b_;
+        if (hue_ < 1) {
+            r_ = c;
+            g_ = x;
+            b_ = 0;
+        } else if (hue_ < 2) {
+            r_ = x;
+            g_ = c;
+            b_ = 0;
+        } else if (hue_ < 3) {
+            r_ = 0;
+            g_ = c;
+            b_ = x;
+        } else if (hue_ < 4) {
+            r_ = 0;
+            g_ = x;
+            b_ = c;
+        } else if (hue_ < 5) {
+            r_ = x;
+            g_ = 0;
+            b_ = c;
+        } else {
+            r_ = c;
+            g_ = 0;
+            b_ = x;
+        }
+
+        float m = luminance - (0.5f * c);
+        rgb[0] = ((r_ + m) + 0.5f) * (1f + hueCorrectionFactor);
+        rgb[1] = ((g_ + m) + 0.5f) * (1f - hueCorrectionFactor);
+        rgb[2] = ((b_ + m) + 0.5f) * (1f + hueCorrectionFactor);
+    }
+}
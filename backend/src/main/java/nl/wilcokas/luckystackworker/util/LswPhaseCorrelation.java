@@ -0,0 +1,117 @@
+package nl.wilcokas.luckystackworker.util;
+
+import org.jtransforms.fft.FloatFFT_2D;
+
+/**
+ * Estimates the translation between two planes of the same size from the peak of their phase correlation, or of their
+ * plain cross-correlation. Both planes are windowed before the transform so their edges don't correlate, the peak is
+ * refined to sub-pixel precision by fitting a parabola through it and its neighbours.
+ */
+public class LswPhaseCorrelation {
+
+    private static final float EPSILON = 1e-12f;
+
+    private LswPhaseCorrelation() {}
+
+    /**
+     * The moving plane matches the reference plane shifted by (dx, dy), so moving(x, y) ~ reference(x - dx, y - dy).
+     * The peak is the height of the correlation peak, the higher the more alike the planes are.
+     */
+    public record Shift(double dx, double dy, double peak) {}
+
+    public static Shift estimateShift(float[] reference, float[] moving, int width, int height) {
+        return estimateShift(reference, moving, width, height, true);
+    }
+
+    /**
+     * Without phase only, the peak of the plain cross-correlation is used. It is broader than the phase correlation
+     * peak, which makes the parabolic refinement more precise when the shift is well below a pixel.
+     */
+    public static Shift estimateShift(float[] reference, float[] moving, int width, int height, boolean phaseOnly) {
+        FloatFFT_2D fft = new FloatFFT_2D(height, width);
+        float[] window = hannWindow(width, height);
+        float[] referenceSpectrum = toWindowedSpectrum(reference, window, fft);
+        float[] crossPower = toWindowedSpectrum(moving, window, fft);
+
+        // moving * conj(reference), normalized to unit magnitude for phase only
+        for (int i = 0; i < crossPower.length; i += 2) {
+            float re = crossPower[i] * referenceSpectrum[i] + crossPower[i + 1] * referenceSpectrum[i + 1];
+            float im = crossPower[i + 1] * referenceSpectrum[i] - crossPower[i] * referenceSpectrum[i + 1];
+            float magnitude = phaseOnly ? (float) Math.sqrt(re * re + im * im) + EPSILON : 1f;
+            crossPower[i] = re / magnitude;
+            crossPower[i + 1] = im / magnitude;
+        }
+        fft.complexInverse(crossPower, true);
+
+        int peakIndex = 0;
+        for (int i = 1; i < width * height; i++) {
+            if (crossPower[2 * i] > crossPower[2 * peakIndex]) {
+                peakIndex = i;
+            }
+        }
+        int px = peakIndex % width;
+        int py = peakIndex / width;
+        float peak = crossPower[2 * peakIndex];
+        double dx = px + parabolicOffset(
+                crossPower[2 * (py * width + Math.floorMod(px - 1, width))],
+                peak,
+                crossPower[2 * (py * width + Math.floorMod(px + 1, width))]);
+        double dy = py + parabolicOffset(
+                crossPower[2 * (Math.floorMod(py - 1, height) * width + px)],
+                peak,
+                crossPower[2 * (Math.floorMod(py + 1, height) * width + px)]);
+        return new Shift(unwrap(dx, width), unwrap(dy, height), peak);
+    }
+
+    /**
+     * Offset of the top of the parabola through three equally spaced values from the middle one.
+     */
+    private static double parabolicOffset(float left, float center, float right) {
+        double denominator = left - 2.0 * center + right;
+        if (denominator >= 0) {
+            return 0;
+        }
+        return Math.clamp(0.5 * (left - right) / denominator, -0.5, 0.5);
+    }
+
+    /**
+     * The correlation is cyclic, positions past the middle are negative shifts.
+     */
+    private static double unwrap(double position, int size) {
+        return position > size / 2.0 ? position - size : position;
+    }
+
+    private static float[] toWindowedSpectrum(float[] plane, float[] window, FloatFFT_2D fft) {
+        double sum = 0;
+        for (float value : plane) {
+            sum += value;
+        }
+        float mean = (float) (sum / plane.length);
+        float[] spectrum = new float[plane.length * 2];
+        for (int i = 0; i < plane.length; i++) {
+            spectrum[i] = (plane[i] - mean) * window[i];
+        }
+        fft.realForwardFull(spectrum);
+        return spectrum;
+    }
+
+    private static float[] hannWindow(int width, int height) {
+        float[] windowX = hannWindow(width);
+        float[] windowY = hannWindow(height);
+        float[] window = new float[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                window[y * width + x] = windowX[x] * windowY[y];
+            }
+        }
+        return window;
+    }
+
+    private static float[] hannWindow(int size) {
+        float[] window = new float[size];
+        for (int i = 0; i < size; i++) {
+            window[i] = size > 1 ? (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / (size - 1))) : 1f;
+        }
+        return window;
+    }
+}
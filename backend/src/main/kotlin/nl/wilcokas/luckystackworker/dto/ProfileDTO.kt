@@ -57,6 +57,8 @@ data class ProfileDTO(
     var savitzkyGolayIterations: Int = 0,
     var denoise2Radius: BigDecimal? = null,
     var denoise2Iterations: Int = 0,
+    var rofTheta: Int = 0,
+    var rofIterations: Int = 0,
     var applyDenoiseToChannel: ChannelEnum? = null,
     var bilateralSigmaColor: Int = 0,
     var bilateralSigmaSpace: Int = 0,
@@ -195,6 +197,8 @@ data class ProfileDTO(
     this.savitzkyGolaySize = profile.savitzkyGolaySize
     this.savitzkyGolayAmount = profile.savitzkyGolayAmount
     this.savitzkyGolayIterations = profile.savitzkyGolayIterations
+    this.rofTheta = profile.rofTheta
+    this.rofIterations = profile.rofIterations
     this.bilateralIterations = profile.bilateralIterations
     this.bilateralRadius = profile.bilateralRadius
     this.bilateralSigmaColor = profile.bilateralSigmaColor
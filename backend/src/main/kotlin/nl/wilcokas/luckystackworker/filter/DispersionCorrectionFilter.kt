@@ -2,6 +2,7 @@ package nl.wilcokas.luckystackworker.filter
 
 import ij.ImagePlus
 import ij.process.ImageProcessor
+import java.util.concurrent.CompletableFuture
 import java.util.function.UnaryOperator
 import kotlin.math.roundToInt
 import nl.wilcokas.luckystackworker.model.ChannelEnum
@@ -10,10 +11,9 @@ import nl.wilcokas.luckystackworker.model.Profile
 import nl.wilcokas.luckystackworker.service.bean.OpenImageModeEnum
 import nl.wilcokas.luckystackworker.util.LswFileUtil
 import nl.wilcokas.luckystackworker.util.LswImageProcessingUtil
-import nl.wilcokas.luckystackworker.util.LswUtil
+import nl.wilcokas.luckystackworker.util.LswPhaseCorrelation
 import nl.wilcokas.luckystackworker.util.logger
 import org.springframework.stereotype.Component
-import sc.fiji.TurboReg_
 
 @Component
 class DispersionCorrectionFilter : LSWFilter {
@@ -42,12 +42,28 @@ class DispersionCorrectionFilter : LSWFilter {
     return profile.dispersionCorrectionEnabled && LswImageProcessingUtil.validateRGBStack(image)
   }
 
+  override fun getParameters(profile: Profile): List<Any?> {
+    return listOf(
+        profile.dispersionCorrectionEnabled,
+        profile.dispersionCorrectionRedX,
+        profile.dispersionCorrectionRedY,
+        profile.dispersionCorrectionBlueX,
+        profile.dispersionCorrectionBlueY,
+    )
+  }
+
   private fun apply(image: ImagePlus, profile: Profile) {
     val stack = image.stack
     val ipRed = stack.getProcessor(1)
     val ipBlue = stack.getProcessor(3)
     if (!isManuallyCorrected(profile)) {
-      determineCorrectionAutomatically(image, profile)
+      // When a profile is shared by concurrently processed images, the first one to get here
+      // determines the correction for all of them.
+      synchronized(profile) {
+        if (!isManuallyCorrected(profile)) {
+          determineCorrectionAutomatically(image, profile)
+        }
+      }
     }
     correctLayer(ipRed, profile.dispersionCorrectionRedX, profile.dispersionCorrectionRedY)
     correctLayer(ipBlue, profile.dispersionCorrectionBlueX, profile.dispersionCorrectionBlueY)
@@ -101,41 +117,37 @@ class DispersionCorrectionFilter : LSWFilter {
     pixelsNew.copyInto(pixels)
   }
 
+  /**
+   * Estimates the shift of the red and blue channels relative to green in parallel, from the peak
+   * of their cross-correlation.
+   */
   internal fun determineCorrectionAutomatically(image: ImagePlus, profile: Profile) {
     val stack = image.stack
-    val ipRed = stack.getProcessor(1)
-    val ipGreen = stack.getProcessor(2)
-    val ipBlue = stack.getProcessor(3)
     val width = image.width
     val height = image.height
-
-    // Write R, G and B slices to separate temporary files
-    val alignmentWorkFolder = LswFileUtil.getDataFolder(LswUtil.getActiveOSProfile()) + "/alignment"
-    LswFileUtil.createCleanDirectory(alignmentWorkFolder)
-
-    val sourceImagePathRed = createTemporaryImageFile(alignmentWorkFolder, ipRed, R)
-    val sourceImagePathGreen = createTemporaryImageFile(alignmentWorkFolder, ipGreen, G)
-    val sourceImagePathBlue = createTemporaryImageFile(alignmentWorkFolder, ipBlue, B)
-
-    // Align the red and blue to green
-    val turboReg = TurboReg_()
-    var command = getCommand(width, height, sourceImagePathRed, sourceImagePathGreen)
-    log.info("Running TurboReg command: $command")
-    turboReg.run(command)
-    updateDispersionCorrection(turboReg, profile, R)
-    command = getCommand(width, height, sourceImagePathBlue, sourceImagePathGreen)
-    log.info("Running TurboReg command: $command")
-    turboReg.run(command)
-    updateDispersionCorrection(turboReg, profile, B)
+    val green = toFloatPixels(stack.getProcessor(2))
+    val redShift =
+        CompletableFuture.supplyAsync {
+          LswPhaseCorrelation.estimateShift(
+              green, toFloatPixels(stack.getProcessor(1)), width, height, false)
+        }
+    val blueShift =
+        CompletableFuture.supplyAsync {
+          LswPhaseCorrelation.estimateShift(
+              green, toFloatPixels(stack.getProcessor(3)), width, height, false)
+        }
+    updateDispersionCorrection(redShift.join(), profile, R)
+    updateDispersionCorrection(blueShift.join(), profile, B)
   }
 
   private fun updateDispersionCorrection(
-      turboReg: TurboReg_,
+      shift: LswPhaseCorrelation.Shift,
       profile: Profile,
       channel: ChannelEnum,
   ) {
-    val dx = ((turboReg.sourcePoints[0][0] - turboReg.targetPoints[0][0]) * 10).roundToInt() / 10.0
-    val dy = ((turboReg.sourcePoints[0][1] - turboReg.targetPoints[0][1]) * 10).roundToInt() / 10.0
+    log.info("Estimated dispersion of channel {}: ({}, {})", channel, shift.dx(), shift.dy())
+    val dx = (shift.dx() * 10).roundToInt() / 10.0
+    val dy = (shift.dy() * 10).roundToInt() / 10.0
     when (channel) {
       R -> {
         profile.dispersionCorrectionRedX -= dx
@@ -149,25 +161,9 @@ class DispersionCorrectionFilter : LSWFilter {
     }
   }
 
-  private fun getCommand(
-      width: Int,
-      height: Int,
-      sourceImagePath: String,
-      imagePathTarget: String,
-  ): String {
-    val coordinates = "0 0 $width $height"
-    return "-align -file $sourceImagePath $coordinates -file $imagePathTarget $coordinates -translation ${width / 2} ${height / 2} ${width / 2} ${height / 2} -hideOutput"
-  }
-
-  private fun createTemporaryImageFile(
-      alignmentWorkFolder: String,
-      ip: ImageProcessor,
-      channel: ChannelEnum,
-  ): String {
-    val sourceImagePath = "${alignmentWorkFolder}/C${channel.name}.tif"
-    val sourceImage = ImagePlus("Layer ${channel.name}", ip)
-    LswFileUtil.saveImage(sourceImage, null, sourceImagePath, false, false, false, false)
-    return sourceImagePath
+  private fun toFloatPixels(ip: ImageProcessor): FloatArray {
+    val pixels = ip.pixels as ShortArray
+    return FloatArray(pixels.size) { (pixels[it].toInt() and 0xFFFF).toFloat() }
   }
 }
 
@@ -67,6 +67,8 @@ data class Profile(
     var denoiseAlgorithm2: String? = null,
     var denoise2Radius: BigDecimal? = null,
     var denoise2Iterations: Int = 0,
+    var rofTheta: Int = 0,
+    var rofIterations: Int = 0,
     var savitzkyGolaySize: Int = 0,
     var savitzkyGolayAmount: Int = 0,
     var savitzkyGolayIterations: Int = 0,
@@ -152,8 +154,6 @@ data class Profile(
     var deringThreshold: Int = 0,
     var deringThresholdGreen: Int = 0,
     var deringThresholdBlue: Int = 0,
-    var rofTheta: Int = 0,
-    var rofIterations: Int = 0,
 
     // Unused as of 5.2.0
     var threshold: Int = 0,
@@ -255,6 +255,8 @@ data class Profile(
     this.savitzkyGolaySize = profile.savitzkyGolaySize
     this.savitzkyGolayAmount = profile.savitzkyGolayAmount
     this.savitzkyGolayIterations = profile.savitzkyGolayIterations
+    this.rofTheta = profile.rofTheta
+    this.rofIterations = profile.rofIterations
     this.bilateralRadius = profile.bilateralRadius
     this.bilateralSigmaColor = profile.bilateralSigmaColor
     this.bilateralSigmaSpace = profile.bilateralSigmaSpace
@@ -269,6 +271,8 @@ data class Profile(
       this.savitzkyGolaySizeGreen = profile.savitzkyGolaySize
       this.savitzkyGolayAmountGreen = profile.savitzkyGolayAmount
       this.savitzkyGolayIterationsGreen = profile.savitzkyGolayIterations
+      this.rofThetaGreen = profile.rofTheta
+      this.rofIterationsGreen = profile.rofIterations
       this.bilateralRadiusGreen = profile.bilateralRadius
       this.bilateralSigmaColorGreen = profile.bilateralSigmaColor
       this.bilateralSigmaSpaceGreen = profile.bilateralSigmaSpace
@@ -282,6 +286,8 @@ data class Profile(
       this.savitzkyGolaySizeBlue = profile.savitzkyGolaySize
       this.savitzkyGolayAmountBlue = profile.savitzkyGolayAmount
       this.savitzkyGolayIterationsBlue = profile.savitzkyGolayIterations
+      this.rofThetaBlue = profile.rofTheta
+      this.rofIterationsBlue = profile.rofIterations
       this.bilateralRadiusBlue = profile.bilateralRadius
       this.bilateralSigmaColorBlue = profile.bilateralSigmaColor
       this.bilateralSigmaSpaceBlue = profile.bilateralSigmaSpace
@@ -0,0 +1,67 @@
+package nl.wilcokas.luckystackworker.service
+
+import ij.ImagePlus
+import ij.io.Opener
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import nl.wilcokas.luckystackworker.util.LswFileUtil
+
+/**
+ * Holds the images passed between the stages of a derotation run. Images are kept in memory as long
+ * as they fit in the memory budget, which is shared by all stores and stages of a run. An image
+ * that doesn't fit is saved to the work folder, or when it is already on disk it is just opened
+ * again from there when it is needed, through the given loader.
+ */
+internal class DeRotationImageStore(
+    private val workFolder: String,
+    private val budget: DeRotationMemoryBudget,
+    private val loader: (String) -> ImagePlus = { Opener().openImage(it) },
+) {
+
+  private val images = ConcurrentHashMap<String, ImagePlus>()
+  private val paths = ConcurrentHashMap<String, String>()
+  private val savedPaths = ConcurrentHashMap.newKeySet<String>()
+
+  /**
+   * Stores the image under the given name. If it does not fit in memory it is saved to the work
+   * folder, unless it can be opened again from the given path.
+   */
+  fun put(name: String, image: ImagePlus, existingPath: String? = null) {
+    if (budget.reserve(sizeOf(image))) {
+      images[name] = image
+    } else if (existingPath != null) {
+      paths[name] = existingPath
+    } else {
+      val path = "${workFolder}/${name}.tif"
+      LswFileUtil.saveImage(image, null, path, image.stackSize > 1, false, false, false)
+      paths[name] = path
+      savedPaths.add(path)
+    }
+  }
+
+  /** Returns the image, the caller must not modify it. */
+  fun get(name: String): ImagePlus =
+      images[name] ?: loader(paths[name] ?: throw IllegalArgumentException("No image ${name}"))
+
+  /** Returns the path the image was saved to, or null when it is held in memory. */
+  fun getPath(name: String): String? = paths[name]
+
+  fun isInMemory(name: String): Boolean = images.containsKey(name)
+
+  fun contains(name: String): Boolean = images.containsKey(name) || paths.containsKey(name)
+
+  /**
+   * Releases the memory of all images. Images saved to the work folder are deleted, images that
+   * were already on disk are left alone.
+   */
+  fun clear() {
+    images.values.forEach { budget.release(sizeOf(it)) }
+    images.clear()
+    savedPaths.forEach { File(it).delete() }
+    savedPaths.clear()
+    paths.clear()
+  }
+
+  private fun sizeOf(image: ImagePlus): Long =
+      image.width.toLong() * image.height * image.stackSize * image.bytesPerPixel
+}
@@ -0,0 +1,27 @@
+package nl.wilcokas.luckystackworker.service
+
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.min
+
+/**
+ * The memory of a derotation run, shared by the image stores and the stages of the scheduler. The
+ * stores keep images in memory up to the capacity, which is never more than half of the heap. The
+ * stages run in what is left of three quarters of the heap after the images the stores hold.
+ */
+internal class DeRotationMemoryBudget(capacityBytes: Long) {
+
+  private val maxMemory = Runtime.getRuntime().maxMemory()
+  private val capacityBytes = min(capacityBytes, maxMemory / 2)
+  private val remainingBytes = AtomicLong(this.capacityBytes)
+
+  /** Takes the bytes from the budget, returns false without taking anything if they don't fit. */
+  fun reserve(bytes: Long): Boolean =
+      remainingBytes.getAndUpdate { if (it >= bytes) it - bytes else it } >= bytes
+
+  fun release(bytes: Long) {
+    remainingBytes.addAndGet(bytes)
+  }
+
+  /** The bytes the stages can work in, given what the stores hold right now. */
+  fun getStageBytes(): Long = maxMemory / 4 * 3 - (capacityBytes - remainingBytes.get())
+}
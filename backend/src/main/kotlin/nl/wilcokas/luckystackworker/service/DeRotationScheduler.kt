@@ -0,0 +1,138 @@
+package nl.wilcokas.luckystackworker.service
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import nl.wilcokas.luckystackworker.LuckyStackWorkerContext
+import nl.wilcokas.luckystackworker.dto.StageStatusDTO
+import nl.wilcokas.luckystackworker.util.logger
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.stereotype.Component
+
+/**
+ * Runs the CPU bound stages of a derotation on pools of platform threads. The parallelism of a
+ * stage is the configured number of threads, or the number of cores when set to 0, but never more
+ * than the estimated memory cost of a frame allows to run at once in the memory budget of the run,
+ * next to the images its stores hold. The progress of every stage is published in the status of the
+ * worker while the derotation runs.
+ */
+@Component
+class DeRotationScheduler(
+    private val luckyStackWorkerContext: LuckyStackWorkerContext,
+    @Value("\${derotation.open.threads}") val openThreads: Int,
+    @Value("\${derotation.sharpen.threads}") val sharpenThreads: Int,
+    @Value("\${derotation.align.threads}") val alignThreads: Int,
+    @Value("\${derotation.open.bytes.per.pixel}") val openBytesPerPixel: Long,
+    @Value("\${derotation.sharpen.bytes.per.pixel}") val sharpenBytesPerPixel: Long,
+    @Value("\${derotation.align.bytes.per.pixel}") val alignBytesPerPixel: Long,
+) {
+
+  private val log by logger()
+
+  private val stages = ConcurrentHashMap<String, Stage>()
+
+  @Volatile private var budget: DeRotationMemoryBudget? = null
+
+  private class Stage(
+      val name: String,
+      val parallelism: Int,
+      val total: Int,
+      val startTime: Long = System.nanoTime(),
+  ) {
+    val running = AtomicInteger()
+    val processed = AtomicInteger()
+    val failed = AtomicInteger()
+
+    fun toDTO(): StageStatusDTO {
+      val processedCount = processed.get()
+      val runningCount = running.get()
+      val seconds = (System.nanoTime() - startTime) / 1e9
+      return StageStatusDTO.builder()
+          .name(name)
+          .parallelism(parallelism)
+          .processedCount(processedCount)
+          .runningCount(runningCount)
+          .queuedCount(total - processedCount - failed.get() - runningCount)
+          .itemsPerSecond(if (seconds > 0) processedCount / seconds else 0.0)
+          .build()
+    }
+  }
+
+  /**
+   * Runs the task for all items and waits for them to finish. When tasks fail, the exception of the
+   * first one is thrown after all others have finished.
+   */
+  fun <T> runStage(
+      name: String,
+      items: List<T>,
+      bytesPerItem: Long,
+      configuredThreads: Int,
+      task: (T) -> Unit,
+  ) {
+    if (items.isEmpty()) {
+      return
+    }
+    val parallelism = getParallelism(items.size, bytesPerItem, configuredThreads)
+    log.info("Running stage {} for {} items on {} threads", name, items.size, parallelism)
+    val stage = Stage(name, parallelism, items.size)
+    stages[name] = stage
+    publish()
+    val executor = Executors.newFixedThreadPool(parallelism)
+    try {
+      val futures =
+          items.map { item ->
+            CompletableFuture.runAsync(
+                {
+                  stage.running.incrementAndGet()
+                  try {
+                    task(item)
+                    stage.processed.incrementAndGet()
+                  } catch (e: Throwable) {
+                    stage.failed.incrementAndGet()
+                    throw e
+                  } finally {
+                    stage.running.decrementAndGet()
+                    publish()
+                  }
+                },
+                executor,
+            )
+          }
+      CompletableFuture.allOf(*futures.toTypedArray()).get()
+    } catch (e: ExecutionException) {
+      throw e.cause ?: e
+    } finally {
+      executor.shutdownNow()
+      publish()
+    }
+  }
+
+  /** Starts a derotation, whose stages share the given budget with its stores. */
+  internal fun start(budget: DeRotationMemoryBudget) {
+    this.budget = budget
+    stages.clear()
+    publish()
+  }
+
+  /** Removes the statistics of the derotation from the status. */
+  fun finish() {
+    budget = null
+    stages.clear()
+    publish()
+  }
+
+  private fun getParallelism(items: Int, bytesPerItem: Long, configuredThreads: Int): Int {
+    val threads =
+        if (configuredThreads > 0) configuredThreads else Runtime.getRuntime().availableProcessors()
+    val stageBytes = checkNotNull(budget) { "No derotation was started" }.getStageBytes()
+    val memoryLimit = if (bytesPerItem > 0) stageBytes / bytesPerItem else threads.toLong()
+    return minOf(threads.toLong(), memoryLimit, items.toLong()).toInt().coerceAtLeast(1)
+  }
+
+  @Synchronized
+  private fun publish() {
+    luckyStackWorkerContext.stages = stages.values.sortedBy { it.startTime }.map { it.toDTO() }
+  }
+}
@@ -1,14 +1,13 @@
 package nl.wilcokas.luckystackworker.service
 
 import bunwarpj.MiscTools
+import bunwarpj.Param
 import bunwarpj.bUnwarpJ_
 import ij.ImagePlus
-import ij.io.Opener
 import ij.process.FloatProcessor
 import ij.process.ShortProcessor
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.Semaphore
 import java.util.concurrent.atomic.AtomicBoolean
 import javax.swing.JFrame
 import javax.swing.JOptionPane
@@ -22,18 +21,41 @@ import nl.wilcokas.luckystackworker.filter.LSWSharpenFilter
 import nl.wilcokas.luckystackworker.filter.settings.LSWSharpenMode
 import nl.wilcokas.luckystackworker.model.Profile
 import nl.wilcokas.luckystackworker.service.bean.OpenImageModeEnum.RGB
+import nl.wilcokas.luckystackworker.service.bean.StackModeEnum
 import nl.wilcokas.luckystackworker.util.LswFileUtil
+import nl.wilcokas.luckystackworker.util.LswHslUtil
 import nl.wilcokas.luckystackworker.util.LswImageProcessingUtil
 import nl.wilcokas.luckystackworker.util.LswUtil
 import nl.wilcokas.luckystackworker.util.logger
+import org.springframework.beans.factory.annotation.Value
 import org.springframework.stereotype.Service
 
+/**
+ * De-rotates a series of images towards a reference image, by elastically aligning each image with
+ * its neighbour using bUnwarpJ. The transformations along the way to the reference image are
+ * composed, so each image is resampled only once. The originals, the pre-sharpened copies, the
+ * transformations and the warped images are passed between the stages in memory and the warped
+ * images go straight into the stacker. Images are only written to the work folder when they don't
+ * fit in the memory budget.
+ *
+ * When a run fails, the next run keeps the transformations that passed validation and only aligns
+ * the failed pairs again. The pre-sharpened copies are kept as well for as long as the sharpening
+ * parameters stay the same.
+ *
+ * Before bUnwarpJ aligns a pair, the rotation and translation between them are estimated on a
+ * pyramid by phase correlation. bUnwarpJ then only has to find the elastic residual.
+ */
 @Service
 class DeRotationService(
     private val lswSharpenFilter: LSWSharpenFilter,
     private val bilateralDenoiseFilter: BilateralDenoiseFilter,
     private val luckyStackWorkerContext: LuckyStackWorkerContext,
     private val stackService: StackService,
+    private val deRotationScheduler: DeRotationScheduler,
+    @Value("\${derotation.memory.megabytes}") private val memoryMegabytes: Long,
+    @Value("\${derotation.prealign.size}") private val preAlignSize: Int,
+    @Value("\${derotation.prealign.max.angle}") private val preAlignMaxAngle: Double,
+    @Value("\${derotation.prealign.angle.step}") private val preAlignAngleStep: Double,
 ) {
   private val log by logger()
 
@@ -56,6 +78,7 @@ class DeRotationService(
       initialAnchorStrength: Int,
       initialNoiseRobustness: Int,
       initialAccurateness: Int,
+      stackMode: StackModeEnum,
       parentFrame: JFrame?,
   ): String? {
 
@@ -63,82 +86,133 @@ class DeRotationService(
     this._noiseRobustness = initialNoiseRobustness
     this._accurateness = initialAccurateness
 
-    luckyStackWorkerContext.totalFilesCount =
-        allImagesFilenames.size * 3 +
-            1 // 3 steps * nr of files (pre-sharpening, create transformation files, warp. Luminance
-    // masks while Stacking
-    // count as a single step).
     luckyStackWorkerContext.filesProcessedCount = 0
 
-    val referenceImagePath = "${rootFolder}/${referenceImageFilename}"
-    val referenceImage = openImage(referenceImagePath, parentFrame)
     val derotationWorkFolder =
         LswFileUtil.getDataFolder(LswUtil.getActiveOSProfile()) + "/derotation"
-
-    for (run in 1 until 5) {
+    val budget = DeRotationMemoryBudget(memoryMegabytes * 1024 * 1024)
+    // Originals that don't fit are opened again the same way, as 16-bit RGB stacks.
+    val originals = DeRotationImageStore(rootFolder, budget) { openImage(it, parentFrame) }
+    val sharpenedImages = DeRotationImageStore(derotationWorkFolder, budget)
+    val warpedImages = DeRotationImageStore(derotationWorkFolder, budget)
+    // Validated transformations by the name of their source image, these survive failed runs.
+    val imagesWithTransformation: MutableMap<String, ElasticTransformation> = ConcurrentHashMap()
+    var sharpenedParameters: Pair<Int, Int>? = null
+
+    deRotationScheduler.start(budget)
+    try {
       LswFileUtil.createCleanDirectory(derotationWorkFolder)
-      try {
-        val sharpenedImagePaths =
-            createPreSharpenedLuminanceCopies(
-                rootFolder,
-                derotationWorkFolder,
-                allImagesFilenames,
-                anchorStrength,
-                noiseRobustness,
-                parentFrame,
-            )
+      openOriginals(rootFolder, referenceImageFilename, allImagesFilenames, originals, parentFrame)
+      val referenceImage = originals.get(referenceImageFilename)
+      val pixelsPerImage = referenceImage.width.toLong() * referenceImage.height
+      for (run in 1 until 5) {
+        try {
+          val pendingSources =
+              allImagesFilenames.filter {
+                it != referenceImageFilename && !imagesWithTransformation.containsKey(it)
+              }
+          if (sharpenedParameters != Pair(anchorStrength, noiseRobustness)) {
+            sharpenedImages.clear()
+            sharpenedParameters = Pair(anchorStrength, noiseRobustness)
+          }
+          val requiredCopies =
+              pendingSources
+                  .flatMap {
+                    listOf(
+                        it,
+                        getTransformationTarget(it, allImagesFilenames, referenceImageFilename),
+                    )
+                  }
+                  .toSet()
+          val missingCopies =
+              allImagesFilenames.filter { it in requiredCopies && !sharpenedImages.contains(it) }
+          log.info(
+              "Run {}: sharpening {} copies, aligning {} pairs",
+              run,
+              missingCopies.size,
+              pendingSources.size,
+          )
+          // Pre-sharpening, aligning and warping count a step per image, stacking counts as one.
+          luckyStackWorkerContext.totalFilesCount =
+              missingCopies.size + pendingSources.size + allImagesFilenames.size
+          luckyStackWorkerContext.filesProcessedCount = 0
+
+          createPreSharpenedLuminanceCopies(
+              originals,
+              sharpenedImages,
+              missingCopies,
+              anchorStrength,
+              noiseRobustness,
+              pixelsPerImage,
+          )
 
-        val imagesWithTransformation =
-            createTransformationFiles(
-                sharpenedImagePaths,
-                derotationWorkFolder,
-                accurateness,
-                allImagesFilenames,
-                referenceImageFilename,
-            )
+          createTransformations(
+              sharpenedImages,
+              accurateness,
+              pendingSources,
+              allImagesFilenames,
+              referenceImageFilename,
+              imagesWithTransformation,
+              pixelsPerImage,
+          )
 
-        warpImages(
-            referenceImage,
-            derotationWorkFolder,
-            rootFolder,
-            imagesWithTransformation,
-            allImagesFilenames,
-            referenceImageFilename,
-            parentFrame,
-        )
+          warpImages(
+              originals,
+              warpedImages,
+              imagesWithTransformation,
+              allImagesFilenames,
+              referenceImageFilename,
+          )
 
-        log.info("Stacking images")
-        val resultFilePath =
-            stackService.stackImages(
-                rootFolder,
-                referenceImage.getWidth(),
-                referenceImage.getHeight(),
-                listOf("${rootFolder}/${referenceImageFilename}") +
-                    allImagesFilenames
-                        .filterNot { it == referenceImageFilename }
-                        .map { f -> "${derotationWorkFolder}/D_${f}" }
-                        .toList(),
-                parentFrame,
-                true,
-            )
-        log.info("Done")
-        increaseProgressCounter("Stacked images")
-        return resultFilePath
-      } catch (e: DeRotationException) {
-        log.info("DeRotation run ${run} unsuccessful, trying again with adjusted parameters...")
-        _noiseRobustness = if (_noiseRobustness < 5) _noiseRobustness + 1 else 5
-        if (run > 2) {
-          _anchorStrength = if (_anchorStrength > 1) _anchorStrength - 1 else 1
-        }
-        if (run > 1 && _accurateness == 4) {
-          _accurateness = 3
+          log.info("Stacking images")
+          val referencePath = "${rootFolder}/${referenceImageFilename}"
+          // The reference image is held anyway, it is stacked as opened, as a 16-bit RGB stack.
+          val stackFrames =
+              listOf(getStackFrame(referenceImage, referencePath)) +
+                  allImagesFilenames
+                      .filterNot { it == referenceImageFilename }
+                      .map { f ->
+                        val warpedPath = "${derotationWorkFolder}/D_${f}"
+                        getStackFrame(warpedImages, getWarpedImageName(f), warpedPath)
+                      }
+          val resultFilePath =
+              stackService.stackFrames(
+                  rootFolder,
+                  referenceImage.getWidth(),
+                  referenceImage.getHeight(),
+                  stackFrames,
+                  parentFrame,
+                  true,
+                  stackMode,
+              )
+          log.info("Done")
+          increaseProgressCounter("Stacked images")
+          return resultFilePath
+        } catch (e: DeRotationException) {
+          log.info("DeRotation run ${run} unsuccessful, trying again with adjusted parameters...")
+          _noiseRobustness = if (_noiseRobustness < 5) _noiseRobustness + 1 else 5
+          if (run > 2) {
+            _anchorStrength = if (_anchorStrength > 1) _anchorStrength - 1 else 1
+          }
+          if (run > 1 && _accurateness == 4) {
+            _accurateness = 3
+          }
+          increaseProgressCounter("Run ${run} unsuccessful, trying with adjusted parameters")
+          luckyStackWorkerContext.filesProcessedCount = 0
+        } finally {
+          warpedImages.clear()
         }
-        increaseProgressCounter("Run ${run} unsuccessful, trying with adjusted parameters")
-        luckyStackWorkerContext.filesProcessedCount = 0
-      } catch (e: Exception) {
-        log.info("DeRotation was stopped with reason: ", e)
-        return null
       }
+    } catch (e: BatchStoppedException) {
+      log.info("DeRotation was stopped with reason: ", e)
+      return null
+    } catch (e: Exception) {
+      log.error("DeRotation failed with reason: ", e)
+      return null
+    } finally {
+      sharpenedImages.clear()
+      originals.clear()
+      deRotationScheduler.finish()
     }
     if (parentFrame != null) {
       JOptionPane.showMessageDialog(
@@ -149,90 +223,124 @@ class DeRotationService(
     return null // last attempt failed
   }
 
-  private fun warpImages(
-      referenceImage: ImagePlus,
-      derotationWorkFolder: String,
+  /**
+   * Opens all images once, the stages that follow only read them. Images that don't fit in memory
+   * are opened again from the root folder whenever they are needed. The reference image is opened
+   * first, its size tells how many of the others can be decoded at once.
+   */
+  private fun openOriginals(
       rootFolder: String,
-      imagesWithTransformation: Map<String, String>,
-      allImagesFilenames: List<String>,
       referenceImageFilename: String,
+      allImagesFilenames: List<String>,
+      originals: DeRotationImageStore,
       parentFrame: JFrame?,
   ) {
-    log.info("Create warped images based on the transformation files")
-    val threads = mutableListOf<Thread>()
+    val referencePath = "${rootFolder}/${referenceImageFilename}"
+    val referenceImage = openImage(referencePath, parentFrame)
+    originals.put(referenceImageFilename, referenceImage, referencePath)
+    val imageDimensions: MutableList<IntArray> = Collections.synchronizedList(ArrayList())
+    imageDimensions.add(referenceImage.dimensions)
+    val pixelsPerImage = referenceImage.width.toLong() * referenceImage.height
+    deRotationScheduler.runStage(
+        "Opening",
+        allImagesFilenames.filter { it != referenceImageFilename },
+        pixelsPerImage * deRotationScheduler.openBytesPerPixel,
+        deRotationScheduler.openThreads,
+    ) { imageFilename ->
+      val imagePath = "${rootFolder}/${imageFilename}"
+      val image = openImage(imagePath, parentFrame)
+      imageDimensions.add(image.dimensions)
+      originals.put(imageFilename, image, imagePath)
+    }
+    validateImageDimensions(imageDimensions, parentFrame)
+  }
+
+  private fun getStackFrame(
+      store: DeRotationImageStore,
+      name: String,
+      fallbackPath: String,
+  ): StackService.StackFrame {
+    if (!store.isInMemory(name)) {
+      return StackService.StackFrame(store.getPath(name) ?: fallbackPath, null)
+    }
+    return getStackFrame(store.get(name), fallbackPath)
+  }
+
+  private fun getStackFrame(image: ImagePlus, path: String): StackService.StackFrame {
+    val stack = image.getStack()
+    return StackService.StackFrame(
+        path,
+        Array(3) { layer -> stack.getProcessor(minOf(layer + 1, stack.size)).pixels as ShortArray },
+    )
+  }
+
+  /** The neighbour of the image, towards the reference image, that the image is aligned with. */
+  private fun getTransformationTarget(
+      imageFilename: String,
+      allImagesFilenames: List<String>,
+      referenceImageFilename: String,
+  ): String {
+    val index = allImagesFilenames.indexOf(imageFilename)
+    return if (index < allImagesFilenames.indexOf(referenceImageFilename))
+        allImagesFilenames[index + 1]
+    else allImagesFilenames[index - 1]
+  }
+
+  private fun getWarpedImageName(imageFilename: String) =
+      "D_${LswFileUtil.getFilename(imageFilename)}"
+
+  /**
+   * Warps every image onto the reference image in a single resampling step. Going outwards from the
+   * reference image, the transformation of each image is composed with the displacement field of
+   * its neighbour, so the field of an image maps the reference straight onto it. When an image
+   * fails validation its transformation is dropped, so the next run aligns that pair again.
+   *
+   * Each side of the reference image is one chain, so the stage runs on two threads. The
+   * resampling itself is spread over bands of rows.
+   */
+  private fun warpImages(
+      originals: DeRotationImageStore,
+      warpedImages: DeRotationImageStore,
+      imagesWithTransformation: MutableMap<String, ElasticTransformation>,
+      allImagesFilenames: List<String>,
+      referenceImageFilename: String,
+  ) {
+    log.info("Create warped images based on the transformations")
+    val referenceImage = originals.get(referenceImageFilename)
+    val referenceIndex = allImagesFilenames.indexOf(referenceImageFilename)
     val warpingFailed = AtomicBoolean(false)
     val warpingStopped = AtomicBoolean(false)
-    for (i in allImagesFilenames.indices) {
-      val thread =
-          Thread.ofVirtual().start {
-            val sourceImageFilename = allImagesFilenames[i]
-            if (referenceImageFilename != sourceImageFilename) {
-              val sourceImage = openImage("${rootFolder}/${sourceImageFilename}", parentFrame)
-              var targetAtReference = false
-              var offset = 1
-              var transformationReferenceFile = sourceImageFilename
-              // Iteratively warp source image towards the reference image by applying the
-              // transformation
-              // file of each consecutive image until the reference image is reached.
-              while (!targetAtReference) {
-                if (warpingFailed.get() || warpingStopped.get()) {
-                  break
-                }
-                val targetImageFilename =
-                    if (
-                        isSourceBeforeReference(
-                            sourceImageFilename,
-                            referenceImageFilename,
-                            allImagesFilenames,
-                        )
-                    )
-                        allImagesFilenames[i + offset]
-                    else allImagesFilenames[i - offset]
-                if (referenceImageFilename == targetImageFilename) {
-                  targetAtReference = true
-                }
-                val transformationFile = imagesWithTransformation[transformationReferenceFile]!!
-                val targetImage =
-                    if (targetImageFilename == referenceImageFilename) referenceImage
-                    else openImage("${rootFolder}/${targetImageFilename}", parentFrame)
-                applyTransformation(sourceImage, targetImage, transformationFile)
-                if (!validateTransformationResult(sourceImage, targetImage)) {
-                  warpingFailed.set(true)
-                  break
-                }
-                sourceImage.updateAndDraw()
-                LswFileUtil.saveImage(
-                    sourceImage,
-                    null,
-                    "${derotationWorkFolder}/D_${sourceImageFilename}",
-                    true,
-                    false,
-                    false,
-                    false,
-                )
-                offset++
-                transformationReferenceFile = targetImageFilename
-              }
-
-              LswFileUtil.saveImage(
-                  sourceImage,
-                  null,
-                  "${derotationWorkFolder}/D_${sourceImageFilename}",
-                  true,
-                  false,
-                  false,
-                  false,
-              )
-              try {
-                increaseProgressCounter("Warped image ${sourceImageFilename}")
-              } catch (e: BatchStoppedException) {
-                warpingStopped.set(true)
-              }
-            }
-          }
-      threads.add(thread)
+    val pixelsPerImage = referenceImage.width.toLong() * referenceImage.height
+    // A chain holds two displacement fields and the warped image at a time.
+    deRotationScheduler.runStage("Warping", listOf(-1, 1), pixelsPerImage * 22, 2) { direction ->
+      var field: DisplacementField? = null
+      var index = referenceIndex + direction
+      while (index in allImagesFilenames.indices) {
+        if (warpingStopped.get()) {
+          break
+        }
+        val sourceImageFilename = allImagesFilenames[index]
+        field =
+            imagesWithTransformation[sourceImageFilename]!!.compose(
+                field,
+                referenceImage.width,
+                referenceImage.height,
+            )
+        val warpedImage = field.warp(originals.get(sourceImageFilename))
+        if (!validateTransformationResult(warpedImage, referenceImage)) {
+          imagesWithTransformation.remove(sourceImageFilename)
+          warpingFailed.set(true)
+          break
+        }
+        warpedImages.put(getWarpedImageName(sourceImageFilename), warpedImage)
+        try {
+          increaseProgressCounter("Warped image ${sourceImageFilename}")
+        } catch (e: BatchStoppedException) {
+          warpingStopped.set(true)
+        }
+        index += direction
+      }
     }
-    threads.forEach { it.join() }
     if (warpingFailed.get()) {
       throw DeRotationException("Transformation validation failed")
     }
@@ -242,16 +350,6 @@ class DeRotationService(
     log.info("Done")
   }
 
-  private fun isSourceBeforeReference(
-      sourceImageFilename: String,
-      referenceImageFilename: String,
-      allImagesFilenames: List<String>,
-  ): Boolean {
-    val sourceIndex = allImagesFilenames.indexOf(sourceImageFilename)
-    val referenceIndex = allImagesFilenames.indexOf(referenceImageFilename)
-    return sourceIndex < referenceIndex
-  }
-
   private fun validateTransformationResult(
       sourceImage: ImagePlus,
       targetImage: ImagePlus,
@@ -287,164 +385,133 @@ class DeRotationService(
   private fun applyTransformation(
       sourceImage: ImagePlus,
       targetImage: ImagePlus,
-      transformationFile: String,
+      transformation: ElasticTransformation,
   ) {
     for (layer in 1..sourceImage.stack.size) {
       val sourceProcessor = sourceImage.getStack().getProcessor(layer).toFloat(1, null)
       val targetProcessor = targetImage.getStack().getProcessor(layer).toFloat(1, null)
       val sourceLayerImage = ImagePlus("Layer ${layer}", sourceProcessor)
-      bUnwarpJ_.applyTransformToSource(
-          transformationFile,
-          ImagePlus("Layer ${layer}", targetProcessor),
+      applyTransformationToLayer(
           sourceLayerImage,
+          ImagePlus("Layer ${layer}", targetProcessor),
+          transformation,
       )
       copyPixelsFromTo(sourceLayerImage, sourceImage, layer)
     }
   }
 
+  private fun applyTransformationToLayer(
+      sourceLayerImage: ImagePlus,
+      targetLayerImage: ImagePlus,
+      transformation: ElasticTransformation,
+  ) {
+    MiscTools.applyTransformationToSourceMT(
+        sourceLayerImage,
+        targetLayerImage,
+        transformation.intervals,
+        transformation.cx,
+        transformation.cy,
+    )
+  }
+
   private fun copyPixelsFromTo(fromImage: ImagePlus, toImage: ImagePlus, layer: Int) {
     val fromProcessor = fromImage.getProcessor() as FloatProcessor
     val toProcessor = toImage.getStack().getProcessor(layer) as ShortProcessor
     LswImageProcessingUtil.copyPixelsFromFloatToShortProcessor(fromProcessor, toProcessor)
   }
 
-  private fun createTransformationFiles(
-      sharpenedImagePaths: List<String>,
-      derotationWorkFolder: String,
+  /**
+   * Aligns each of the given images with its neighbour. All pairs are aligned even when one fails,
+   * so a next run only has to redo the failed ones.
+   */
+  private fun createTransformations(
+      sharpenedImages: DeRotationImageStore,
       accurateness: Int,
+      sourceImageFilenames: List<String>,
       allImagesFilenames: List<String>,
       referenceImageFilename: String,
-  ): Map<String, String> {
-    var referenceEncountered = false
-    val imagesWithTransformation: MutableMap<String, String> = ConcurrentHashMap()
-    log.info("Create transformation files from copies")
-    val semaphore = Semaphore(2)
-    val threads = mutableListOf<Thread>()
+      imagesWithTransformation: MutableMap<String, ElasticTransformation>,
+      pixelsPerImage: Long,
+  ) {
+    log.info("Create transformations from copies")
     val transformationFailed = AtomicBoolean(false)
     val transformationStopped = AtomicBoolean(false)
-    for (i in sharpenedImagePaths.indices) {
-      val sourceFullPath = sharpenedImagePaths[i]
-      val source = LswFileUtil.getFilenameFromPath(sourceFullPath)
-      val originalSource = allImagesFilenames[i]
-      if (referenceImageFilename == originalSource) {
-        referenceEncountered = true
-      } else {
-        val targetFullPath =
-            if (referenceEncountered) sharpenedImagePaths[i - 1] else sharpenedImagePaths[i + 1]
-        val target = LswFileUtil.getFilenameFromPath(targetFullPath)
-        threads.add(
-            startTransformationThread(
-                semaphore,
-                transformationFailed,
-                transformationStopped,
-                derotationWorkFolder,
-                source,
-                target,
-                accurateness,
-                imagesWithTransformation,
-                originalSource,
-            )
-        )
-      }
-      if (transformationFailed.get() || transformationStopped.get()) {
-        break
+    deRotationScheduler.runStage(
+        "Aligning",
+        sourceImageFilenames,
+        pixelsPerImage * deRotationScheduler.alignBytesPerPixel,
+        deRotationScheduler.alignThreads,
+    ) { source ->
+      if (transformationStopped.get()) {
+        return@runStage
       }
-    }
-    threads.forEach { it.join() }
-    if (transformationFailed.get()) {
-      throw DeRotationException("Transformation creation failed")
-    }
-    if (transformationStopped.get()) {
-      throw BatchStoppedException("Transformation creation stopped")
-    }
-    log.info("Done")
-    return imagesWithTransformation
-  }
-
-  private fun startTransformationThread(
-      semaphore: Semaphore,
-      transformationFailed: AtomicBoolean,
-      transformationStopped: AtomicBoolean,
-      derotationWorkFolder: String,
-      source: String,
-      target: String,
-      accurateness: Int,
-      imagesWithTransformation: MutableMap<String, String>,
-      originalSource: String,
-  ): Thread {
-    semaphore.acquire()
-    return Thread.ofVirtual().start {
+      val target = getTransformationTarget(source, allImagesFilenames, referenceImageFilename)
       try {
         if (
-            !transformationFailed.get() &&
-                !callBunwarpJAlignImages(
-                    derotationWorkFolder,
-                    source,
-                    target,
-                    accurateness,
-                    imagesWithTransformation,
-                    originalSource,
-                )
+            !callBunwarpJAlignImages(
+                sharpenedImages.get(source),
+                sharpenedImages.get(target),
+                accurateness,
+                imagesWithTransformation,
+                source,
+            )
         ) {
           transformationFailed.set(true)
         }
       } catch (e: BatchStoppedException) {
         transformationStopped.set(true)
-      } finally {
-        semaphore.release()
       }
     }
+    if (transformationStopped.get()) {
+      throw BatchStoppedException("Transformation creation stopped")
+    }
+    if (transformationFailed.get()) {
+      throw DeRotationException("Transformation creation failed")
+    }
+    log.info("Done")
   }
 
   private fun createPreSharpenedLuminanceCopies(
-      rootFolder: String,
-      derotationWorkFolder: String,
+      originals: DeRotationImageStore,
+      sharpenedImages: DeRotationImageStore,
       allImagesFilenames: List<String>,
       anchorStrength: Int,
       noiseRobustness: Int,
-      parentFrame: JFrame?,
-  ): MutableList<String> {
+      pixelsPerImage: Long,
+  ) {
     log.info("Create pre-sharpened luminance copies...")
-    val imageDimensions: MutableList<IntArray> = Collections.synchronizedList(ArrayList())
-    val sharpenedImagePaths: MutableList<String> = Collections.synchronizedList(ArrayList())
-    val threads = mutableListOf<Thread>()
     val imageProcessingStopped = AtomicBoolean(false)
-    for (imageFilename in allImagesFilenames) {
-      val thread =
-          Thread.ofVirtual().start {
-            val imagePath = "${rootFolder}/${imageFilename}"
-            val image = openImage(imagePath, parentFrame)
-            imageDimensions.add(image.dimensions)
-            sharpenAsLuminanceImage(image, anchorStrength.toDouble())
-            val denoiseProfile = createDenoiseProfile(noiseRobustness)
-            bilateralDenoiseFilter.apply(image, denoiseProfile, false, null)
-            val toBeDeRotatedImageFilenameNoExt = LswFileUtil.getFilename(imageFilename)
-            val sharpenedImagePath =
-                saveToDataFolder(
-                    toBeDeRotatedImageFilenameNoExt,
-                    image,
-                    derotationWorkFolder,
-                    imagePath,
-                )
-            sharpenedImagePaths.add(sharpenedImagePath)
-            try {
-              increaseProgressCounter("Created de-rotation mask for image ${imageFilename}")
-            } catch (e: BatchStoppedException) {
-              imageProcessingStopped.set(true)
-            }
-          }
-      threads.add(thread)
+    deRotationScheduler.runStage(
+        "Sharpening",
+        allImagesFilenames,
+        pixelsPerImage * deRotationScheduler.sharpenBytesPerPixel,
+        deRotationScheduler.sharpenThreads,
+    ) { imageFilename ->
       if (imageProcessingStopped.get()) {
-        break
+        return@runStage
+      }
+      val image = originals.get(imageFilename).duplicate()
+      sharpenAsLuminanceImage(image, anchorStrength.toDouble())
+      val denoiseProfile = createDenoiseProfile(noiseRobustness)
+      bilateralDenoiseFilter.apply(image, denoiseProfile, false, null)
+      // All layers hold the same luminance, bUnwarpJ only needs one of them.
+      sharpenedImages.put(
+          imageFilename,
+          ImagePlus(
+              "${LswFileUtil.getFilename(imageFilename)}_sharpened",
+              image.stack.getProcessor(1),
+          ),
+      )
+      try {
+        increaseProgressCounter("Created de-rotation mask for image ${imageFilename}")
+      } catch (e: BatchStoppedException) {
+        imageProcessingStopped.set(true)
       }
     }
-    threads.forEach { it.join() }
-    validateImageDimensions(imageDimensions, parentFrame)
     if (imageProcessingStopped.get()) {
       throw BatchStoppedException("Image processing stopped")
     }
     log.info("Done")
-    return sharpenedImagePaths.sorted().toMutableList()
   }
 
   private fun createDenoiseProfile(noiseRobustness: Int): Profile {
@@ -497,62 +564,100 @@ class DeRotationService(
     }
   }
 
+  /**
+   * Aligns the source with the target like the bUnwarpJ command line would, but in memory. The
+   * inverse transformation warps the source onto the target. The source is first pre-aligned
+   * rigidly, the batch API of bUnwarpJ can't start from an initial transformation, so the rigid
+   * transformation is folded into the elastic one afterwards.
+   */
   private fun callBunwarpJAlignImages(
-      folder: String,
-      source: String,
-      target: String,
+      source: ImagePlus,
+      target: ImagePlus,
       accurateness: Int,
-      imagesWithTransformation: MutableMap<String, String>,
+      imagesWithTransformation: MutableMap<String, ElasticTransformation>,
       sourceFilename: String,
   ): Boolean {
-    val args = arrayOfNulls<String>(15)
-    args[1] = "${folder}/${source}"
-    args[2] = "NULL"
-    args[3] = "${folder}/${target}"
-    args[4] = "NULL"
-    args[5] = accurateness.toString() // min_scale_deformation
-    args[6] = accurateness.toString() // max_scale_deformation
-    args[7] = "0" // max_subsamp_fact
-    args[8] = "0.1" // divWeight
-    args[9] = "0.1" // curlWeight
-    args[10] = "1" // imageWeight
-    args[11] = "10" // consistencyWeight
-    args[12] = "${folder}/D1_${source}" // output 1
-    args[13] = "${folder}/D2_${source}" // output 2
-    args[14] = "-save_transformation"
-
-    val method =
-        bUnwarpJ_::class.java.getDeclaredMethod("alignImagesCommandLine", Array<String>::class.java)
-    method.isAccessible = true
-    method.invoke(null, *arrayOf<Any>(args))
-
-    imagesWithTransformation[sourceFilename] =
-        folder + "/D2_${LswFileUtil.getFilename(source)}_transf.txt"
+    val parameter =
+        Param(
+            1, // mode (accurate)
+            0, // img_subsamp_fact
+            accurateness, // min_scale_deformation
+            accurateness, // max_scale_deformation
+            0.1, // divWeight
+            0.1, // curlWeight
+            0.0, // landmarkWeight
+            1.0, // imageWeight
+            10.0, // consistencyWeight
+            0.01, // stopThreshold
+        )
+    val rigidTransformation = estimateRigidTransformation(source, target)
+    val preAlignedSource =
+        if (rigidTransformation.isIdentity()) source
+        else
+            ImagePlus(
+                source.title,
+                FloatProcessor(
+                    source.width,
+                    source.height,
+                    rigidTransformation.warp(
+                        source.processor.toFloat(0, null).pixels as FloatArray,
+                        source.width,
+                        source.height,
+                    ),
+                ),
+            )
+    // bUnwarpJ registers its source onto its target, so our target is passed as its source.
+    val result =
+        bUnwarpJ_.computeTransformationBatch(preAlignedSource, target, null, null, parameter)
+    val transformation =
+        rigidTransformation.applyTo(
+            ElasticTransformation(
+                result.intervals,
+                result.inverseDeformationCoefficientsX,
+                result.inverseDeformationCoefficientsY,
+            )
+        )
     increaseProgressCounter("Created transformation for image $sourceFilename")
-    return validateTransformationFile(args[13])
+    if (!validateTransformation(source, target, transformation)) {
+      return false
+    }
+    imagesWithTransformation[sourceFilename] = transformation
+    return true
   }
 
-  private fun saveToDataFolder(
-      fileNameNoExt: String,
-      image: ImagePlus?,
-      dataFolder: String,
-      imagePath: String,
-  ): String {
-    val savedFilePath = "${dataFolder}/${fileNameNoExt}_sharpened.tif"
-    LswFileUtil.saveImage(
-        image,
-        null,
-        savedFilePath,
-        LswFileUtil.isPngRgbStack(image, imagePath),
-        false,
-        false,
-        false,
+  private fun estimateRigidTransformation(
+      source: ImagePlus,
+      target: ImagePlus,
+  ): RigidTransformation {
+    val rigidTransformation =
+        RigidTransformation.estimate(
+            source.processor.toFloat(0, null).pixels as FloatArray,
+            target.processor.toFloat(0, null).pixels as FloatArray,
+            source.width,
+            source.height,
+            preAlignSize,
+            preAlignMaxAngle,
+            preAlignAngleStep,
+        )
+    log.info(
+        "Pre-aligned image {} rotated by {} degrees and shifted by ({}, {})",
+        source.title,
+        Math.toDegrees(rigidTransformation.angle),
+        rigidTransformation.dx,
+        rigidTransformation.dy,
     )
-    return savedFilePath
+    return rigidTransformation
   }
 
-  private fun validateTransformationFile(transformationFilePath: String?): Boolean {
-    val image = Opener().openImage(LswFileUtil.getIJFileFormat(transformationFilePath))
+  /** Checks that the source is still largely within the frame after warping it onto the target. */
+  private fun validateTransformation(
+      source: ImagePlus,
+      target: ImagePlus,
+      transformation: ElasticTransformation,
+  ): Boolean {
+    val image = ImagePlus(source.title, source.processor.toFloat(0, null))
+    applyTransformationToLayer(
+        image, ImagePlus(target.title, target.processor.toFloat(0, null)), transformation)
     val processor = image.getProcessor() as FloatProcessor
     val minAndMax = LswImageProcessingUtil.getMinAndMaxValues(processor)
     var totalValue: Long = 0
@@ -571,7 +676,7 @@ class DeRotationService(
     if (averageValue < 4096) {
       return false
     }
-    log.info("Transformation file validation passed for image ${image.title}")
+    log.info("Transformation validation passed for image ${image.title}")
     return true
   }
 
@@ -588,20 +693,19 @@ class DeRotationService(
     val pixelsGreen = fpGreen.pixels as FloatArray
     val pixelsBlue = fpBlue.pixels as FloatArray
     val pixelsLum = FloatArray(pixelsRed.size)
-    for (i in pixelsRed.indices) {
-      val hsl =
-          LswImageProcessingUtil.rgbToHsl(
-              pixelsRed[i],
-              pixelsGreen[i],
-              pixelsBlue[i],
-              true,
-              true,
-              true,
-              true,
-              LSWSharpenMode.LUMINANCE,
-          )
-      pixelsLum[i] = hsl[2]
-    }
+    LswHslUtil.rgbToHsl(
+        pixelsRed,
+        pixelsGreen,
+        pixelsBlue,
+        null,
+        null,
+        pixelsLum,
+        true,
+        true,
+        true,
+        true,
+        LSWSharpenMode.LUMINANCE,
+    )
     fpLum = FloatProcessor(image.getWidth(), image.getHeight(), pixelsLum)
     fpLum.snapshot()
     lswSharpenFilter.doUnsharpMask(radius, 0.990f, 0f, fpLum)
@@ -659,7 +763,11 @@ class DeRotationService(
         "${rootFolder}/OFFSET_${transformationFile}",
     )
 
-    applyTransformation(source, target, "${rootFolder}/OFFSET_${transformationFile}")
+    applyTransformation(
+        source,
+        target,
+        ElasticTransformation(intervals, cx.requireNoNulls(), cy.requireNoNulls()),
+    )
 
     LswFileUtil.saveImage(
         source,
@@ -689,7 +797,12 @@ fun main(args: Array<String>) {
             LSWSharpenFilter(),
             BilateralDenoiseFilter(),
             luckyStackWorkerContext,
-            StackService(luckyStackWorkerContext),
+            StackService(luckyStackWorkerContext, 4, 8, 512, 2.5, 0.1, 0.0),
+            DeRotationScheduler(luckyStackWorkerContext, 0, 0, 0, 12, 40, 200),
+            2048,
+            256,
+            2.0,
+            0.5,
         )
 
     if (arguments[0].equals("-derotate")) {
@@ -700,6 +813,7 @@ fun main(args: Array<String>) {
           4,
           2,
           4,
+          StackModeEnum.MEAN,
           null,
       )
     } else if (arguments[0].equals("-transform")) {
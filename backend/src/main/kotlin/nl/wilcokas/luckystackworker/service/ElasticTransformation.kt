@@ -0,0 +1,123 @@
+package nl.wilcokas.luckystackworker.service
+
+import ij.ImagePlus
+import ij.ImageStack
+import ij.process.ShortProcessor
+import kotlin.math.floor
+import nl.wilcokas.luckystackworker.util.LswImageProcessingUtil
+
+/**
+ * The cubic B-spline coefficients of an elastic transformation, as bUnwarpJ saves them to file. For
+ * every pixel of the target it gives the position in the source that ends up there.
+ */
+class ElasticTransformation(
+    val intervals: Int,
+    val cx: Array<DoubleArray>,
+    val cy: Array<DoubleArray>,
+) {
+
+  /**
+   * Composes this transformation with the given field, which maps the target of this transformation
+   * onto a further target. Without a field the target of this transformation itself is mapped.
+   * Positions that fall outside the image at any step are marked as NaN, these are black after
+   * warping just like bUnwarpJ makes them when warping step by step.
+   */
+  fun compose(previous: DisplacementField?, width: Int, height: Int): DisplacementField {
+    val xs = FloatArray(width * height)
+    val ys = FloatArray(width * height)
+    val xScale = intervals.toDouble() / (width - 1)
+    val yScale = intervals.toDouble() / (height - 1)
+    LswImageProcessingUtil.runInBands(height) { fromRow, toRow ->
+      val weightsU = DoubleArray(4)
+      val weightsV = DoubleArray(4)
+      for (v in fromRow..<toRow) {
+        for (u in 0..<width) {
+          val i = v * width + u
+          val targetX = previous?.xs?.get(i) ?: u.toFloat()
+          val targetY = previous?.ys?.get(i) ?: v.toFloat()
+          if (targetX.isNaN()) {
+            xs[i] = Float.NaN
+            ys[i] = Float.NaN
+            continue
+          }
+          val tu = targetX * xScale + 1.0
+          val tv = targetY * yScale + 1.0
+          val u0 = floor(tu).toInt()
+          val v0 = floor(tv).toInt()
+          bSplineWeights(tu - u0, weightsU)
+          bSplineWeights(tv - v0, weightsV)
+          val x = interpolate(cx, u0, v0, weightsU, weightsV)
+          val y = interpolate(cy, u0, v0, weightsU, weightsV)
+          if (x < 0 || x >= width || y < 0 || y >= height) {
+            xs[i] = Float.NaN
+            ys[i] = Float.NaN
+          } else {
+            xs[i] = x.toFloat()
+            ys[i] = y.toFloat()
+          }
+        }
+      }
+    }
+    return DisplacementField(width, height, xs, ys)
+  }
+
+  private fun interpolate(
+      coefficients: Array<DoubleArray>,
+      u0: Int,
+      v0: Int,
+      weightsU: DoubleArray,
+      weightsV: DoubleArray,
+  ): Double {
+    var value = 0.0
+    for (k in 0..3) {
+      val row = coefficients[(v0 - 1 + k).coerceIn(0, coefficients.size - 1)]
+      var rowValue = 0.0
+      for (l in 0..3) {
+        rowValue += weightsU[l] * row[(u0 - 1 + l).coerceIn(0, row.size - 1)]
+      }
+      value += weightsV[k] * rowValue
+    }
+    return value
+  }
+
+  /** Weights of the 4 coefficients around a position with the given fraction. */
+  private fun bSplineWeights(t: Double, weights: DoubleArray) {
+    val t2 = t * t
+    val t3 = t2 * t
+    weights[0] = (1 - t) * (1 - t) * (1 - t) / 6
+    weights[1] = (3 * t3 - 6 * t2 + 4) / 6
+    weights[2] = (-3 * t3 + 3 * t2 + 3 * t + 1) / 6
+    weights[3] = t3 / 6
+  }
+}
+
+/**
+ * For every pixel of a target, the position in the source that is warped onto it, or NaN when it
+ * falls outside the source.
+ */
+class DisplacementField(val width: Int, val height: Int, val xs: FloatArray, val ys: FloatArray) {
+
+  /** Resamples all layers of the source once, by bicubic interpolation. */
+  fun warp(source: ImagePlus): ImagePlus {
+    val sourceStack = source.getStack()
+    val sourceProcessors = (1..sourceStack.size).map { sourceStack.getProcessor(it) }
+    val targetPixels = sourceProcessors.map { ShortArray(width * height) }
+    LswImageProcessingUtil.runInBands(height) { fromRow, toRow ->
+      for (i in fromRow * width..<toRow * width) {
+        val x = xs[i]
+        if (x.isNaN()) {
+          continue
+        }
+        val y = ys[i].toDouble()
+        for (layer in sourceProcessors.indices) {
+          val processor = sourceProcessors[layer]
+          val value = processor.getBicubicInterpolatedPixel(x.toDouble(), y, processor)
+          targetPixels[layer][i] = (value + 0.5).coerceIn(0.0, 65535.0).toInt().toShort()
+        }
+      }
+    }
+    val stack = ImageStack(width, height)
+    targetPixels.forEach { stack.addSlice(ShortProcessor(width, height, it, null)) }
+    return ImagePlus(source.title, stack)
+  }
+}
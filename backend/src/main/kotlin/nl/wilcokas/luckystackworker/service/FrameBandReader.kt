@@ -0,0 +1,179 @@
+package nl.wilcokas.luckystackworker.service
+
+import ij.io.FileInfo
+import ij.io.Opener
+import ij.io.TiffDecoder
+import ij.process.ImageProcessor
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+
+/**
+ * Reads bands of rows from the layers of a frame, without decoding the rest of the frame.
+ * Uncompressed 16-bit TIFF's are read straight from the file, any other frame is decoded once and
+ * spilled as raw pixels to a scratch file. Frames that are already in memory are copied from their
+ * layers.
+ *
+ * A sample of the frame is stored at base + layer * layerStride + (y * width + x) * pixelStride, as
+ * 2 bytes in the given byte order. The file stays open until the reader is closed, so all bands of
+ * a stack are read through the same channel.
+ */
+internal class FrameBandReader
+private constructor(
+    val path: String,
+    val width: Int,
+    val height: Int,
+    val layerCount: Int,
+    private val file: Path?,
+    private val base: Long,
+    private val layerStride: Long,
+    private val pixelStride: Int,
+    private val byteOrder: ByteOrder,
+    private val layers: Array<ShortArray>? = null,
+) : AutoCloseable {
+
+  private val channel = file?.let { FileChannel.open(it, StandardOpenOption.READ) }
+
+  /**
+   * Reads the rows fromRow up to toRow of the given layer into the target. Frames with a single
+   * layer return that layer for every layer.
+   */
+  fun readRows(layer: Int, fromRow: Int, toRow: Int, target: ShortArray, targetOffset: Int) {
+    val pixels = (toRow - fromRow) * width
+    if (layers != null) {
+      System.arraycopy(
+          layers[minOf(layer, layerCount - 1)], fromRow * width, target, targetOffset, pixels)
+      return
+    }
+    val start =
+        base + minOf(layer, layerCount - 1) * layerStride + fromRow.toLong() * width * pixelStride
+    val buffer = ByteBuffer.allocate((pixels - 1) * pixelStride + 2).order(byteOrder)
+    var position = start
+    while (buffer.hasRemaining()) {
+      val read = channel!!.read(buffer, position)
+      if (read < 0) {
+        throw IOException("Unexpected end of file $path")
+      }
+      position += read
+    }
+    buffer.flip()
+    if (pixelStride == 2) {
+      buffer.asShortBuffer().get(target, targetOffset, pixels)
+    } else {
+      for (i in 0..<pixels) {
+        target[targetOffset + i] = buffer.getShort(i * pixelStride)
+      }
+    }
+  }
+
+  override fun close() {
+    channel?.close()
+  }
+
+  companion object {
+
+    /**
+     * Opens the frame directly if it is an uncompressed 16-bit TIFF, otherwise spills it to the
+     * scratch folder, which is only asked for when a frame needs to be spilled.
+     */
+    fun open(path: String, spillFolder: () -> Path, spillName: String): FrameBandReader =
+        openTiff(path) ?: spill(path, spillFolder().resolve("$spillName.raw"))
+
+    /** Reads the bands from the given layers, which are already in memory. */
+    fun of(path: String, width: Int, height: Int, layers: Array<ShortArray>): FrameBandReader =
+        FrameBandReader(
+            path, width, height, layers.size, null, 0, 0, 2, ByteOrder.nativeOrder(), layers)
+
+    private fun openTiff(path: String): FrameBandReader? {
+      val lowerCasePath = path.lowercase()
+      if (!lowerCasePath.endsWith(".tif") && !lowerCasePath.endsWith(".tiff")) {
+        return null
+      }
+      val file = File(path)
+      val infos =
+          try {
+            TiffDecoder(file.parent + File.separator, file.name).getTiffInfo()
+          } catch (e: IOException) {
+            null
+          }
+      if (infos == null || infos.size != 1) {
+        return null
+      }
+      val fi = infos[0]
+      if (fi.compression != FileInfo.COMPRESSION_NONE || !hasContiguousStrips(fi)) {
+        return null
+      }
+      val byteOrder = if (fi.intelByteOrder) ByteOrder.LITTLE_ENDIAN else ByteOrder.BIG_ENDIAN
+      val imageBytes = fi.width.toLong() * fi.height * 2
+      val filePath = file.toPath()
+      return when {
+        fi.fileType == FileInfo.GRAY16_UNSIGNED && (fi.nImages == 1 || fi.nImages == 3) ->
+            FrameBandReader(
+                path,
+                fi.width,
+                fi.height,
+                fi.nImages,
+                filePath,
+                fi.getOffset(),
+                imageBytes + fi.gapBetweenImages,
+                2,
+                byteOrder,
+            )
+        fi.fileType == FileInfo.RGB48_PLANAR && fi.nImages == 1 ->
+            FrameBandReader(
+                path, fi.width, fi.height, 3, filePath, fi.getOffset(), imageBytes, 2, byteOrder)
+        fi.fileType == FileInfo.RGB48 && fi.nImages == 1 ->
+            FrameBandReader(path, fi.width, fi.height, 3, filePath, fi.getOffset(), 2, 6, byteOrder)
+        else -> null
+      }
+    }
+
+    /** The pixels are read as one block starting at the first strip, just like ImageJ does. */
+    private fun hasContiguousStrips(fi: FileInfo): Boolean {
+      val offsets = fi.stripOffsets ?: return true
+      val lengths = fi.stripLengths ?: return true
+      for (i in 1..<offsets.size) {
+        if (offsets[i].toLong() != offsets[i - 1].toLong() + lengths[i - 1]) {
+          return false
+        }
+      }
+      return true
+    }
+
+    private fun spill(path: String, spillFile: Path): FrameBandReader {
+      val image = Opener().openImage(path) ?: throw IOException("Could not open image $path")
+      val stack = image.getStack()
+      val layerCount = if (image.stackSize == 1) 1 else 3
+      val buffer =
+          ByteBuffer.allocate(image.width * image.height * 2).order(ByteOrder.LITTLE_ENDIAN)
+      FileChannel.open(spillFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE).use {
+          channel ->
+        for (layer in 1..layerCount) {
+          buffer.clear()
+          buffer.asShortBuffer().put(getShortPixels(stack.getProcessor(layer)))
+          while (buffer.hasRemaining()) {
+            channel.write(buffer)
+          }
+        }
+      }
+      return FrameBandReader(
+          path,
+          image.width,
+          image.height,
+          layerCount,
+          spillFile,
+          0,
+          image.width.toLong() * image.height * 2,
+          2,
+          ByteOrder.LITTLE_ENDIAN,
+      )
+    }
+
+    fun getShortPixels(ip: ImageProcessor): ShortArray =
+        ip.pixels as? ShortArray ?: ip.convertToShortProcessor(false).pixels as ShortArray
+  }
+}
@@ -0,0 +1,263 @@
+package nl.wilcokas.luckystackworker.service
+
+import kotlin.math.abs
+import kotlin.math.cos
+import kotlin.math.max
+import kotlin.math.sin
+import kotlin.math.sqrt
+import nl.wilcokas.luckystackworker.util.LswGaussianPyramid
+import nl.wilcokas.luckystackworker.util.LswImageProcessingUtil
+import nl.wilcokas.luckystackworker.util.LswPhaseCorrelation
+
+/**
+ * A rotation by the given angle (in radians) about the center of the image, followed by a
+ * translation. Like an elastic transformation it maps a position in the target onto the position in
+ * the source that ends up there.
+ */
+class RigidTransformation(
+    val angle: Double,
+    val dx: Double,
+    val dy: Double,
+    private val centerX: Double,
+    private val centerY: Double,
+) {
+
+  private val cosAngle = cos(angle)
+  private val sinAngle = sin(angle)
+
+  fun mapX(x: Double, y: Double): Double =
+      cosAngle * (x - centerX) - sinAngle * (y - centerY) + centerX + dx
+
+  fun mapY(x: Double, y: Double): Double =
+      sinAngle * (x - centerX) + cosAngle * (y - centerY) + centerY + dy
+
+  /**
+   * Resamples the plane onto the target by bilinear interpolation, positions outside the plane are
+   * black.
+   */
+  fun warp(plane: FloatArray, width: Int, height: Int): FloatArray {
+    val warped = FloatArray(width * height)
+    LswImageProcessingUtil.runInBands(height) { fromRow, toRow ->
+      for (y in fromRow..<toRow) {
+        for (x in 0..<width) {
+          val sourceX = mapX(x.toDouble(), y.toDouble())
+          val sourceY = mapY(x.toDouble(), y.toDouble())
+          if (sourceX < 0 || sourceY < 0 || sourceX > width - 1 || sourceY > height - 1) {
+            continue
+          }
+          val x0 = minOf(sourceX.toInt(), width - 2).coerceAtLeast(0)
+          val y0 = minOf(sourceY.toInt(), height - 2).coerceAtLeast(0)
+          val x1 = minOf(x0 + 1, width - 1)
+          val y1 = minOf(y0 + 1, height - 1)
+          val fx = (sourceX - x0).toFloat()
+          val fy = (sourceY - y0).toFloat()
+          val top = plane[y0 * width + x0] + fx * (plane[y0 * width + x1] - plane[y0 * width + x0])
+          val bottom =
+              plane[y1 * width + x0] + fx * (plane[y1 * width + x1] - plane[y1 * width + x0])
+          warped[y * width + x] = top + fy * (bottom - top)
+        }
+      }
+    }
+    return warped
+  }
+
+  /**
+   * Returns the elastic transformation followed by this one. B-splines are invariant under affine
+   * maps, so mapping the coefficients gives exactly the composed transformation.
+   */
+  fun applyTo(elastic: ElasticTransformation): ElasticTransformation {
+    val cx = Array(elastic.cx.size) { DoubleArray(elastic.cx[it].size) }
+    val cy = Array(elastic.cy.size) { DoubleArray(elastic.cy[it].size) }
+    for (i in cx.indices) {
+      for (j in cx[i].indices) {
+        cx[i][j] = mapX(elastic.cx[i][j], elastic.cy[i][j])
+        cy[i][j] = mapY(elastic.cx[i][j], elastic.cy[i][j])
+      }
+    }
+    return ElasticTransformation(elastic.intervals, cx, cy)
+  }
+
+  fun isIdentity(): Boolean = angle == 0.0 && dx == 0.0 && dy == 0.0
+
+  companion object {
+
+    fun identity(width: Int, height: Int) =
+        RigidTransformation(0.0, 0.0, 0.0, (width - 1) / 2.0, (height - 1) / 2.0)
+
+    /**
+     * Estimates the rigid transformation that maps the target onto the source, coarse to fine on
+     * a pyramid. The rotation is searched on the coarsest level, where the plane is at most
+     * coarsestSize pixels wide or high, by picking the angle that correlates best. The translation
+     * is then refined level by level up to the full resolution. Returns the identity when the
+     * estimate is implausibly large.
+     */
+    fun estimate(
+        source: FloatArray,
+        target: FloatArray,
+        width: Int,
+        height: Int,
+        coarsestSize: Int,
+        maxAngle: Double,
+        angleStep: Double,
+    ): RigidTransformation {
+      var coarsestFactor = 1
+      while (max(width, height) / (coarsestFactor * 2) >= coarsestSize) {
+        coarsestFactor *= 2
+      }
+      val sourceLevels = mutableMapOf(1 to LswGaussianPyramid.Level(source, width, height))
+      val targetLevels = mutableMapOf(1 to LswGaussianPyramid.Level(target, width, height))
+      var factor = 2
+      while (factor <= coarsestFactor) {
+        sourceLevels[factor] = LswGaussianPyramid.reduce(sourceLevels.getValue(factor / 2), 2)
+        targetLevels[factor] = LswGaussianPyramid.reduce(targetLevels.getValue(factor / 2), 2)
+        factor *= 2
+      }
+
+      val angle =
+          estimateAngle(
+              sourceLevels.getValue(coarsestFactor),
+              targetLevels.getValue(coarsestFactor),
+              maxAngle,
+              angleStep,
+          )
+      var dx = 0.0
+      var dy = 0.0
+      factor = coarsestFactor
+      while (factor >= 1) {
+        val sourceLevel = sourceLevels.getValue(factor)
+        val targetLevel = targetLevels.getValue(factor)
+        val levelTransformation = atLevel(angle, dx, dy, factor, sourceLevel)
+        val shift =
+            LswPhaseCorrelation.estimateShift(
+                targetLevel.pixels(),
+                levelTransformation.warp(
+                    sourceLevel.pixels(), sourceLevel.width(), sourceLevel.height()),
+                sourceLevel.width(),
+                sourceLevel.height(),
+            )
+        // The warped source at p + shift matches the target at p, so the translation grows by the
+        // rotated shift.
+        dx += factor * (cos(angle) * shift.dx() - sin(angle) * shift.dy())
+        dy += factor * (sin(angle) * shift.dx() + cos(angle) * shift.dy())
+        factor /= 2
+      }
+      if (abs(dx) > width / 4.0 || abs(dy) > height / 4.0) {
+        return identity(width, height)
+      }
+      return RigidTransformation(angle, dx, dy, (width - 1) / 2.0, (height - 1) / 2.0)
+    }
+
+    /**
+     * Tries the angles from -maxAngle to maxAngle degrees. For every angle the translation is
+     * taken out by phase correlation first, then the angle is scored by the correlation
+     * coefficient of the warped source and the target where they overlap. The height of the phase
+     * correlation peak can't be compared between angles, it depends more on how close the
+     * translation is to whole pixels than on the angle. The best angle is refined with a parabola
+     * through the scores of it and its neighbours.
+     */
+    private fun estimateAngle(
+        source: LswGaussianPyramid.Level,
+        target: LswGaussianPyramid.Level,
+        maxAngle: Double,
+        angleStep: Double,
+    ): Double {
+      if (maxAngle <= 0 || angleStep <= 0) {
+        return 0.0
+      }
+      val steps = (maxAngle / angleStep).toInt()
+      val scores =
+          (-steps..steps).map { step ->
+            val angle = Math.toRadians(step * angleStep)
+            val rotation = atLevel(angle, 0.0, 0.0, 1, source)
+            val shift =
+                LswPhaseCorrelation.estimateShift(
+                    target.pixels(),
+                    rotation.warp(source.pixels(), source.width(), source.height()),
+                    source.width(),
+                    source.height(),
+                )
+            val transformation =
+                atLevel(
+                    angle,
+                    cos(angle) * shift.dx() - sin(angle) * shift.dy(),
+                    sin(angle) * shift.dx() + cos(angle) * shift.dy(),
+                    1,
+                    source,
+                )
+            getCorrelation(transformation, source, target)
+          }
+      val best = scores.indices.maxBy { scores[it] }
+      var offset = 0.0
+      if (best > 0 && best < scores.size - 1) {
+        val denominator = scores[best - 1] - 2.0 * scores[best] + scores[best + 1]
+        if (denominator < 0) {
+          offset = (0.5 * (scores[best - 1] - scores[best + 1]) / denominator).coerceIn(-0.5, 0.5)
+        }
+      }
+      return Math.toRadians((best - steps + offset) * angleStep)
+    }
+
+    /**
+     * The correlation coefficient of the source warped by the transformation and the target, over
+     * the pixels that are inside the source after warping.
+     */
+    private fun getCorrelation(
+        transformation: RigidTransformation,
+        source: LswGaussianPyramid.Level,
+        target: LswGaussianPyramid.Level,
+    ): Double {
+      val width = source.width()
+      val height = source.height()
+      val warped = transformation.warp(source.pixels(), width, height)
+      val targetPixels = target.pixels()
+      var count = 0
+      var sumWarped = 0.0
+      var sumTarget = 0.0
+      var sumWarpedSquares = 0.0
+      var sumTargetSquares = 0.0
+      var sumProducts = 0.0
+      for (y in 0..<height) {
+        for (x in 0..<width) {
+          val sourceX = transformation.mapX(x.toDouble(), y.toDouble())
+          val sourceY = transformation.mapY(x.toDouble(), y.toDouble())
+          if (sourceX < 0 || sourceY < 0 || sourceX > width - 1 || sourceY > height - 1) {
+            continue
+          }
+          val warpedValue = warped[y * width + x].toDouble()
+          val targetValue = targetPixels[y * width + x].toDouble()
+          count++
+          sumWarped += warpedValue
+          sumTarget += targetValue
+          sumWarpedSquares += warpedValue * warpedValue
+          sumTargetSquares += targetValue * targetValue
+          sumProducts += warpedValue * targetValue
+        }
+      }
+      if (count == 0) {
+        return 0.0
+      }
+      val variances =
+          (sumWarpedSquares - sumWarped * sumWarped / count) *
+              (sumTargetSquares - sumTarget * sumTarget / count)
+      return if (variances > 0) {
+        (sumProducts - sumWarped * sumTarget / count) / sqrt(variances)
+      } else 0.0
+    }
+
+    /** The transformation in full resolution pixels scaled down to a level of the pyramid. */
+    private fun atLevel(
+        angle: Double,
+        dx: Double,
+        dy: Double,
+        factor: Int,
+        level: LswGaussianPyramid.Level,
+    ) =
+        RigidTransformation(
+            angle,
+            dx / factor,
+            dy / factor,
+            (level.width() - 1) / 2.0,
+            (level.height() - 1) / 2.0,
+        )
+  }
+}
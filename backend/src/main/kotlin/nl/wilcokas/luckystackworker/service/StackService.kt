@@ -1,23 +1,80 @@
 package nl.wilcokas.luckystackworker.service
 
-import ij.ImagePlus
 import ij.io.Opener
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.PriorityQueue
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
 import javax.swing.JFrame
 import javax.swing.JOptionPane
+import kotlin.math.ceil
+import kotlin.math.floor
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.sqrt
 import nl.wilcokas.luckystackworker.LuckyStackWorkerContext
 import nl.wilcokas.luckystackworker.constants.Constants.STATUS_IDLE
 import nl.wilcokas.luckystackworker.exceptions.BatchStoppedException
 import nl.wilcokas.luckystackworker.service.bean.LswImageLayers
+import nl.wilcokas.luckystackworker.service.bean.StackModeEnum
 import nl.wilcokas.luckystackworker.util.LswFileUtil
 import nl.wilcokas.luckystackworker.util.LswImageProcessingUtil
+import nl.wilcokas.luckystackworker.util.LswUtil
 import nl.wilcokas.luckystackworker.util.logger
+import org.springframework.beans.factory.annotation.Value
 import org.springframework.stereotype.Service
 
+/**
+ * Stacks images by averaging them. The frames are decoded in parallel by a small pool of readers,
+ * which hand them over through a bounded queue so at most a few decoded frames are held in memory
+ * at once. Whatever frames are waiting in the queue are added to the sums in one pass, directly
+ * from their pixel arrays. The rows are divided into stripes that are each added by their own
+ * thread, so the sums need no locking.
+ *
+ * The quality weighted mode scores the sharpness of every frame right after decoding it, and adds
+ * it to the sums with that score as its weight. Optionally the worst scoring percentage of the
+ * frames is rejected. These are held back while streaming and dropped at the end, so no frame has
+ * to be read twice, at the cost of holding that many decoded frames in memory.
+ *
+ * The outlier rejecting modes need the values of all frames for a pixel at once. These stack the
+ * image in bands of rows, sized so the band of every frame fits in the memory budget, and read only
+ * that band of each frame.
+ *
+ * Frames that are already in memory, like the warped frames of a derotation, can be passed in
+ * directly and are then stacked without being read from disk.
+ */
 @Service
-class StackService(private val luckyStackWorkerContext: LuckyStackWorkerContext) {
+class StackService(
+    private val luckyStackWorkerContext: LuckyStackWorkerContext,
+    @Value("\${stack.decode.threads}") private val decodeThreads: Int,
+    @Value("\${stack.prefetch.frames}") private val prefetchFrames: Int,
+    @Value("\${stack.band.memory.megabytes}") private val bandMemoryMegabytes: Long,
+    @Value("\${stack.clip.kappa}") private val clipKappa: Double,
+    @Value("\${stack.winsorize.fraction}") private val winsorizeFraction: Double,
+    @Value("\${stack.quality.reject.percentage}") private val qualityRejectPercentage: Double,
+) {
+
+  companion object {
+    private const val MAX_CLIP_ITERATIONS = 5
+  }
 
   private val log by logger()
 
+  /**
+   * A frame to be stacked, either still on disk at the given path or already in memory as its red,
+   * green and blue layers.
+   */
+  class StackFrame(val path: String, val layers: Array<ShortArray>?)
+
+  private class Frame(val path: String, val layers: Array<ShortArray>, val weight: Double)
+
   fun stackImages(
       rootFolder: String,
       width: Int,
@@ -25,45 +82,45 @@ class StackService(private val luckyStackWorkerContext: LuckyStackWorkerContext)
       imagesFilePaths: List<String>,
       parentFrame: JFrame?,
       isDerotation: Boolean,
+      stackMode: StackModeEnum,
+  ): String =
+      stackFrames(
+          rootFolder,
+          width,
+          height,
+          imagesFilePaths.map { StackFrame(it, null) },
+          parentFrame,
+          isDerotation,
+          stackMode,
+      )
+
+  /**
+   * Stacks the given frames and saves the result next to the first frame, which is the reference
+   * frame.
+   */
+  fun stackFrames(
+      rootFolder: String,
+      width: Int,
+      height: Int,
+      frames: List<StackFrame>,
+      parentFrame: JFrame?,
+      isDerotation: Boolean,
+      stackMode: StackModeEnum,
   ): String {
     try {
-      luckyStackWorkerContext.totalFilesCount = imagesFilePaths.size
+      luckyStackWorkerContext.totalFilesCount = frames.size
       luckyStackWorkerContext.filesProcessedCount = 0
 
-      val redPixels = LongArray(width * height)
-      val greenPixels = LongArray(width * height)
-      val bluePixels = LongArray(width * height)
-      for (i in imagesFilePaths.indices) {
-        val image = Opener().openImage(imagesFilePaths[i])
-        validateImageDimensions(image, width, height, parentFrame)
-        val redIP = image.getStack().getProcessor(1)
-        val greenLayerIndex = if (image.stackSize == 1) 1 else 2
-        val blueLayerIndex = if (image.stackSize == 1) 1 else 3
-        val greenIP = image.getStack().getProcessor(greenLayerIndex)
-        val blueIP = image.getStack().getProcessor(blueLayerIndex)
-        for (y in 0..<height) {
-          for (x in 0..<width) {
-            val index = y * width + x
-            redPixels[index] += redIP.getPixel(x, y).toLong()
-            greenPixels[index] += greenIP.getPixel(x, y).toLong()
-            bluePixels[index] += blueIP.getPixel(x, y).toLong()
+      val layers =
+          if (stackMode == StackModeEnum.MEAN) {
+            stackMean(frames, width, height, parentFrame, false)
+          } else if (stackMode == StackModeEnum.QUALITY_WEIGHTED) {
+            stackMean(frames, width, height, parentFrame, true)
+          } else {
+            stackInBands(frames, width, height, parentFrame, stackMode)
           }
-        }
-        increaseProgressCounter(
-            "Stacking image ${LswFileUtil.getFilenameFromPath(imagesFilePaths[i])}"
-        )
-      }
-      val redPixelsAverages = ShortArray(redPixels.size)
-      val greenPixelsAverages = ShortArray(greenPixels.size)
-      val bluePixelsAverages = ShortArray(bluePixels.size)
-      for (i in redPixels.indices) {
-        redPixelsAverages[i] = (redPixels[i] / imagesFilePaths.size).toShort()
-        greenPixelsAverages[i] = (greenPixels[i] / imagesFilePaths.size).toShort()
-        bluePixelsAverages[i] = (bluePixels[i] / imagesFilePaths.size).toShort()
-      }
-      val layers = arrayOf(redPixelsAverages, greenPixelsAverages, bluePixelsAverages)
       val lswImageLayers = LswImageLayers(width, height, layers)
-      val referenceImageFilename = LswFileUtil.getFilenameFromPath(imagesFilePaths[0])
+      val referenceImageFilename = LswFileUtil.getFilenameFromPath(frames[0].path)
       val postfix = "LSW_" + (if (isDerotation) "DRTD" else "STACK")
       val stackedImagePathRootFolder =
           "${rootFolder}/${LswFileUtil.getPathWithoutExtension(referenceImageFilename)}_${postfix}.tif"
@@ -87,16 +144,396 @@ class StackService(private val luckyStackWorkerContext: LuckyStackWorkerContext)
     }
   }
 
+  private fun stackMean(
+      frames: List<StackFrame>,
+      width: Int,
+      height: Int,
+      parentFrame: JFrame?,
+      isQualityWeighted: Boolean,
+  ): Array<ShortArray> {
+    val sums = Array(3) { DoubleArray(width * height) }
+    var totalWeight = 0.0
+    val rejectCount =
+        if (isQualityWeighted) {
+          (frames.size * qualityRejectPercentage / 100).toInt().coerceIn(0, frames.size - 1)
+        } else 0
+    // Holds the worst frames seen so far, the best of these is released as soon as a worse one
+    // comes in.
+    val heldBack = PriorityQueue<Frame>(compareByDescending { it.weight })
+    readFrames(frames, width, height, parentFrame, isQualityWeighted) { batch ->
+      val accepted =
+          if (rejectCount == 0) batch
+          else {
+            heldBack.addAll(batch)
+            List(max(0, heldBack.size - rejectCount)) { heldBack.poll() }
+          }
+      addToSums(accepted, sums, width, height)
+      totalWeight += accepted.sumOf { it.weight }
+      for (frame in batch) {
+        increaseProgressCounter("Stacking image ${LswFileUtil.getFilenameFromPath(frame.path)}")
+      }
+    }
+    for (frame in heldBack) {
+      log.info(
+          "Rejected image {} with sharpness {}",
+          LswFileUtil.getFilenameFromPath(frame.path),
+          frame.weight,
+      )
+    }
+    return Array(3) { layer ->
+      val layerSums = sums[layer]
+      ShortArray(layerSums.size) { i -> (layerSums[i] / totalWeight).toLong().toShort() }
+    }
+  }
+
+  private fun stackInBands(
+      frames: List<StackFrame>,
+      width: Int,
+      height: Int,
+      parentFrame: JFrame?,
+      stackMode: StackModeEnum,
+  ): Array<ShortArray> {
+    // Every stack gets its own scratch folder, so stacks that run at the same time don't overwrite
+    // each other's spilled frames.
+    val spillFolder = lazy {
+      val stacksFolder = Path.of(LswFileUtil.getDataFolder(LswUtil.getActiveOSProfile()), "stacks")
+      Files.createTempDirectory(Files.createDirectories(stacksFolder), "bands")
+    }
+    val readers = arrayOfNulls<FrameBandReader>(frames.size)
+    val executor = Executors.newFixedThreadPool(decodeThreads)
+    try {
+      openBandReaders(frames, readers, spillFolder, width, height, parentFrame, executor)
+      val layerCount = if (readers.all { it!!.layerCount == 1 }) 1 else 3
+      val bytesPerRow = readers.size.toLong() * width * layerCount * 2
+      val bandRows =
+          (bandMemoryMegabytes * 1024 * 1024 / bytesPerRow).coerceIn(1, height.toLong()).toInt()
+      val numberOfBands = (height + bandRows - 1) / bandRows
+      log.info(
+          "Stacking {} frames in {} bands of {} rows with mode {}",
+          readers.size,
+          numberOfBands,
+          bandRows,
+          stackMode,
+      )
+      luckyStackWorkerContext.totalFilesCount = frames.size + numberOfBands
+
+      val result = Array(layerCount) { ShortArray(width * height) }
+      val bandValues = Array(layerCount) { ShortArray(readers.size * bandRows * width) }
+      for (fromRow in 0..<height step bandRows) {
+        val toRow = min(fromRow + bandRows, height)
+        runOnExecutor(executor, readers.size) { frame ->
+          for (layer in 0..<layerCount) {
+            readers[frame]!!.readRows(
+                layer, fromRow, toRow, bandValues[layer], frame * bandRows * width)
+          }
+        }
+        for (layer in 0..<layerCount) {
+          combineBand(
+              bandValues[layer],
+              readers.size,
+              bandRows * width,
+              result[layer],
+              fromRow * width,
+              (toRow - fromRow) * width,
+              stackMode,
+          )
+        }
+        increaseProgressCounter("Stacked rows ${fromRow + 1} to ${toRow} of ${height}")
+      }
+      return if (layerCount == 1) arrayOf(result[0], result[0].clone(), result[0].clone())
+      else result
+    } finally {
+      executor.shutdownNow()
+      readers.forEach { it?.close() }
+      if (spillFolder.isInitialized()) {
+        spillFolder.value.toFile().deleteRecursively()
+      }
+    }
+  }
+
+  /** Opens a reader for every frame, the readers are closed by the caller. */
+  private fun openBandReaders(
+      frames: List<StackFrame>,
+      readers: Array<FrameBandReader?>,
+      spillFolder: Lazy<Path>,
+      width: Int,
+      height: Int,
+      parentFrame: JFrame?,
+      executor: ExecutorService,
+  ) {
+    runOnExecutor(executor, frames.size) { index ->
+      val frame = frames[index]
+      readers[index] =
+          frame.layers?.let { FrameBandReader.of(frame.path, width, height, it) }
+              ?: FrameBandReader.open(frame.path, { spillFolder.value }, index.toString())
+    }
+    for (reader in readers) {
+      val filename = LswFileUtil.getFilenameFromPath(reader!!.path)
+      validateImageDimensions(filename, reader.width, reader.height, width, height, parentFrame)
+      increaseProgressCounter("Prepared image ${filename}")
+    }
+  }
+
+  private fun runOnExecutor(executor: ExecutorService, count: Int, task: (Int) -> Unit) {
+    try {
+      val futures =
+          Array(count) { index -> CompletableFuture.runAsync({ task(index) }, executor) }
+      CompletableFuture.allOf(*futures).get()
+    } catch (e: ExecutionException) {
+      throw e.cause ?: e
+    }
+  }
+
+  /**
+   * Combines the values of all frames for the given pixels of a band. The values of frame f are
+   * stored from f * frameStride on, the pixels are written to the result from resultOffset on.
+   */
+  private fun combineBand(
+      values: ShortArray,
+      frames: Int,
+      frameStride: Int,
+      result: ShortArray,
+      resultOffset: Int,
+      pixels: Int,
+      stackMode: StackModeEnum,
+  ) {
+    LswImageProcessingUtil.runInBands(pixels) { from, to ->
+      val pixelValues = IntArray(frames)
+      for (i in from..<to) {
+        for (frame in 0..<frames) {
+          pixelValues[frame] = values[frame * frameStride + i].toInt() and 0xffff
+        }
+        val value =
+            when (stackMode) {
+              StackModeEnum.MEDIAN -> median(pixelValues)
+              StackModeEnum.WINSORIZED -> winsorizedMean(pixelValues)
+              StackModeEnum.SIGMA_CLIP -> sigmaClippedMean(pixelValues)
+              StackModeEnum.MEAN,
+              StackModeEnum.QUALITY_WEIGHTED -> (pixelValues.sumOf { it.toLong() } / frames).toInt()
+            }
+        result[resultOffset + i] = value.toShort()
+      }
+    }
+  }
+
+  private fun median(values: IntArray): Int {
+    values.sort()
+    val middle = values.size / 2
+    return if (values.size % 2 == 1) values[middle]
+    else (values[middle - 1] + values[middle]) / 2
+  }
+
+  /**
+   * Mean after replacing the lowest and highest fraction of the values by the nearest value that is
+   * kept.
+   */
+  private fun winsorizedMean(values: IntArray): Int {
+    values.sort()
+    val n = values.size
+    val clipped = min((n * winsorizeFraction).toInt(), (n - 1) / 2)
+    var sum = clipped.toLong() * (values[clipped] + values[n - 1 - clipped])
+    for (i in clipped..<n - clipped) {
+      sum += values[i]
+    }
+    return (sum / n).toInt()
+  }
+
+  /**
+   * Mean of the values within kappa standard deviations of the mean, repeated on the remaining
+   * values until none are rejected anymore.
+   */
+  private fun sigmaClippedMean(values: IntArray): Int {
+    var low = Int.MIN_VALUE
+    var high = Int.MAX_VALUE
+    var mean = 0.0
+    var previousCount = -1
+    for (iteration in 0..<MAX_CLIP_ITERATIONS) {
+      var sum = 0L
+      var sumOfSquares = 0.0
+      var count = 0
+      for (value in values) {
+        if (value in low..high) {
+          sum += value
+          sumOfSquares += value.toDouble() * value
+          count++
+        }
+      }
+      if (count == 0 || count == previousCount) {
+        break
+      }
+      previousCount = count
+      mean = sum.toDouble() / count
+      val deviation = clipKappa * sqrt(max(0.0, sumOfSquares / count - mean * mean))
+      low = ceil(mean - deviation).toInt()
+      high = floor(mean + deviation).toInt()
+    }
+    return mean.toInt()
+  }
+
+  /**
+   * Decodes the given images on the reader pool and passes them to the consumer, in batches of the
+   * frames that were decoded by the time the consumer is ready for more. Frames may arrive in a
+   * different order than they were given. When scored, each frame gets its sharpness as weight,
+   * otherwise all frames weigh 1.
+   */
+  private fun readFrames(
+      frames: List<StackFrame>,
+      width: Int,
+      height: Int,
+      parentFrame: JFrame?,
+      isScored: Boolean,
+      consumer: (List<Frame>) -> Unit,
+  ) {
+    val queue = ArrayBlockingQueue<Frame>(prefetchFrames)
+    val nextIndex = AtomicInteger()
+    val failure = AtomicReference<Throwable>()
+    val executor = Executors.newFixedThreadPool(decodeThreads)
+    try {
+      repeat(min(decodeThreads, frames.size)) {
+        executor.execute {
+          try {
+            var index = nextIndex.getAndIncrement()
+            while (index < frames.size && failure.get() == null) {
+              queue.put(decodeFrame(frames[index], width, height, parentFrame, isScored))
+              index = nextIndex.getAndIncrement()
+            }
+          } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+          } catch (e: Throwable) {
+            // Errors too, a decoder that dies without a failure leaves the consumer waiting forever.
+            failure.compareAndSet(null, e)
+          }
+        }
+      }
+      var framesConsumed = 0
+      val batch = ArrayList<Frame>(prefetchFrames)
+      while (framesConsumed < frames.size) {
+        failure.get()?.let { throw it }
+        val frame = queue.poll(100, TimeUnit.MILLISECONDS) ?: continue
+        batch.add(frame)
+        queue.drainTo(batch)
+        consumer(batch)
+        framesConsumed += batch.size
+        batch.clear()
+      }
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  private fun decodeFrame(
+      frame: StackFrame,
+      width: Int,
+      height: Int,
+      parentFrame: JFrame?,
+      isScored: Boolean,
+  ): Frame {
+    val path = frame.path
+    val layers = frame.layers ?: decodeLayers(path, width, height, parentFrame)
+    if (!isScored) {
+      return Frame(path, layers, 1.0)
+    }
+    val sharpness = getSharpness(layers[1], width, height)
+    log.info("Image {} has sharpness {}", LswFileUtil.getFilenameFromPath(path), sharpness)
+    return Frame(path, layers, sharpness)
+  }
+
+  private fun decodeLayers(
+      path: String,
+      width: Int,
+      height: Int,
+      parentFrame: JFrame?,
+  ): Array<ShortArray> {
+    val image = Opener().openImage(path)
+    validateImageDimensions(image.title, image.width, image.height, width, height, parentFrame)
+    val stack = image.getStack()
+    val red = FrameBandReader.getShortPixels(stack.getProcessor(1))
+    if (image.stackSize == 1) {
+      return arrayOf(red, red, red)
+    }
+    return arrayOf(
+        red,
+        FrameBandReader.getShortPixels(stack.getProcessor(2)),
+        FrameBandReader.getShortPixels(stack.getProcessor(3)),
+    )
+  }
+
+  /**
+   * Standard deviation of the 4-neighbour laplacian of the (green) layer after a 3x3 box blur,
+   * relative to the mean of the layer. The blur keeps the noise from counting as detail, the mean
+   * keeps brighter frames from scoring higher. Never returns 0, so a frame without any detail still
+   * has some weight.
+   */
+  private fun getSharpness(pixels: ShortArray, width: Int, height: Int): Double {
+    var total = 0L
+    for (value in pixels) {
+      total += value.toInt() and 0xffff
+    }
+    val blurred = IntArray(pixels.size)
+    for (y in 1..<height - 1) {
+      for (x in 1..<width - 1) {
+        var boxSum = 0
+        for (dy in -1..1) {
+          val row = (y + dy) * width + x
+          boxSum +=
+              (pixels[row - 1].toInt() and 0xffff) +
+                  (pixels[row].toInt() and 0xffff) +
+                  (pixels[row + 1].toInt() and 0xffff)
+        }
+        blurred[y * width + x] = boxSum
+      }
+    }
+    var sum = 0.0
+    var sumOfSquares = 0.0
+    for (y in 2..<height - 2) {
+      for (x in 2..<width - 2) {
+        val i = y * width + x
+        val laplacian =
+            blurred[i - 1] +
+                blurred[i + 1] +
+                blurred[i - width] +
+                blurred[i + width] -
+                4 * blurred[i]
+        sum += laplacian
+        sumOfSquares += laplacian.toDouble() * laplacian
+      }
+    }
+    val count = max(1, (width - 4) * (height - 4))
+    val mean = sum / count
+    val deviation = sqrt(max(0.0, sumOfSquares / count - mean * mean)) / 9
+    val brightness = max(1.0, total.toDouble() / pixels.size)
+    return max(1e-6, deviation / brightness)
+  }
+
+  private fun addToSums(frames: List<Frame>, sums: Array<DoubleArray>, width: Int, height: Int) {
+    LswImageProcessingUtil.runInBands(height) { fromRow, toRow ->
+      val from = fromRow * width
+      val to = toRow * width
+      for (frame in frames) {
+        val weight = frame.weight
+        for (layer in sums.indices) {
+          val pixels = frame.layers[layer]
+          val layerSums = sums[layer]
+          for (i in from until to) {
+            layerSums[i] += (pixels[i].toInt() and 0xffff) * weight
+          }
+        }
+      }
+    }
+  }
+
   private fun validateImageDimensions(
-      image: ImagePlus,
+      title: String,
+      imageWidth: Int,
+      imageHeight: Int,
       width: Int,
       height: Int,
       parentFrame: JFrame?,
   ) {
-    if (image.width != width || image.height != height) {
+    if (imageWidth != width || imageHeight != height) {
       JOptionPane.showMessageDialog(
           parentFrame,
-          "Image ${image.title} could not be stacked as its dimensions do not match",
+          "Image ${title} could not be stacked as its dimensions do not match",
       )
       throw BatchStoppedException("Image dimensions do not match")
     }
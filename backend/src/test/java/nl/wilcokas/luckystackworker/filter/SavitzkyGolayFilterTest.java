@@ -0,0 +1,87 @@
+package nl.wilcokas.luckystackworker.filter;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import nl.wilcokas.luckystackworker.constants.Constants;
+import nl.wilcokas.luckystackworker.model.Profile;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class SavitzkyGolayFilterTest {
+
+    private static final int WIDTH = 41;
+    private static final int HEIGHT = 29;
+
+    @Test
+    void testApplyGivesSameOutputAsPerPixelFilter() {
+        assertSameAsPerPixelFilter(new int[] {2, 3, 4}, new int[] {80, 100, 35}, new int[] {2, 1, 3});
+        assertSameAsPerPixelFilter(new int[] {5, 6, 2}, new int[] {100, 60, 100}, new int[] {1, 2, 1});
+    }
+
+    private void assertSameAsPerPixelFilter(int[] sizes, int[] amounts, int[] iterations) {
+        Random random = new Random(sizes[0]);
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        short[][] expected = new short[3][];
+        for (int layer = 0; layer < 3; layer++) {
+            short[] pixels = new short[WIDTH * HEIGHT];
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = (short) random.nextInt(65536);
+            }
+            expected[layer] = filterPerPixel(pixels.clone(), sizes[layer], amounts[layer], iterations[layer]);
+            stack.addSlice(new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+        }
+        Profile profile = new Profile();
+        profile.setDenoiseAlgorithm2(Constants.DENOISE_ALGORITHM_SAVGOLAY);
+        profile.setSavitzkyGolaySize(sizes[0]);
+        profile.setSavitzkyGolaySizeGreen(sizes[1]);
+        profile.setSavitzkyGolaySizeBlue(sizes[2]);
+        profile.setSavitzkyGolayAmount(amounts[0]);
+        profile.setSavitzkyGolayAmountGreen(amounts[1]);
+        profile.setSavitzkyGolayAmountBlue(amounts[2]);
+        profile.setSavitzkyGolayIterations(iterations[0]);
+        profile.setSavitzkyGolayIterationsGreen(iterations[1]);
+        profile.setSavitzkyGolayIterationsBlue(iterations[2]);
+
+        ImagePlus image = new ImagePlus("test", stack);
+        Assertions.assertTrue(new SavitzkyGolayFilter().apply(image, profile, false));
+
+        for (int layer = 0; layer < 3; layer++) {
+            Assertions.assertArrayEquals(expected[layer], (short[]) stack.getProcessor(layer + 1).getPixels());
+        }
+    }
+
+    /**
+     * The filter as it was before the kernels were flattened: every pixel visits all entries of the kernel, neighbors
+     * before the first or after the last pixel count as 0.
+     */
+    private short[] filterPerPixel(short[] pixels, int halfWidth, int amount, int iterations) {
+        int rowLength = 2 * halfWidth + 1;
+        int area = rowLength * rowLength;
+        int[] factors =
+                (int[]) ReflectionTestUtils.getField(SavitzkyGolayFilter.class, "RADIUS_%d_FACTORS".formatted(area));
+        int divisor =
+                (int) ReflectionTestUtils.getField(SavitzkyGolayFilter.class, "RADIUS_%d_DIVISOR".formatted(area));
+        for (int it = 0; it < iterations; it++) {
+            short[] result = new short[pixels.length];
+            for (int position = 0; position < pixels.length; position++) {
+                int x = position % WIDTH;
+                int y = position / WIDTH;
+                double multipliedTotal = 0;
+                for (int i = 0; i < factors.length; i++) {
+                    int neighbor = (y + i / rowLength - halfWidth) * WIDTH + x + i % rowLength - halfWidth;
+                    if (neighbor >= 0 && neighbor < pixels.length) {
+                        multipliedTotal += (pixels[neighbor] & 0xFFFF) * factors[i];
+                    }
+                }
+                long value = Math.round(((amount / 100.0) * (multipliedTotal / divisor))
+                        + (((100.0 - amount) / 100) * (pixels[position] & 0xFFFF)));
+                result[position] = (short) Math.clamp(value, 0, Constants.MAX_INT_VALUE);
+            }
+            pixels = result;
+        }
+        return pixels;
+    }
+}
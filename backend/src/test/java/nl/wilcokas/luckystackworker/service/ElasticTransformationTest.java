@@ -0,0 +1,46 @@
+package nl.wilcokas.luckystackworker.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class ElasticTransformationTest {
+
+    private static final int WIDTH = 61;
+    private static final int HEIGHT = 47;
+    private static final int INTERVALS = 4;
+
+    @Test
+    void testComposedShiftsAddUp() {
+        DisplacementField first = shift(2.5, -1.25).compose(null, WIDTH, HEIGHT);
+        DisplacementField composed = shift(-4.0, 3.5).compose(first, WIDTH, HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int i = y * WIDTH + x;
+                double expectedX = x + 2.5 - 4.0;
+                double expectedY = y - 1.25 + 3.5;
+                if (x + 2.5 >= WIDTH || y - 1.25 < 0 || expectedX < 0 || expectedY >= HEIGHT) {
+                    Assertions.assertTrue(Float.isNaN(composed.getXs()[i]), "outside at " + x + "," + y);
+                } else {
+                    Assertions.assertEquals(expectedX, composed.getXs()[i], 1e-3, "x at " + x + "," + y);
+                    Assertions.assertEquals(expectedY, composed.getYs()[i], 1e-3, "y at " + x + "," + y);
+                }
+            }
+        }
+    }
+
+    /**
+     * The coefficients of a transformation that maps every target pixel onto the source pixel at the given offset.
+     * B-splines reproduce straight lines, so coefficients spaced evenly along the grid give an exact shift.
+     */
+    static ElasticTransformation shift(double dx, double dy) {
+        double[][] cx = new double[INTERVALS + 3][INTERVALS + 3];
+        double[][] cy = new double[INTERVALS + 3][INTERVALS + 3];
+        for (int i = 0; i < INTERVALS + 3; i++) {
+            for (int j = 0; j < INTERVALS + 3; j++) {
+                cx[i][j] = (j - 1) * (WIDTH - 1.0) / INTERVALS + dx;
+                cy[i][j] = (i - 1) * (HEIGHT - 1.0) / INTERVALS + dy;
+            }
+        }
+        return new ElasticTransformation(INTERVALS, cx, cy);
+    }
+}
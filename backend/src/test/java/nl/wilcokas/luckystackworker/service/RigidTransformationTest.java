@@ -0,0 +1,90 @@
+package nl.wilcokas.luckystackworker.service;
+
+import java.util.Random;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class RigidTransformationTest {
+
+    // With the coarsest level at 64 pixels the pyramid has 4 levels, so the translation is refined 3 times.
+    private static final int SIZE = 512;
+    private static final int COARSEST_SIZE = 64;
+    private static final int BLOBS = 640;
+
+    @Test
+    void testEstimateRecoversRotationAndShift() {
+        double angle = Math.toRadians(1.2);
+        RigidTransformation expected = new RigidTransformation(angle, 2.5, -1.5, (SIZE - 1) / 2.0, (SIZE - 1) / 2.0);
+        double[][] blobs = createBlobs();
+        float[] source = new float[SIZE * SIZE];
+        float[] target = new float[SIZE * SIZE];
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                source[y * SIZE + x] = valueAt(blobs, x, y);
+                // The source pixel that ends up at this target position.
+                target[y * SIZE + x] = valueAt(blobs, expected.mapX(x, y), expected.mapY(x, y));
+            }
+        }
+
+        RigidTransformation estimated =
+                RigidTransformation.Companion.estimate(source, target, SIZE, SIZE, COARSEST_SIZE, 2.0, 0.5);
+
+        Assertions.assertEquals(1.2, Math.toDegrees(estimated.getAngle()), 0.15);
+        Assertions.assertEquals(2.5, estimated.getDx(), 0.3);
+        Assertions.assertEquals(-1.5, estimated.getDy(), 0.3);
+    }
+
+    @Test
+    void testApplyToIdentityGivesRigidMap() {
+        int width = 61;
+        int height = 47;
+        RigidTransformation rigid = new RigidTransformation(0.05, 1.5, -2.0, (width - 1) / 2.0, (height - 1) / 2.0);
+        int intervals = 4;
+        double[][] cx = new double[intervals + 3][intervals + 3];
+        double[][] cy = new double[intervals + 3][intervals + 3];
+        for (int i = 0; i < intervals + 3; i++) {
+            for (int j = 0; j < intervals + 3; j++) {
+                cx[i][j] = (j - 1) * (width - 1.0) / intervals;
+                cy[i][j] = (i - 1) * (height - 1.0) / intervals;
+            }
+        }
+
+        DisplacementField field =
+                rigid.applyTo(new ElasticTransformation(intervals, cx, cy)).compose(null, width, height);
+
+        int mapped = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                if (!Float.isNaN(field.getXs()[i])) {
+                    Assertions.assertEquals(rigid.mapX(x, y), field.getXs()[i], 1e-3, "x at " + x + "," + y);
+                    Assertions.assertEquals(rigid.mapY(x, y), field.getYs()[i], 1e-3, "y at " + x + "," + y);
+                    mapped++;
+                }
+            }
+        }
+        Assertions.assertTrue(mapped > width * height / 2);
+    }
+
+    private double[][] createBlobs() {
+        Random random = new Random(42);
+        double[][] blobs = new double[BLOBS][];
+        for (int i = 0; i < blobs.length; i++) {
+            blobs[i] = new double[] {
+                random.nextDouble() * SIZE, random.nextDouble() * SIZE, 2 + random.nextDouble() * 4, random.nextDouble()
+            };
+        }
+        return blobs;
+    }
+
+    /** A sum of gaussian blobs, which can be sampled at any position. */
+    private float valueAt(double[][] blobs, double x, double y) {
+        double value = 0;
+        for (double[] blob : blobs) {
+            double dx = x - blob[0];
+            double dy = y - blob[1];
+            value += 1000 * blob[3] * Math.exp(-(dx * dx + dy * dy) / (2 * blob[2] * blob[2]));
+        }
+        return (float) value;
+    }
+}
@@ -0,0 +1,184 @@
+package nl.wilcokas.luckystackworker.service;
+
+import ij.ImagePlus;
+import ij.io.Opener;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntBinaryOperator;
+import nl.wilcokas.luckystackworker.LuckyStackWorkerContext;
+import nl.wilcokas.luckystackworker.service.bean.LswImageLayers;
+import nl.wilcokas.luckystackworker.service.bean.StackModeEnum;
+import nl.wilcokas.luckystackworker.util.LswFileUtil;
+import nl.wilcokas.luckystackworker.util.LswImageProcessingUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StackServiceTest {
+
+    private static final int WIDTH = 23;
+    private static final int HEIGHT = 17;
+
+    // The values of a pixel in each frame, apart from an offset per pixel and layer. The second frame
+    // is an outlier.
+    private static final int[] FRAME_VALUES = {300, 60000, 100, 400, 200};
+
+    // Quality weighted frames are a checkerboard of the given amplitude around the given mean, so their
+    // sharpness is in proportion to amplitude / mean. The last frame is the worst.
+    private static final int QUALITY_SIZE = 32;
+    private static final int[] QUALITY_MEANS = {10000, 20000, 15000, 12000, 30000};
+    private static final int[] QUALITY_AMPLITUDES = {400, 100, 1000, 600, 50};
+
+    @TempDir
+    private Path tempDir;
+
+    @Test
+    void testStackModes() throws IOException {
+        List<String> paths = saveFrames();
+        assertStacked(StackModeEnum.MEAN, 12200, paths);
+        assertStacked(StackModeEnum.MEDIAN, 300, paths);
+        // 1 value is replaced at each end: 200 + 200 + 300 + 400 + 400
+        assertStacked(StackModeEnum.WINSORIZED, 300, paths);
+        // The outlier is beyond 1.5 standard deviations, after that all values are within the range.
+        assertStacked(StackModeEnum.SIGMA_CLIP, 250, paths);
+    }
+
+    @Test
+    void testBandsAreSeamless() throws IOException {
+        List<String> paths = saveFrames();
+        for (StackModeEnum stackMode :
+                List.of(StackModeEnum.MEDIAN, StackModeEnum.WINSORIZED, StackModeEnum.SIGMA_CLIP)) {
+            // Without memory every band is a single row.
+            short[][] rowByRow = stack(createStackService(0, 0), WIDTH, HEIGHT, stackMode, paths, "rows");
+            short[][] singleBand = stack(createStackService(512, 0), WIDTH, HEIGHT, stackMode, paths, "single");
+            for (int layer = 0; layer < 3; layer++) {
+                Assertions.assertArrayEquals(singleBand[layer], rowByRow[layer]);
+            }
+        }
+    }
+
+    @Test
+    void testQualityWeighted() throws IOException {
+        List<String> paths = new ArrayList<>();
+        for (int frame = 0; frame < QUALITY_MEANS.length; frame++) {
+            int mean = QUALITY_MEANS[frame];
+            int amplitude = QUALITY_AMPLITUDES[frame];
+            paths.add(saveFrame(
+                    "quality" + frame,
+                    QUALITY_SIZE,
+                    QUALITY_SIZE,
+                    (layer, i) -> mean + amplitude * getCheckerboard(i)));
+        }
+        int frames = QUALITY_MEANS.length;
+
+        short[][] weighted = stackQualityWeighted(0, paths, "weighted");
+        assertQualityWeighted(weighted, frames);
+
+        // 20% of 5 frames rejects the worst one, which is enough to move the mean.
+        short[][] rejected = stackQualityWeighted(20, paths, "rejected");
+        assertQualityWeighted(rejected, frames - 1);
+        Assertions.assertTrue(Math.abs(getWeightedMean(frames, 1) - (rejected[1][0] & 0xffff)) > 100);
+    }
+
+    private short[][] stackQualityWeighted(double qualityRejectPercentage, List<String> paths, String folder)
+            throws IOException {
+        return stack(
+                createStackService(0, qualityRejectPercentage),
+                QUALITY_SIZE,
+                QUALITY_SIZE,
+                StackModeEnum.QUALITY_WEIGHTED,
+                paths,
+                folder);
+    }
+
+    private void assertQualityWeighted(short[][] layers, int frames) {
+        for (int layer = 0; layer < 3; layer++) {
+            for (int i = 0; i < QUALITY_SIZE * QUALITY_SIZE; i++) {
+                Assertions.assertEquals(
+                        getWeightedMean(frames, getCheckerboard(i)), layers[layer][i] & 0xffff, 1.0, "at " + i);
+            }
+        }
+    }
+
+    /** The mean of the first frames weighted by their sharpness, at a pixel where the checkerboard is +1 or -1. */
+    private double getWeightedMean(int frames, int checkerboard) {
+        double sum = 0;
+        double totalWeight = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            double weight = (double) QUALITY_AMPLITUDES[frame] / QUALITY_MEANS[frame];
+            sum += weight * (QUALITY_MEANS[frame] + QUALITY_AMPLITUDES[frame] * checkerboard);
+            totalWeight += weight;
+        }
+        return sum / totalWeight;
+    }
+
+    /** Blocks of 4 by 4 pixels of +1 and -1, which average to 0 over the frame. */
+    private int getCheckerboard(int i) {
+        int x = i % QUALITY_SIZE;
+        int y = i / QUALITY_SIZE;
+        return (x / 4 + y / 4) % 2 == 0 ? 1 : -1;
+    }
+
+    private void assertStacked(StackModeEnum stackMode, int expected, List<String> paths) throws IOException {
+        short[][] layers = stack(createStackService(0, 0), WIDTH, HEIGHT, stackMode, paths, stackMode.name());
+        for (int layer = 0; layer < 3; layer++) {
+            for (int i = 0; i < WIDTH * HEIGHT; i++) {
+                Assertions.assertEquals(
+                        expected + getOffset(layer, i), layers[layer][i] & 0xffff, stackMode + " at " + i);
+            }
+        }
+    }
+
+    private StackService createStackService(long bandMemoryMegabytes, double qualityRejectPercentage) {
+        return new StackService(
+                new LuckyStackWorkerContext(), 2, 4, bandMemoryMegabytes, 1.5, 0.2, qualityRejectPercentage);
+    }
+
+    private short[][] stack(
+            StackService stackService,
+            int width,
+            int height,
+            StackModeEnum stackMode,
+            List<String> paths,
+            String folder)
+            throws IOException {
+        Path rootFolder = tempDir.resolve(folder);
+        rootFolder.toFile().mkdirs();
+        String path = stackService.stackImages(rootFolder.toString(), width, height, paths, null, false, stackMode);
+        ImagePlus image = new Opener().openImage(path);
+        short[][] layers = new short[3][];
+        for (int layer = 0; layer < 3; layer++) {
+            layers[layer] = (short[]) image.getStack().getProcessor(layer + 1).getPixels();
+        }
+        return layers;
+    }
+
+    private List<String> saveFrames() throws IOException {
+        List<String> paths = new ArrayList<>();
+        for (int frame = 0; frame < FRAME_VALUES.length; frame++) {
+            int value = FRAME_VALUES[frame];
+            paths.add(saveFrame("frame" + frame, WIDTH, HEIGHT, (layer, i) -> value + getOffset(layer, i)));
+        }
+        return paths;
+    }
+
+    /** Saves a frame with the value of each layer and pixel index given by the operator. */
+    private String saveFrame(String name, int width, int height, IntBinaryOperator values) throws IOException {
+        short[][] layers = new short[3][width * height];
+        for (int layer = 0; layer < 3; layer++) {
+            for (int i = 0; i < width * height; i++) {
+                layers[layer][i] = (short) values.applyAsInt(layer, i);
+            }
+        }
+        String path = tempDir.resolve(name + ".tif").toString();
+        ImagePlus image = LswImageProcessingUtil.create16BitRGBImage(path, new LswImageLayers(width, height, layers));
+        LswFileUtil.saveImage(image, null, path, true, false, false, false);
+        return path;
+    }
+
+    private int getOffset(int layer, int i) {
+        return layer * 1000 + (i % WIDTH) * 7 + (i / WIDTH) * 13;
+    }
+}
@@ -0,0 +1,55 @@
+package nl.wilcokas.luckystackworker.util;
+
+import java.util.Random;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class LswPhaseCorrelationTest {
+
+    private static final int WIDTH = 96;
+    private static final int HEIGHT = 80;
+
+    @Test
+    void testEstimateShiftOfWholePixels() {
+        LswPhaseCorrelation.Shift shift = estimateShift(5, -3, true);
+        Assertions.assertEquals(5, shift.dx(), 0.05);
+        Assertions.assertEquals(-3, shift.dy(), 0.05);
+    }
+
+    @Test
+    void testEstimateShiftOfSubPixels() {
+        LswPhaseCorrelation.Shift shift = estimateShift(-2.3, 1.6, false);
+        Assertions.assertEquals(-2.3, shift.dx(), 0.25);
+        Assertions.assertEquals(1.6, shift.dy(), 0.25);
+    }
+
+    /** The moving plane is the reference plane shifted by (dx, dy): moving(x, y) = reference(x - dx, y - dy). */
+    private LswPhaseCorrelation.Shift estimateShift(double dx, double dy, boolean phaseOnly) {
+        Random random = new Random(7);
+        double[][] blobs = new double[30][];
+        for (int i = 0; i < blobs.length; i++) {
+            blobs[i] = new double[] {
+                random.nextDouble() * WIDTH, random.nextDouble() * HEIGHT, 2 + random.nextDouble() * 3
+            };
+        }
+        float[] reference = new float[WIDTH * HEIGHT];
+        float[] moving = new float[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                reference[y * WIDTH + x] = valueAt(blobs, x, y);
+                moving[y * WIDTH + x] = valueAt(blobs, x - dx, y - dy);
+            }
+        }
+        return LswPhaseCorrelation.estimateShift(reference, moving, WIDTH, HEIGHT, phaseOnly);
+    }
+
+    private float valueAt(double[][] blobs, double x, double y) {
+        double value = 0;
+        for (double[] blob : blobs) {
+            double distanceX = x - blob[0];
+            double distanceY = y - blob[1];
+            value += 1000 * Math.exp(-(distanceX * distanceX + distanceY * distanceY) / (2 * blob[2] * blob[2]));
+        }
+        return (float) value;
+    }
+}
@@ -56,6 +56,14 @@ export class AppComponent implements OnInit {
     { value: 'BLUE', viewValue: 'Blue' },
   ];
 
+  stackModes: ProfileSelection[] = [
+    { value: 'MEAN', viewValue: 'Mean' },
+    { value: 'QUALITY_WEIGHTED', viewValue: 'Quality weighted' },
+    { value: 'SIGMA_CLIP', viewValue: 'Sigma clip' },
+    { value: 'WINSORIZED', viewValue: 'Winsorized' },
+    { value: 'MEDIAN', viewValue: 'Median' },
+  ];
+
   title = 'LuckyStackWorker';
 
   // sharpen
@@ -87,6 +95,7 @@ export class AppComponent implements OnInit {
   denoise1Radius: number;
   denoise1Iterations: number;
 
+  stackMode: string = 'MEAN';
   rofTheta: number = 1;
   rofIterations: number = 2;
 
@@ -787,7 +796,6 @@ export class AppComponent implements OnInit {
         this.denoise2Iterations = this.profile.denoise2Iterations;
         this.rofTheta = this.profile.rofTheta;
         this.rofIterations = this.profile.rofIterations;
-        this.rofIterations = this.profile.rofIterationsBlue;
         this.bilateralSigmaColor = this.profile.bilateralSigmaColor;
         this.bilateralSigmaSpace = this.profile.bilateralSigmaSpace;
         this.bilateralRadius = this.profile.bilateralRadius;
@@ -1012,6 +1020,56 @@ export class AppComponent implements OnInit {
     }
   }
 
+  rofThetaChanged(event: any, update: boolean) {
+    this.rofTheta = event.value;
+    this.settings.operations = ['ROF_DENOISE'];
+    console.log('rofThetaChanged called: ' + this.profile.rofTheta);
+    switch (this.applyDenoiseToChannel) {
+      case 'G':
+        this.profile.rofThetaGreen = event.value;
+        break;
+      case 'B':
+        this.profile.rofThetaBlue = event.value;
+        break;
+      case 'R':
+        this.profile.rofTheta = event.value;
+        break;
+      default:
+        this.equalizeChannelsForDenoising();
+        this.profile.rofTheta = event.value;
+        this.profile.rofThetaGreen = event.value;
+        this.profile.rofThetaBlue = event.value;
+    }
+    if (update) {
+      this.updateProfile();
+    }
+  }
+
+  rofIterationsChanged(event: any, update: boolean) {
+    this.rofIterations = event.value;
+    this.settings.operations = ['ROF_DENOISE'];
+    console.log('rofIterationsChanged called: ' + this.profile.rofIterations);
+    switch (this.applyDenoiseToChannel) {
+      case 'G':
+        this.profile.rofIterationsGreen = event.value;
+        break;
+      case 'B':
+        this.profile.rofIterationsBlue = event.value;
+        break;
+      case 'R':
+        this.profile.rofIterations = event.value;
+        break;
+      default:
+        this.equalizeChannelsForDenoising();
+        this.profile.rofIterations = event.value;
+        this.profile.rofIterationsGreen = event.value;
+        this.profile.rofIterationsBlue = event.value;
+    }
+    if (update) {
+      this.updateProfile();
+    }
+  }
+
   gammaChanged(event: any, update: boolean) {
     this.profile.gamma = event.value;
     this.gamma = event.value;
@@ -1262,6 +1320,9 @@ export class AppComponent implements OnInit {
     } else if (event.value === 'SIGMA2') {
       this.settings.operations = ['SIGMA_DENOISE_2'];
       this.profile.denoiseAlgorithm2 = 'SIGMA2';
+    } else if (event.value === 'ROF') {
+      this.settings.operations = ['ROF_DENOISE'];
+      this.profile.denoiseAlgorithm2 = 'ROF';
     } else {
       this.settings.operations = ['SAVITSKY_GOLAY'];
       this.profile.denoiseAlgorithm2 = 'OFF';
@@ -2004,7 +2065,12 @@ export class AppComponent implements OnInit {
     this.workerProgress = 0;
     this.workerBusy = true;
     this.luckyStackWorkerService
-      .startDeRotation(this.deRotation, Number(this.scale), this.openImageMode)
+      .startDeRotation(
+        this.deRotation,
+        Number(this.scale),
+        this.openImageMode,
+        this.stackMode,
+      )
       .subscribe(
         (data) => {
           console.log(data);
@@ -2039,7 +2105,7 @@ export class AppComponent implements OnInit {
     this.workerProgress = 0;
     this.workerBusy = true;
     this.luckyStackWorkerService
-      .stack(Number(this.scale), this.openImageMode)
+      .stack(Number(this.scale), this.openImageMode, this.stackMode)
       .subscribe(
         (data) => {
           console.log(data);
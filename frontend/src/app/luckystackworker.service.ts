@@ -47,16 +47,21 @@ export class LuckyStackWorkerService {
     derotation: DeRotation,
     scale: number,
     openImageMode: string,
+    stackMode: string,
   ): Observable<Object> {
     return this.http.put(
-      `${this.baseUrl}/reference/derotate?scale=${scale}&openImageMode=${openImageMode}`,
+      `${this.baseUrl}/reference/derotate?scale=${scale}&openImageMode=${openImageMode}&stackMode=${stackMode}`,
       derotation,
     );
   }
 
-  stack(scale: number, openImageMode: string): Observable<Object> {
+  stack(
+    scale: number,
+    openImageMode: string,
+    stackMode: string,
+  ): Observable<Object> {
     return this.http.put(
-      `${this.baseUrl}/reference/stack?scale=${scale}&openImageMode=${openImageMode}`,
+      `${this.baseUrl}/reference/stack?scale=${scale}&openImageMode=${openImageMode}&stackMode=${stackMode}`,
       null,
     );
   }
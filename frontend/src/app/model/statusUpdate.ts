@@ -2,4 +2,15 @@ export class StatusUpdate {
   filesProcessedCount: number;
   totalFilesCount: number;
   message: string;
+  deconvolutionIterationsRun: number;
+  stages: StageStatus[];
+}
+
+export class StageStatus {
+  name: string;
+  parallelism: number;
+  processedCount: number;
+  runningCount: number;
+  queuedCount: number;
+  itemsPerSecond: number;
 }